@@ -0,0 +1,482 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.util.amazon;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide latency, retry and outcome statistics of the AWS API calls made by the clients {@link AWSClients} creates.
+ * <p>
+ * Calls are grouped by operation (e.g. describeStacks), region and outcome. Latency covers all attempts of a call,
+ * not the time spent waiting for the {@link AWSRateLimiter}. Percentiles are estimated from fixed histogram buckets.
+ * Calls are also counted in the {@link Recording} attached to the calling thread, if any.
+ */
+public final class AWSApiMetrics implements AWSApiMetricsMBean {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(AWSApiMetrics.class.getName());
+
+  public static final String OBJECT_NAME = "jetbrains.buildServer.aws:type=ApiMetrics";
+  public static final String SUCCESS = "success";
+  public static final String THROTTLED = "throttled";
+  public static final String FAILED = "failed";
+  static final long RECENT_WINDOW_MS = 5 * 60 * 1000;
+
+  // upper bounds of the latency histogram buckets, the last one also holds slower calls
+  private static final long[] BUCKET_BOUNDS_MS = {5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 120000};
+
+  private static final HandlerContextKey<Long> START_NANOS = new HandlerContextKey<Long>("teamcity.metrics.start");
+  private static final HandlerContextKey<AtomicInteger> ATTEMPTS = new HandlerContextKey<AtomicInteger>("teamcity.metrics.attempts");
+  private static final HandlerContextKey<Recording> RECORDING = new HandlerContextKey<Recording>("teamcity.metrics.recording");
+  private static final ThreadLocal<Recording> CURRENT_RECORDING = new ThreadLocal<Recording>();
+
+  private static final AWSApiMetrics INSTANCE = new AWSApiMetrics();
+
+  @NotNull
+  private final Map<List<String>, Counter> myCounters = new HashMap<List<String>, Counter>();
+  @NotNull
+  private Counter myRecent = new Counter();
+  @NotNull
+  private Counter myPrevious = new Counter();
+  private long myRecentStart = System.currentTimeMillis();
+
+  @NotNull
+  public static AWSApiMetrics getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @param region region of the client the handler is added to, or e.g. "global" for global endpoints
+   */
+  @NotNull
+  RequestHandler2 createRequestHandler(@NotNull final String region) {
+    return new RequestHandler2() {
+      @Override
+      public void beforeRequest(Request<?> request) {
+        request.addHandlerContext(START_NANOS, System.nanoTime());
+        request.addHandlerContext(ATTEMPTS, new AtomicInteger());
+        final Recording recording = CURRENT_RECORDING.get();
+        if (recording != null) request.addHandlerContext(RECORDING, recording);
+      }
+
+      @Override
+      public void beforeAttempt(HandlerBeforeAttemptContext context) {
+        final AtomicInteger attempts = context.getRequest().getHandlerContext(ATTEMPTS);
+        if (attempts != null) attempts.incrementAndGet();
+      }
+
+      @Override
+      public void afterResponse(Request<?> request, Response<?> response) {
+        record(request, region, SUCCESS);
+      }
+
+      @Override
+      public void afterError(Request<?> request, Response<?> response, Exception e) {
+        record(request, region, AWSException.isThrottling(e) ? THROTTLED : FAILED);
+      }
+    };
+  }
+
+  private void record(@NotNull Request<?> request, @NotNull String region, @NotNull String outcome) {
+    final Long start = request.getHandlerContext(START_NANOS);
+    if (start == null) return;
+    final AtomicLong waited = request.getHandlerContext(AWSRateLimiter.WAITED_NANOS);
+    final long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start - (waited == null ? 0 : waited.get()));
+    final AtomicInteger attempts = request.getHandlerContext(ATTEMPTS);
+    final int retries = attempts == null ? 0 : Math.max(0, attempts.get() - 1);
+    final String operation = getOperation(request.getOriginalRequest(), request.getServiceName());
+    record(operation, region, outcome, latencyMs, retries);
+    final Recording recording = request.getHandlerContext(RECORDING);
+    if (recording != null) recording.record(operation, region, outcome, latencyMs, retries);
+  }
+
+  void record(@NotNull String operation, @NotNull String region, @NotNull String outcome, long latencyMs, int retries) {
+    synchronized (myCounters) {
+      add(myCounters, operation, region, outcome, latencyMs, retries);
+      getRecent().add(outcome, latencyMs, retries);
+    }
+  }
+
+  private static void add(@NotNull Map<List<String>, Counter> counters, @NotNull String operation, @NotNull String region, @NotNull String outcome,
+                          long latencyMs, int retries) {
+    final List<String> key = Arrays.asList(operation, region, outcome);
+    Counter counter = counters.get(key);
+    if (counter == null) {
+      counter = new Counter();
+      counters.put(key, counter);
+    }
+    counter.add(outcome, latencyMs, retries);
+  }
+
+  @NotNull
+  private static Snapshot createSnapshot(@NotNull Map<List<String>, Counter> counters) {
+    final List<CallStats> stats = new ArrayList<CallStats>();
+    for (Map.Entry<List<String>, Counter> entry : counters.entrySet()) {
+      final List<String> key = entry.getKey();
+      stats.add(new CallStats(key.get(0), key.get(1), key.get(2), entry.getValue().copy()));
+    }
+    return new Snapshot(stats);
+  }
+
+  /**
+   * @return e.g. describeStacks for DescribeStacksRequest
+   */
+  @NotNull
+  private static String getOperation(@Nullable AmazonWebServiceRequest request, @Nullable String serviceName) {
+    if (request == null) return String.valueOf(serviceName);
+    String name = request.getClass().getSimpleName();
+    if (name.endsWith("Request")) name = name.substring(0, name.length() - "Request".length());
+    return name.isEmpty() ? String.valueOf(serviceName) : Character.toLowerCase(name.charAt(0)) + name.substring(1);
+  }
+
+  @NotNull
+  private Counter getRecent() {
+    final long now = System.currentTimeMillis();
+    if (now - myRecentStart >= RECENT_WINDOW_MS) {
+      // after a long pause the previous window is stale as well
+      myPrevious = now - myRecentStart >= 2 * RECENT_WINDOW_MS ? new Counter() : myRecent;
+      myRecent = new Counter();
+      myRecentStart = now;
+    }
+    return myRecent;
+  }
+
+  /**
+   * @return current totals, subtract an earlier snapshot to get the calls made in between
+   */
+  @NotNull
+  public Snapshot snapshot() {
+    synchronized (myCounters) {
+      return createSnapshot(myCounters);
+    }
+  }
+
+  public void registerMBean() {
+    try {
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      final ObjectName name = new ObjectName(OBJECT_NAME);
+      if (!server.isRegistered(name)) server.registerMBean(this, name);
+    } catch (JMException e) {
+      LOG.warn("Failed to register AWS API metrics MBean: " + e.getMessage());
+    }
+  }
+
+  public void unregisterMBean() {
+    try {
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      final ObjectName name = new ObjectName(OBJECT_NAME);
+      if (server.isRegistered(name)) server.unregisterMBean(name);
+    } catch (JMException e) {
+      LOG.warn("Failed to unregister AWS API metrics MBean: " + e.getMessage());
+    }
+  }
+
+  @NotNull
+  private Counter getTotal() {
+    final Counter total = new Counter();
+    synchronized (myCounters) {
+      for (Counter counter : myCounters.values()) {
+        total.addAll(counter);
+      }
+    }
+    return total;
+  }
+
+  @NotNull
+  private Counter getRecentTotal() {
+    final Counter total = new Counter();
+    synchronized (myCounters) {
+      final Counter recent = getRecent();
+      total.addAll(myPrevious);
+      total.addAll(recent);
+    }
+    return total;
+  }
+
+  @Override
+  public long getTotalCalls() {
+    return getTotal().myCount;
+  }
+
+  @Override
+  public long getThrottledCalls() {
+    return getTotal().myThrottled;
+  }
+
+  @Override
+  public long getFailedCalls() {
+    return getTotal().myFailed;
+  }
+
+  @Override
+  public long getRetries() {
+    return getTotal().myRetries;
+  }
+
+  @Override
+  public long getRecentCalls() {
+    return getRecentTotal().myCount;
+  }
+
+  @Override
+  public double getRecentThrottleRate() {
+    final Counter recent = getRecentTotal();
+    return recent.myCount == 0 ? 0 : (double) recent.myThrottled / recent.myCount;
+  }
+
+  @Override
+  public long getRecentP50LatencyMs() {
+    return getRecentTotal().getPercentileMs(0.5);
+  }
+
+  @Override
+  public long getRecentP95LatencyMs() {
+    return getRecentTotal().getPercentileMs(0.95);
+  }
+
+  @Override
+  public long getRecentP99LatencyMs() {
+    return getRecentTotal().getPercentileMs(0.99);
+  }
+
+  @Override
+  public String[] getOperations() {
+    final List<String> lines = new ArrayList<String>();
+    for (CallStats stats : snapshot().getStats()) {
+      lines.add(stats.toString());
+    }
+    Collections.sort(lines);
+    return lines.toArray(new String[lines.size()]);
+  }
+
+  /**
+   * Totals of the calls with the same operation, region and outcome
+   */
+  public static final class CallStats {
+    @NotNull
+    private final String myOperation;
+    @NotNull
+    private final String myRegion;
+    @NotNull
+    private final String myOutcome;
+    @NotNull
+    private final Counter myCounter;
+
+    private CallStats(@NotNull String operation, @NotNull String region, @NotNull String outcome, @NotNull Counter counter) {
+      myOperation = operation;
+      myRegion = region;
+      myOutcome = outcome;
+      myCounter = counter;
+    }
+
+    @NotNull
+    public String getOperation() {
+      return myOperation;
+    }
+
+    @NotNull
+    public String getRegion() {
+      return myRegion;
+    }
+
+    /**
+     * @return one of {@link #SUCCESS}, {@link #THROTTLED} and {@link #FAILED}
+     */
+    @NotNull
+    public String getOutcome() {
+      return myOutcome;
+    }
+
+    public long getCount() {
+      return myCounter.myCount;
+    }
+
+    public long getRetries() {
+      return myCounter.myRetries;
+    }
+
+    public long getTotalLatencyMs() {
+      return myCounter.myTotalMs;
+    }
+
+    /**
+     * @return upper bound of the histogram bucket the percentile falls into, 0 if there were no calls
+     */
+    public long getPercentileLatencyMs(double percentile) {
+      return myCounter.getPercentileMs(percentile);
+    }
+
+    @Override
+    public String toString() {
+      return myOperation + " " + myRegion + " " + myOutcome + ": calls=" + getCount() + ", retries=" + getRetries() +
+             ", avgMs=" + (getCount() == 0 ? 0 : getTotalLatencyMs() / getCount()) + ", p95Ms=" + getPercentileLatencyMs(0.95);
+    }
+  }
+
+  /**
+   * Statistics of the calls made by the threads the recording is attached to, e.g. by a single build step.
+   * Unlike the process-wide totals, it doesn't count the calls made meanwhile for other builds.
+   */
+  public static final class Recording {
+    @NotNull
+    private final Map<List<String>, Counter> myCounters = new HashMap<List<String>, Counter>();
+
+    /**
+     * @return recording attached to the current thread, if any
+     */
+    @Nullable
+    public static Recording current() {
+      return CURRENT_RECORDING.get();
+    }
+
+    /**
+     * Counts the calls the current thread makes in this recording until {@link #detach()} is called
+     */
+    public void attach() {
+      CURRENT_RECORDING.set(this);
+    }
+
+    public static void detach() {
+      CURRENT_RECORDING.remove();
+    }
+
+    private void record(@NotNull String operation, @NotNull String region, @NotNull String outcome, long latencyMs, int retries) {
+      synchronized (myCounters) {
+        add(myCounters, operation, region, outcome, latencyMs, retries);
+      }
+    }
+
+    @NotNull
+    public Snapshot snapshot() {
+      synchronized (myCounters) {
+        return createSnapshot(myCounters);
+      }
+    }
+  }
+
+  public static final class Snapshot {
+    @NotNull
+    private final List<CallStats> myStats;
+
+    private Snapshot(@NotNull List<CallStats> stats) {
+      myStats = stats;
+    }
+
+    @NotNull
+    public List<CallStats> getStats() {
+      return Collections.unmodifiableList(myStats);
+    }
+
+    /**
+     * @return statistics of the calls made after the earlier snapshot was taken
+     */
+    @NotNull
+    public Snapshot since(@NotNull Snapshot earlier) {
+      final Map<List<String>, Counter> before = new HashMap<List<String>, Counter>();
+      for (CallStats stats : earlier.myStats) {
+        before.put(Arrays.asList(stats.myOperation, stats.myRegion, stats.myOutcome), stats.myCounter);
+      }
+      final List<CallStats> diff = new ArrayList<CallStats>();
+      for (CallStats stats : myStats) {
+        final Counter counter = stats.myCounter.minus(before.get(Arrays.asList(stats.myOperation, stats.myRegion, stats.myOutcome)));
+        if (counter.myCount > 0) diff.add(new CallStats(stats.myOperation, stats.myRegion, stats.myOutcome, counter));
+      }
+      return new Snapshot(diff);
+    }
+  }
+
+  private static final class Counter {
+    private long myCount;
+    private long myThrottled;
+    private long myFailed;
+    private long myRetries;
+    private long myTotalMs;
+    @NotNull
+    private final long[] myBuckets = new long[BUCKET_BOUNDS_MS.length];
+
+    private void add(@NotNull String outcome, long latencyMs, int retries) {
+      myCount++;
+      if (THROTTLED.equals(outcome)) myThrottled++;
+      if (FAILED.equals(outcome)) myFailed++;
+      myRetries += retries;
+      myTotalMs += latencyMs;
+      int bucket = 0;
+      while (bucket < BUCKET_BOUNDS_MS.length - 1 && latencyMs > BUCKET_BOUNDS_MS[bucket]) bucket++;
+      myBuckets[bucket]++;
+    }
+
+    private void addAll(@NotNull Counter other) {
+      myCount += other.myCount;
+      myThrottled += other.myThrottled;
+      myFailed += other.myFailed;
+      myRetries += other.myRetries;
+      myTotalMs += other.myTotalMs;
+      for (int i = 0; i < myBuckets.length; i++) {
+        myBuckets[i] += other.myBuckets[i];
+      }
+    }
+
+    @NotNull
+    private Counter copy() {
+      final Counter copy = new Counter();
+      copy.addAll(this);
+      return copy;
+    }
+
+    @NotNull
+    private Counter minus(@Nullable Counter other) {
+      final Counter diff = copy();
+      if (other == null) return diff;
+      diff.myCount -= other.myCount;
+      diff.myThrottled -= other.myThrottled;
+      diff.myFailed -= other.myFailed;
+      diff.myRetries -= other.myRetries;
+      diff.myTotalMs -= other.myTotalMs;
+      for (int i = 0; i < myBuckets.length; i++) {
+        diff.myBuckets[i] -= other.myBuckets[i];
+      }
+      return diff;
+    }
+
+    private long getPercentileMs(double percentile) {
+      if (myCount == 0) return 0;
+      final long rank = (long) Math.ceil(percentile * myCount);
+      long seen = 0;
+      for (int i = 0; i < myBuckets.length; i++) {
+        seen += myBuckets[i];
+        if (seen >= rank) return BUCKET_BOUNDS_MS[i];
+      }
+      return BUCKET_BOUNDS_MS[BUCKET_BOUNDS_MS.length - 1];
+    }
+  }
+}
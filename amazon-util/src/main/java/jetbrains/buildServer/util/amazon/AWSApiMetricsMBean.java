@@ -0,0 +1,46 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.util.amazon;
+
+/**
+ * JMX view of {@link AWSApiMetrics}. Counters are totals since the process start, the recent values cover
+ * the last 5 to 10 minutes.
+ */
+public interface AWSApiMetricsMBean {
+  long getTotalCalls();
+
+  long getThrottledCalls();
+
+  long getFailedCalls();
+
+  long getRetries();
+
+  long getRecentCalls();
+
+  double getRecentThrottleRate();
+
+  long getRecentP50LatencyMs();
+
+  long getRecentP95LatencyMs();
+
+  long getRecentP99LatencyMs();
+
+  /**
+   * @return one line per operation, region and outcome
+   */
+  String[] getOperations();
+}
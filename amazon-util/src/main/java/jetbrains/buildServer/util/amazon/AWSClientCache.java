@@ -0,0 +1,165 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.util.amazon;
+
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.Request;
+import com.amazonaws.handlers.RequestHandler2;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide (i.e. agent-wide or server-wide) cache of AWS service clients.
+ * <p>
+ * Each client owns an HTTP connection pool, so reusing clients between build steps keeps
+ * connections and TLS sessions warm. Clients are keyed by credentials, region and client
+ * configuration. Clients which made no requests for {@link #IDLE_TIMEOUT_MS} are shut down,
+ * so a build which keeps polling a stack never loses its client.
+ * <p>
+ * Cached clients are shared, callers must neither reconfigure nor shut them down.
+ */
+public final class AWSClientCache {
+  static final long IDLE_TIMEOUT_MS = 10 * 60 * 1000;
+  private static final long EVICTION_INTERVAL_MS = 60 * 1000;
+
+  private static final AWSClientCache INSTANCE = new AWSClientCache();
+
+  @NotNull
+  private final Map<Key, Entry> myClients = new HashMap<Key, Entry>();
+  private long myLastEviction = System.currentTimeMillis();
+
+  @NotNull
+  public static AWSClientCache getInstance() {
+    return INSTANCE;
+  }
+
+  interface Factory<T extends AmazonWebServiceClient> {
+    @NotNull
+    T create();
+  }
+
+  @NotNull
+  <T extends AmazonWebServiceClient> T get(@NotNull Class<T> type, @NotNull Object credentialsKey, @NotNull String region,
+                                           @NotNull ClientConfiguration config, @NotNull Factory<T> factory) {
+    final Key key = new Key(type, credentialsKey, region, getConfigurationKey(config), config.getRetryPolicy());
+    final long now = System.currentTimeMillis();
+    final List<AmazonWebServiceClient> evicted;
+    final T client;
+    synchronized (myClients) {
+      evicted = evictIdle(now);
+      Entry entry = myClients.get(key);
+      if (entry == null) {
+        entry = new Entry(factory.create());
+        myClients.put(key, entry);
+      }
+      entry.touch();
+      client = type.cast(entry.myClient);
+    }
+    shutdown(evicted);
+    return client;
+  }
+
+  /**
+   * Shuts down all cached clients, must be called when the agent or the server stops.
+   * <p>
+   * The cache stays usable: the instance is static and outlives the Spring context, so clients
+   * requested after a context restart are cached again and shut down by the next call.
+   */
+  public void shutdown() {
+    final List<AmazonWebServiceClient> clients = new ArrayList<AmazonWebServiceClient>();
+    synchronized (myClients) {
+      for (Entry entry : myClients.values()) {
+        clients.add(entry.myClient);
+      }
+      myClients.clear();
+    }
+    shutdown(clients);
+  }
+
+  @NotNull
+  private List<AmazonWebServiceClient> evictIdle(long now) {
+    if (now - myLastEviction < EVICTION_INTERVAL_MS) return Collections.emptyList();
+    myLastEviction = now;
+
+    final List<AmazonWebServiceClient> evicted = new ArrayList<AmazonWebServiceClient>();
+    for (Iterator<Entry> it = myClients.values().iterator(); it.hasNext(); ) {
+      final Entry entry = it.next();
+      if (now - entry.myLastUsed.get() > IDLE_TIMEOUT_MS) {
+        evicted.add(entry.myClient);
+        it.remove();
+      }
+    }
+    return evicted;
+  }
+
+  private static void shutdown(@NotNull Collection<AmazonWebServiceClient> clients) {
+    for (AmazonWebServiceClient client : clients) {
+      client.shutdown();
+    }
+  }
+
+  @NotNull
+  private static String getConfigurationKey(@NotNull ClientConfiguration config) {
+    return config.getProtocol() + " " + config.getProxyHost() + ":" + config.getProxyPort() + " " + config.getUserAgent() + " " +
+           config.getMaxConnections() + " " + config.getConnectionTimeout() + " " + config.getSocketTimeout() + " " +
+           config.getConnectionTTL() + " " + config.getRequestTimeout() + " " + config.getClientExecutionTimeout() + " " +
+           config.useTcpKeepAlive() + " " + config.useGzip() + " " + config.getMaxErrorRetry();
+  }
+
+  private static final class Entry {
+    @NotNull
+    private final AmazonWebServiceClient myClient;
+    @NotNull
+    private final AtomicLong myLastUsed = new AtomicLong();
+
+    private Entry(@NotNull AmazonWebServiceClient client) {
+      myClient = client;
+      myClient.addRequestHandler(new RequestHandler2() {
+        @Override
+        public void beforeRequest(Request<?> request) {
+          touch();
+        }
+      });
+    }
+
+    private void touch() {
+      myLastUsed.set(System.currentTimeMillis());
+    }
+  }
+
+  private static final class Key {
+    @NotNull
+    private final List<Object> myParts;
+
+    private Key(@NotNull Object... parts) {
+      myParts = Arrays.asList(parts);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return this == o || o instanceof Key && myParts.equals(((Key) o).myParts);
+    }
+
+    @Override
+    public int hashCode() {
+      return myParts.hashCode();
+    }
+  }
+}
@@ -16,45 +16,93 @@
 
 package jetbrains.buildServer.util.amazon;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.AmazonWebServiceRequest;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.AWSSessionCredentials;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.auth.BasicSessionCredentials;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.internal.StaticCredentialsProvider;
 import com.amazonaws.regions.Region;
+import com.amazonaws.retry.RetryPolicy;
 import com.amazonaws.services.cloudformation.AmazonCloudFormationClient;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
 import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceClient;
 import com.amazonaws.services.securitytoken.model.AssumeRoleRequest;
 import com.amazonaws.services.securitytoken.model.Credentials;
+import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.version.ServerVersionHolder;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
 public class AWSClients {
 
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(AWSClients.class.getName());
+
+  private static final String DEFAULT_CREDENTIAL_PROVIDER_CHAIN = "default credential provider chain";
+  // each distinct profile is logged once, not on every build step
+  private static final Set<String> LOGGED_TRANSPORT_PROFILES = new HashSet<String>();
+
+  // throttled requests are retried more than other errors would need, the rate limiter keeps the retries from piling up
+  private static final int MAX_ERROR_RETRY = 8;
+  private static final long RETRY_BASE_DELAY_MS = 500;
+  private static final long RETRY_MAX_DELAY_MS = 20000;
+  // shared, so that the clients cached in AWSClientCache don't differ by the policy instance
+  private static final RetryPolicy RETRY_POLICY = new RetryPolicy(new RetryPolicy.RetryCondition() {
+    @Override
+    public boolean shouldRetry(AmazonWebServiceRequest originalRequest, AmazonClientException exception, int retriesAttempted) {
+      return AWSException.isRetryable(exception);
+    }
+  }, new DecorrelatedJitterBackoffStrategy(RETRY_BASE_DELAY_MS, RETRY_MAX_DELAY_MS), MAX_ERROR_RETRY, true);
+
   @Nullable
   private final AWSCredentials myCredentials;
+  @Nullable
+  private final AWSCredentialsProvider myCredentialsProvider;
   @NotNull
   private final Region myRegion;
   @NotNull
+  private final AWSTransportProfile myTransportProfile;
+  @NotNull
   private final ClientConfiguration myClientConfiguration;
 
-  private AWSClients(@Nullable AWSCredentials credentials, @NotNull String region) {
+  private AWSClients(@Nullable AWSCredentials credentials, @Nullable AWSCredentialsProvider credentialsProvider, @NotNull String region) {
+    this(credentials, credentialsProvider, region, AWSTransportProfile.getDefault());
+  }
+
+  private AWSClients(@Nullable AWSCredentials credentials, @Nullable AWSCredentialsProvider credentialsProvider, @NotNull String region,
+                     @NotNull AWSTransportProfile transportProfile) {
     myCredentials = credentials;
+    myCredentialsProvider = credentialsProvider;
     myRegion = AWSRegions.getRegion(region);
-    myClientConfiguration = createClientConfiguration();
+    myTransportProfile = transportProfile;
+    myClientConfiguration = createClientConfiguration(transportProfile);
   }
 
   @NotNull
   public static AWSClients fromExistingCredentials(@NotNull AWSCredentials credentials, @NotNull String region) {
-    return new AWSClients(credentials, region);
+    return new AWSClients(credentials, null, region);
+  }
+
+  @NotNull
+  public static AWSClients fromCredentialsProvider(@NotNull AWSCredentialsProvider credentialsProvider, @NotNull String region) {
+    return new AWSClients(null, credentialsProvider, region);
   }
 
   @NotNull
   public static AWSClients fromDefaultCredentialProviderChain(@NotNull String region) {
-    return new AWSClients(null, region);
+    return new AWSClients(null, null, region);
   }
 
   @NotNull
@@ -62,14 +110,100 @@ public class AWSClients {
     return fromExistingCredentials(new BasicAWSCredentials(accessKeyId, secretAccessKey), region);
   }
 
+  /**
+   * @return clients with the same credentials and region which connect using the given transport settings
+   */
+  @NotNull
+  public AWSClients withTransportProfile(@NotNull AWSTransportProfile transportProfile) {
+    return new AWSClients(myCredentials, myCredentialsProvider, myRegion.getName(), transportProfile);
+  }
+
+  /**
+   * Returns a client shared through {@link AWSClientCache}, it must be neither reconfigured nor shut down
+   */
   @NotNull
   public AmazonCloudFormationClient createCloudFormationClient() {
-    return withRegion(myCredentials == null ? new AmazonCloudFormationClient(myClientConfiguration) : new AmazonCloudFormationClient(myCredentials, myClientConfiguration));
+    final String endpoint = myTransportProfile.getCloudFormationEndpoint();
+    return AWSClientCache.getInstance().get(AmazonCloudFormationClient.class, getCredentialsKey(), getCacheRegion(myRegion.getName(), endpoint), myClientConfiguration,
+        new AWSClientCache.Factory<AmazonCloudFormationClient>() {
+          @NotNull
+          @Override
+          public AmazonCloudFormationClient create() {
+            final AmazonCloudFormationClient client = withEndpoint(withRegion(new AmazonCloudFormationClient(getCredentialsProvider(), myClientConfiguration)), endpoint);
+            client.addRequestHandler(AWSRateLimiter.getInstance(getRateLimitKey(), myRegion.getName(),
+                myTransportProfile.getRequestsPerSecond(), myTransportProfile.getRequestsBurst()));
+            client.addRequestHandler(AWSApiMetrics.getInstance().createRequestHandler(myRegion.getName()));
+            return client;
+          }
+        });
   }
 
+  /**
+   * Returns a client shared through {@link AWSClientCache}, it must be neither reconfigured nor shut down
+   */
+  @NotNull
+  public AmazonS3Client createS3Client() {
+    final String endpoint = myTransportProfile.getS3Endpoint();
+    return AWSClientCache.getInstance().get(AmazonS3Client.class, getCredentialsKey(), getCacheRegion(myRegion.getName(), endpoint), myClientConfiguration,
+        new AWSClientCache.Factory<AmazonS3Client>() {
+          @NotNull
+          @Override
+          public AmazonS3Client create() {
+            final AmazonS3Client client = withEndpoint(withRegion(new AmazonS3Client(getCredentialsProvider(), myClientConfiguration)), endpoint);
+            // custom endpoints rarely resolve bucket subdomains
+            if (endpoint != null) client.setS3ClientOptions(S3ClientOptions.builder().setPathStyleAccess(true).build());
+            client.addRequestHandler(AWSApiMetrics.getInstance().createRequestHandler(myRegion.getName()));
+            return client;
+          }
+        });
+  }
+
+  /**
+   * Returns a client shared through {@link AWSClientCache}, it must be neither reconfigured nor shut down
+   */
   @NotNull
   public AWSSecurityTokenServiceClient createSecurityTokenServiceClient() {
-    return myCredentials == null ? new AWSSecurityTokenServiceClient(myClientConfiguration) : new AWSSecurityTokenServiceClient(myCredentials, myClientConfiguration);
+    // STS client uses the global endpoint, so region doesn't matter
+    final String endpoint = myTransportProfile.getStsEndpoint();
+    return AWSClientCache.getInstance().get(AWSSecurityTokenServiceClient.class, getCredentialsKey(), getCacheRegion("global", endpoint), myClientConfiguration,
+        new AWSClientCache.Factory<AWSSecurityTokenServiceClient>() {
+          @NotNull
+          @Override
+          public AWSSecurityTokenServiceClient create() {
+            final AWSSecurityTokenServiceClient client = withEndpoint(new AWSSecurityTokenServiceClient(getCredentialsProvider(), myClientConfiguration), endpoint);
+            client.addRequestHandler(AWSApiMetrics.getInstance().createRequestHandler("global"));
+            return client;
+          }
+        });
+  }
+
+  @NotNull
+  private AWSCredentialsProvider getCredentialsProvider() {
+    if (myCredentialsProvider != null) return myCredentialsProvider;
+    return myCredentials == null ? new DefaultAWSCredentialsProviderChain() : new StaticCredentialsProvider(myCredentials);
+  }
+
+  /**
+   * Clients created with equal keys may be shared, the key never triggers credentials resolution
+   */
+  @NotNull
+  Object getCredentialsKey() {
+    // providers are created per build, clients are shared by all the builds assuming the same role
+    if (myCredentialsProvider instanceof AWSSessionCredentialsProvider) return ((AWSSessionCredentialsProvider) myCredentialsProvider).getKey();
+    if (myCredentialsProvider != null) return myCredentialsProvider;
+    if (myCredentials == null) return DEFAULT_CREDENTIAL_PROVIDER_CHAIN;
+    if (myCredentials instanceof AWSSessionCredentials) return myCredentials;
+    return Arrays.asList(myCredentials.getAWSAccessKeyId(), myCredentials.getAWSSecretKey());
+  }
+
+  /**
+   * Identifies whose API rate limits the requests count against without holding any secrets
+   */
+  @NotNull
+  String getRateLimitKey() {
+    if (myCredentialsProvider instanceof AWSSessionCredentialsProvider) return "role:" + ((AWSSessionCredentialsProvider) myCredentialsProvider).getRoleArn();
+    if (myCredentials != null) return "key:" + myCredentials.getAWSAccessKeyId();
+    return "default";
   }
 
   @NotNull
@@ -82,18 +216,44 @@ public class AWSClients {
     return client.withRegion(myRegion);
   }
 
+  @NotNull
+  private static <T extends AmazonWebServiceClient> T withEndpoint(@NotNull T client, @Nullable String endpoint) {
+    if (endpoint != null) client.setEndpoint(endpoint);
+    return client;
+  }
+
+  /**
+   * Clients with overridden endpoints mustn't be shared with the regular ones
+   */
+  @NotNull
+  private static String getCacheRegion(@NotNull String region, @Nullable String endpoint) {
+    return endpoint == null ? region : region + "@" + endpoint;
+  }
+
   @NotNull
   public AWSSessionCredentials createSessionCredentials(@NotNull String iamRoleARN, @Nullable String externalID, @NotNull String sessionName, int sessionDuration) throws AWSException {
+    return toSessionCredentials(assumeRole(iamRoleARN, externalID, sessionName, sessionDuration));
+  }
+
+  /**
+   * @return temporary credentials along with their expiration time
+   */
+  @NotNull
+  Credentials assumeRole(@NotNull String iamRoleARN, @Nullable String externalID, @NotNull String sessionName, int sessionDuration) throws AWSException {
     final AssumeRoleRequest assumeRoleRequest = new AssumeRoleRequest().withRoleArn(iamRoleARN).withRoleSessionName(sessionName).withDurationSeconds(sessionDuration);
     if (StringUtil.isNotEmpty(externalID)) assumeRoleRequest.setExternalId(externalID);
     try {
-      final Credentials credentials = createSecurityTokenServiceClient().assumeRole(assumeRoleRequest).getCredentials();
-      return new BasicSessionCredentials(credentials.getAccessKeyId(), credentials.getSecretAccessKey(), credentials.getSessionToken());
+      return createSecurityTokenServiceClient().assumeRole(assumeRoleRequest).getCredentials();
     } catch (Exception e) {
       throw new AWSException(e);
     }
   }
 
+  @NotNull
+  static AWSSessionCredentials toSessionCredentials(@NotNull Credentials credentials) {
+    return new BasicSessionCredentials(credentials.getAccessKeyId(), credentials.getSecretAccessKey(), credentials.getSessionToken());
+  }
+
   public static final String UNSUPPORTED_SESSION_NAME_CHARS = "[^\\w+=,.@-]";
   public static final int MAX_SESSION_NAME_LENGTH = 64;
 
@@ -103,14 +263,12 @@ public class AWSClients {
   }
 
   @NotNull
-  private static ClientConfiguration createClientConfiguration() {
-	String proxyHost = System.getenv("PROXY_HOST");
-	int proxyPort = Integer.parseInt(System.getenv("PROXY_PORT"));
-	ClientConfiguration config = new ClientConfiguration();
-	if ( proxyHost != null ) {
-	  config.setProxyHost(proxyHost);
-	  config.setProxyPort(proxyPort);
+  private static ClientConfiguration createClientConfiguration(@NotNull AWSTransportProfile transportProfile) {
+	if (LOG.isDebugEnabled()) {
+	  synchronized (LOGGED_TRANSPORT_PROFILES) {
+		if (LOGGED_TRANSPORT_PROFILES.add(transportProfile.toString())) LOG.debug("Using AWS transport profile: " + transportProfile);
+	  }
 	}
-	return config.withUserAgent("JetBrains TeamCity " + ServerVersionHolder.getVersion().getDisplayVersion()); 
+	return transportProfile.createClientConfiguration("JetBrains TeamCity " + ServerVersionHolder.getVersion().getDisplayVersion(), RETRY_POLICY);
   }
 }
@@ -16,7 +16,6 @@
 
 package jetbrains.buildServer.util.amazon;
 
-import com.amazonaws.auth.AWSSessionCredentials;
 import jetbrains.buildServer.parameters.ReferencesResolverUtil;
 import jetbrains.buildServer.serverSide.ServerSettings;
 import jetbrains.buildServer.util.CollectionsUtil;
@@ -94,10 +93,8 @@ public final class AWSCommonParams {
       invalids.put(REGION_NAME_PARAM, REGION_NAME_LABEL + " mustn't be empty");
     } else {
       if (!isReference(regionName, acceptReferences)) {
-        try {
-          AWSRegions.getRegion(regionName);
-        } catch (IllegalArgumentException e) {
-          invalids.put(REGION_NAME_PARAM, e.getMessage());
+        if (!AWSRegions.isSupported(regionName)) {
+          invalids.put(REGION_NAME_PARAM, AWSRegions.getUnsupportedRegionMessage(regionName));
         }
       }
     }
@@ -126,7 +123,7 @@ public final class AWSCommonParams {
   }
 
   @Nullable
-  private static String getSecretAccessKey(@NotNull Map<String, String> params) {
+  public static String getSecretAccessKey(@NotNull Map<String, String> params) {
     final String secretAccessKeyParam = params.get(SECURE_SECRET_ACCESS_KEY_PARAM);
     return StringUtil.isNotEmpty(secretAccessKeyParam) ? secretAccessKeyParam : params.get(SECRET_ACCESS_KEY_PARAM);
   }
@@ -150,35 +147,26 @@ public final class AWSCommonParams {
     final String regionName = getRegionName(params);
 
     final boolean useDefaultCredProvChain = Boolean.parseBoolean(params.get(USE_DEFAULT_CREDENTIAL_PROVIDER_CHAIN_PARAM));
+    final AWSTransportProfile transportProfile = AWSTransportProfile.fromProperties(params);
 
     final AWSClients awsClients =
-        useDefaultCredProvChain ?
+        (useDefaultCredProvChain ?
             fromDefaultCredentialProviderChain(regionName) :
-            fromBasicCredentials(params.get(ACCESS_KEY_ID_PARAM), getSecretAccessKey(params), regionName);
+            fromBasicCredentials(params.get(ACCESS_KEY_ID_PARAM), getSecretAccessKey(params), regionName)).withTransportProfile(transportProfile);
 
     return
-        TEMP_CREDENTIALS_OPTION.equals(params.get(CREDENTIALS_TYPE_PARAM)) ? createTempAWSClients(awsClients, params, lazy) : awsClients;
+        TEMP_CREDENTIALS_OPTION.equals(params.get(CREDENTIALS_TYPE_PARAM)) ? createTempAWSClients(awsClients, params, transportProfile, lazy) : awsClients;
   }
 
   @NotNull
-  private static AWSClients createTempAWSClients(@NotNull final AWSClients clients, @NotNull final Map<String, String> params, boolean lazy) {
-    return fromExistingCredentials(
-        lazy ? new LazyCredentials() {
-          @NotNull
-          @Override
-          protected AWSSessionCredentials createCredentials() {
-            return createSessionCredentials(clients, params);
-          }
-        } : createSessionCredentials(clients, params),
-        clients.getRegion());
-  }
-
-  @NotNull
-  private static AWSSessionCredentials createSessionCredentials(@NotNull final AWSClients clients, @NotNull Map<String, String> params) {
-    return clients.createSessionCredentials(
+  private static AWSClients createTempAWSClients(@NotNull final AWSClients clients, @NotNull final Map<String, String> params,
+                                                 @NotNull AWSTransportProfile transportProfile, boolean lazy) {
+    final AWSSessionCredentialsProvider credentialsProvider = AWSSessionCredentialsProvider.getOrCreate(clients,
         params.get(IAM_ROLE_ARN_PARAM), params.get(EXTERNAL_ID_PARAM),
-        patchSessionName(getStringOrDefault(params.get(TEMP_CREDENTIALS_SESSION_NAME_PARAM), TEMP_CREDENTIALS_SESSION_NAME_DEFAULT_PREFIX + new Date().getTime())),
+        StringUtil.isEmptyOrSpaces(params.get(TEMP_CREDENTIALS_SESSION_NAME_PARAM)) ? null : patchSessionName(params.get(TEMP_CREDENTIALS_SESSION_NAME_PARAM)),
         getIntegerOrDefault(params.get(TEMP_CREDENTIALS_DURATION_SEC_PARAM), TEMP_CREDENTIALS_DURATION_SEC_DEFAULT));
+    if (!lazy) credentialsProvider.getCredentials();
+    return fromCredentialsProvider(credentialsProvider, clients.getRegion()).withTransportProfile(transportProfile);
   }
 
   @NotNull
@@ -193,6 +181,20 @@ public final class AWSCommonParams {
     return defaultVal;
   }
 
+  /**
+   * Identifies the account and permissions the params give access to without exposing the secret key.
+   * Builds with equal identities may share AWS clients and API calls.
+   */
+  @NotNull
+  public static String getCredentialsIdentity(@NotNull Map<String, String> params) {
+    final StringBuilder sb = new StringBuilder();
+    sb.append(Boolean.parseBoolean(params.get(USE_DEFAULT_CREDENTIAL_PROVIDER_CHAIN_PARAM)) ? "default" : params.get(ACCESS_KEY_ID_PARAM));
+    if (TEMP_CREDENTIALS_OPTION.equals(params.get(CREDENTIALS_TYPE_PARAM))) {
+      sb.append(' ').append(params.get(IAM_ROLE_ARN_PARAM)).append(' ').append(params.get(EXTERNAL_ID_PARAM));
+    }
+    return sb.toString();
+  }
+
   public static int calculateIdentity(@NotNull String baseDir, @NotNull Map<String, String> params, @NotNull Collection<String> otherParts) {
     return calculateIdentity(baseDir, params, CollectionsUtil.toStringArray(otherParts));
   }
@@ -219,34 +221,4 @@ public final class AWSCommonParams {
   private static Collection<String> getIdentityFormingParams(@NotNull Map<String, String> params) {
     return Arrays.asList(getRegionName(params), params.get(ACCESS_KEY_ID_PARAM), params.get(IAM_ROLE_ARN_LABEL));
   }
-
-  // must implement AWSSessionCredentials as AWS SDK may use "instanceof"
-  private static abstract class LazyCredentials implements AWSSessionCredentials {
-    @Nullable
-    private AWSSessionCredentials myDelegate = null;
-
-    @Override
-    public String getAWSAccessKeyId() {
-      return getDelegate().getAWSAccessKeyId();
-    }
-
-    @Override
-    public String getAWSSecretKey() {
-      return getDelegate().getAWSSecretKey();
-    }
-
-    @Override
-    public String getSessionToken() {
-      return getDelegate().getSessionToken();
-    }
-
-    @NotNull
-    private AWSSessionCredentials getDelegate() {
-      if (myDelegate == null) myDelegate = createCredentials();
-      return myDelegate;
-    }
-
-    @NotNull
-    protected abstract AWSSessionCredentials createCredentials();
-  }
 }
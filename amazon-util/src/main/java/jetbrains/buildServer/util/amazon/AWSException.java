@@ -22,7 +22,11 @@ import jetbrains.buildServer.util.CollectionsUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 public class AWSException extends RuntimeException {
 
@@ -36,6 +40,10 @@ public class AWSException extends RuntimeException {
       CLIENT_PROBLEM_TYPE, "Amazon client exception",
       EXCEPTION_BUILD_PROBLEM_TYPE, "Amazon unexpected exception");
 
+  private static final Set<String> THROTTLING_ERROR_CODES = new HashSet<String>(Arrays.asList(
+      "Throttling", "ThrottlingException", "ThrottledException", "RequestThrottledException", "RequestThrottled",
+      "TooManyRequestsException", "RequestLimitExceeded", "SlowDown", "PriorRequestNotComplete"));
+
   @Nullable
   private final String myIdentity;
   @NotNull
@@ -99,6 +107,26 @@ public class AWSException extends RuntimeException {
     return null;
   }
 
+  /**
+   * @return true if the request was rejected because of the API rate limits
+   */
+  public static boolean isThrottling(@NotNull Throwable t) {
+    if (t instanceof AWSException && t.getCause() != null) return isThrottling(t.getCause());
+    if (!(t instanceof AmazonServiceException)) return false;
+    final AmazonServiceException ase = (AmazonServiceException) t;
+    return ase.getStatusCode() == 429 || THROTTLING_ERROR_CODES.contains(ase.getErrorCode());
+  }
+
+  /**
+   * @return true if the same request may succeed later: throttling, service side errors and connection failures
+   */
+  public static boolean isRetryable(@NotNull Throwable t) {
+    if (t instanceof AWSException && t.getCause() != null) return isRetryable(t.getCause());
+    if (isThrottling(t)) return true;
+    if (t instanceof AmazonServiceException) return ((AmazonServiceException) t).getStatusCode() >= 500;
+    return t instanceof AmazonClientException && t.getCause() instanceof IOException;
+  }
+
   @Nullable
   private static String removeTrailingDot(@Nullable String msg) {
     return (msg != null && msg.endsWith(".")) ? msg.substring(0, msg.length() - 1) : msg;
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.util.amazon;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.Request;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide token bucket limiting the rate of requests made with the same credentials in the same region.
+ * <p>
+ * Concurrent builds polling their stacks otherwise hit the account API limits together and get throttled.
+ * Each attempt, including SDK retries, takes a token. An attempt which finds the bucket empty reserves the
+ * next token and waits for it, so requests are served in arrival order and bursts are smoothed out instead
+ * of being rejected. Limiters unused for longer than the cached clients are dropped.
+ * <p>
+ * Only the CloudFormation client is limited, S3 uploads and STS calls have limits of their own. The rate and
+ * the burst come from {@link AWSTransportProfile}, when clients with different settings share a limiter, the
+ * settings of the most recently created client apply.
+ */
+final class AWSRateLimiter extends RequestHandler2 {
+  // clients are evicted after AWSClientCache.IDLE_TIMEOUT_MS, a live client must never lose its limiter
+  private static final long IDLE_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(2 * AWSClientCache.IDLE_TIMEOUT_MS);
+
+  /**
+   * Time the attempts of a request spent waiting for tokens
+   */
+  static final HandlerContextKey<AtomicLong> WAITED_NANOS = new HandlerContextKey<AtomicLong>("teamcity.rateLimiter.waited");
+
+  private static final Map<List<String>, AWSRateLimiter> LIMITERS = new HashMap<List<String>, AWSRateLimiter>();
+
+  private double myTokensPerNano;
+  private double myCapacity;
+  private double myTokens;
+  private long myRefilledAt = System.nanoTime();
+
+  AWSRateLimiter(double requestsPerSec, double burst) {
+    configure(requestsPerSec, burst);
+    myTokens = burst;
+  }
+
+  private synchronized void configure(double requestsPerSec, double burst) {
+    myTokensPerNano = requestsPerSec / TimeUnit.SECONDS.toNanos(1);
+    myCapacity = burst;
+    myTokens = Math.min(myTokens, burst);
+  }
+
+  /**
+   * @param rateLimitKey identifies the account or the role, must not contain secrets as limiters live long
+   */
+  @NotNull
+  static AWSRateLimiter getInstance(@NotNull String rateLimitKey, @NotNull String region, int requestsPerSec, int burst) {
+    final List<String> key = Arrays.asList(rateLimitKey, region);
+    synchronized (LIMITERS) {
+      evictIdle();
+      AWSRateLimiter limiter = LIMITERS.get(key);
+      if (limiter == null) {
+        limiter = new AWSRateLimiter(requestsPerSec, burst);
+        LIMITERS.put(key, limiter);
+      } else {
+        limiter.configure(requestsPerSec, burst);
+      }
+      return limiter;
+    }
+  }
+
+  private static void evictIdle() {
+    final long now = System.nanoTime();
+    for (Iterator<AWSRateLimiter> it = LIMITERS.values().iterator(); it.hasNext(); ) {
+      if (it.next().isIdle(now)) it.remove();
+    }
+  }
+
+  private synchronized boolean isIdle(long now) {
+    return now - myRefilledAt > IDLE_TIMEOUT_NANOS;
+  }
+
+  @Override
+  public void beforeRequest(Request<?> request) {
+    request.addHandlerContext(WAITED_NANOS, new AtomicLong());
+  }
+
+  @Override
+  public void beforeAttempt(HandlerBeforeAttemptContext context) {
+    try {
+      final long waitedNanos = acquire();
+      final AtomicLong waited = context.getRequest().getHandlerContext(WAITED_NANOS);
+      if (waited != null) waited.addAndGet(waitedNanos);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AbortedException("Interrupted while waiting for the request rate limit");
+    }
+  }
+
+  /**
+   * Blocks until a token is available
+   *
+   * @return time waited in nanoseconds
+   */
+  long acquire() throws InterruptedException {
+    final long waitNanos;
+    synchronized (this) {
+      final long now = System.nanoTime();
+      myTokens = Math.min(myCapacity, myTokens + (now - myRefilledAt) * myTokensPerNano);
+      myRefilledAt = now;
+      myTokens -= 1;
+      if (myTokens >= 0) return 0;
+      // the token is reserved, the debt is paid off by waiting
+      waitNanos = (long) (-myTokens / myTokensPerNano);
+    }
+    TimeUnit.NANOSECONDS.sleep(waitNanos);
+    return waitNanos;
+  }
+}
@@ -17,14 +17,24 @@
 package jetbrains.buildServer.util.amazon;
 
 import com.amazonaws.regions.Region;
-import com.amazonaws.regions.Regions;
+import com.amazonaws.regions.RegionUtils;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.Collections;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.*;
 
+/**
+ * Index of the supported regions, built once from the SDK endpoint metadata.
+ * <p>
+ * Lookups are plain map reads and never throw, so they are cheap enough for validating parameters on every request.
+ * Regions listed in {@link #REGION_NAMES_FOR_WEB} are supported even if the SDK metadata predates them, their endpoints
+ * are resolved by the partition they belong to.
+ */
 public final class AWSRegions {
+  private static final String CLOUDFORMATION = "cloudformation";
+  private static final String S3 = "s3";
+
+  // display names, the SDK metadata doesn't provide them
   private static final Map<String, String> REGION_NAMES_FOR_WEB;
 
   static {
@@ -49,24 +59,150 @@ public final class AWSRegions {
     REGION_NAMES_FOR_WEB.put("ap-south-1", "Asia Pacific (Mumbai)");
   }
 
+  private static final Map<String, RegionInfo> INDEX = buildIndex();
+  private static final Map<String, String> ALL_REGIONS = buildDisplayNames();
+
   @NotNull
   public static String getRegionNameForWeb(@NotNull String regionCode) {
-    final String niceName = REGION_NAMES_FOR_WEB.get(regionCode);
-    return niceName == null ? regionCode : niceName;
+    final RegionInfo info = INDEX.get(regionCode);
+    return info == null ? regionCode : info.getDisplayName();
   }
 
+  /**
+   * @return region names mapped to their display names, regions known by name first
+   */
   @NotNull
   public static Map<String, String> getAllRegions() {
-    return Collections.unmodifiableMap(REGION_NAMES_FOR_WEB);
+    return ALL_REGIONS;
+  }
+
+  /**
+   * @return the region or null if it isn't supported
+   */
+  @Nullable
+  public static RegionInfo findRegion(@Nullable String regionName) {
+    return regionName == null ? null : INDEX.get(regionName);
+  }
+
+  public static boolean isSupported(@Nullable String regionName) {
+    return findRegion(regionName) != null;
+  }
+
+  @NotNull
+  public static RegionInfo getRegionInfo(@NotNull String regionName) throws IllegalArgumentException {
+    final RegionInfo info = INDEX.get(regionName);
+    if (info == null) throw new IllegalArgumentException(getUnsupportedRegionMessage(regionName));
+    return info;
   }
 
   @NotNull
   public static Region getRegion(@NotNull String regionName) throws IllegalArgumentException {
-    try {
-      return Region.getRegion(Regions.fromName(regionName));
-    } catch (Exception e) {
-      // see below
+    return getRegionInfo(regionName).getRegion();
+  }
+
+  @NotNull
+  public static String getUnsupportedRegionMessage(@NotNull String regionName) {
+    return "Unsupported region name " + regionName;
+  }
+
+  @NotNull
+  private static Map<String, RegionInfo> buildIndex() {
+    final Map<String, Region> regions = new TreeMap<String, Region>();
+    for (Region region : RegionUtils.getRegions()) {
+      if (region.isServiceSupported(CLOUDFORMATION)) regions.put(region.getName(), region);
+    }
+
+    final Map<String, RegionInfo> index = new LinkedHashMap<String, RegionInfo>();
+    for (String name : REGION_NAMES_FOR_WEB.keySet()) {
+      Region region = regions.remove(name);
+      if (region == null) region = RegionUtils.getRegion(name); // matched by the partition region pattern
+      if (region != null) index.put(name, new RegionInfo(region, REGION_NAMES_FOR_WEB.get(name)));
+    }
+    for (Region region : regions.values()) {
+      index.put(region.getName(), new RegionInfo(region, region.getName()));
+    }
+    return Collections.unmodifiableMap(index);
+  }
+
+  @NotNull
+  private static Map<String, String> buildDisplayNames() {
+    final Map<String, String> names = new LinkedHashMap<String, String>();
+    for (RegionInfo info : INDEX.values()) {
+      names.put(info.getName(), info.getDisplayName());
+    }
+    return Collections.unmodifiableMap(names);
+  }
+
+  /**
+   * Supported region with its partition and endpoints resolved
+   */
+  public static final class RegionInfo {
+    @NotNull
+    private final Region myRegion;
+    @NotNull
+    private final String myDisplayName;
+    @NotNull
+    private final String myCloudFormationEndpoint;
+    @NotNull
+    private final String myS3Endpoint;
+
+    private RegionInfo(@NotNull Region region, @NotNull String displayName) {
+      myRegion = region;
+      myDisplayName = displayName;
+      myCloudFormationEndpoint = region.getServiceEndpoint(CLOUDFORMATION);
+      myS3Endpoint = region.getServiceEndpoint(S3);
+    }
+
+    @NotNull
+    public Region getRegion() {
+      return myRegion;
+    }
+
+    @NotNull
+    public String getName() {
+      return myRegion.getName();
+    }
+
+    @NotNull
+    public String getDisplayName() {
+      return myDisplayName;
+    }
+
+    /**
+     * @return e.g. aws, aws-cn or aws-us-gov
+     */
+    @NotNull
+    public String getPartition() {
+      return myRegion.getPartition();
+    }
+
+    /**
+     * @return host name of the CloudFormation endpoint
+     */
+    @NotNull
+    public String getCloudFormationEndpoint() {
+      return myCloudFormationEndpoint;
+    }
+
+    /**
+     * @return host name of the S3 endpoint
+     */
+    @NotNull
+    public String getS3Endpoint() {
+      return myS3Endpoint;
+    }
+
+    /**
+     * @return path-style HTTPS URL of the S3 object, as CloudFormation accepts template URLs
+     */
+    @NotNull
+    public String getS3ObjectUrl(@NotNull String bucketName, @NotNull String key) {
+      return "https://" + myS3Endpoint + "/" + bucketName + "/" + key;
+    }
+
+    @Override
+    public String toString() {
+      return getName() + " (" + getPartition() + ")";
     }
-    throw new IllegalArgumentException("Unsupported region name " + regionName);
   }
 }
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.util.amazon;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSSessionCredentials;
+import com.amazonaws.services.securitytoken.model.Credentials;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Provides temporary credentials of an assumed IAM role.
+ * <p>
+ * Providers are cached per base credentials, role ARN, external ID, session name and region, so build
+ * steps using the same role share one session instead of calling AssumeRole each time. Session names
+ * must therefore be stable, e.g. the build configuration ID rather than the build ID: the builds of a
+ * configuration share its session, and CloudTrail still attributes the calls to the configuration.
+ * The session is renewed in background {@link #REFRESH_BEFORE_EXPIRY_SEC} seconds before it expires
+ * according to the AssumeRole response, which keeps long stack waits alive. Providers nobody asked for
+ * credentials during a whole session are dropped.
+ */
+public final class AWSSessionCredentialsProvider implements AWSCredentialsProvider {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(AWSSessionCredentialsProvider.class.getName());
+
+  static final int REFRESH_BEFORE_EXPIRY_SEC = 300;
+  private static final int RETRY_DELAY_SEC = 30;
+
+  private static final Map<List<Object>, AWSSessionCredentialsProvider> CACHE = new HashMap<List<Object>, AWSSessionCredentialsProvider>();
+  private static final ScheduledExecutorService REFRESHER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(@NotNull Runnable r) {
+      final Thread thread = new Thread(r, "AWS session credentials refresher");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  @NotNull
+  private final List<Object> myKey;
+  @NotNull
+  private final AWSClients myClients;
+  @NotNull
+  private final String myRoleArn;
+  @Nullable
+  private final String myExternalId;
+  @Nullable
+  private final String mySessionName;
+  private final int mySessionDurationSec;
+
+  @Nullable
+  private volatile Session mySession;
+  private volatile boolean myUsed;
+  @Nullable
+  private ScheduledFuture<?> myRefresh;
+
+  private AWSSessionCredentialsProvider(@NotNull List<Object> key, @NotNull AWSClients clients, @NotNull String roleArn, @Nullable String externalId,
+                                        @Nullable String sessionName, int sessionDurationSec) {
+    myKey = key;
+    myClients = clients;
+    myRoleArn = roleArn;
+    myExternalId = externalId;
+    mySessionName = sessionName;
+    mySessionDurationSec = sessionDurationSec;
+  }
+
+  /**
+   * @param clients     clients holding the credentials to assume the role with
+   * @param sessionName configured session name, null to generate a new one for each session
+   */
+  @NotNull
+  static AWSSessionCredentialsProvider getOrCreate(@NotNull AWSClients clients, @NotNull String roleArn, @Nullable String externalId,
+                                                   @Nullable String sessionName, int sessionDurationSec) {
+    final List<Object> key = Arrays.asList(clients.getCredentialsKey(), roleArn, externalId, sessionName, clients.getRegion());
+    synchronized (CACHE) {
+      AWSSessionCredentialsProvider provider = CACHE.get(key);
+      if (provider == null || provider.mySessionDurationSec != sessionDurationSec) {
+        provider = new AWSSessionCredentialsProvider(key, clients, roleArn, externalId, sessionName, sessionDurationSec);
+        CACHE.put(key, provider);
+      }
+      return provider;
+    }
+  }
+
+  /**
+   * @return base credentials key, role ARN, external ID, session name and region, equal for interchangeable providers
+   */
+  @NotNull
+  List<Object> getKey() {
+    return myKey;
+  }
+
+  @NotNull
+  String getRoleArn() {
+    return myRoleArn;
+  }
+
+  @Override
+  public AWSCredentials getCredentials() {
+    myUsed = true;
+    final Session session = mySession;
+    if (session != null && !session.expiresWithin(REFRESH_BEFORE_EXPIRY_SEC / 2)) return session.myCredentials;
+    return renew(session).myCredentials;
+  }
+
+  @Override
+  public void refresh() {
+    renew(mySession);
+  }
+
+  @NotNull
+  private synchronized Session renew(@Nullable Session stale) {
+    final Session current = mySession;
+    if (current != null && current != stale) return current; // renewed by another thread meanwhile
+
+    final long start = System.currentTimeMillis();
+    final String sessionName = mySessionName == null ? AWSCommonParams.TEMP_CREDENTIALS_SESSION_NAME_DEFAULT_PREFIX + start : mySessionName;
+    final Credentials credentials = myClients.assumeRole(myRoleArn, myExternalId, sessionName, mySessionDurationSec);
+    // STS may grant a shorter session than requested, e.g. when chaining roles
+    final long expiresAt = credentials.getExpiration() == null ? start + mySessionDurationSec * 1000L : credentials.getExpiration().getTime();
+    final Session session = new Session(AWSClients.toSessionCredentials(credentials), expiresAt);
+    mySession = session;
+    scheduleRefresh(Math.max(RETRY_DELAY_SEC, (expiresAt - System.currentTimeMillis()) / 1000 - REFRESH_BEFORE_EXPIRY_SEC));
+    return session;
+  }
+
+  private synchronized void scheduleRefresh(long delaySec) {
+    if (myRefresh != null) myRefresh.cancel(false);
+    try {
+      myRefresh = REFRESHER.schedule(new Runnable() {
+        @Override
+        public void run() {
+          refreshInBackground();
+        }
+      }, delaySec, TimeUnit.SECONDS);
+    } catch (RejectedExecutionException e) {
+      // credentials will be renewed on demand
+    }
+  }
+
+  private void refreshInBackground() {
+    if (!myUsed) {
+      synchronized (CACHE) {
+        if (CACHE.get(myKey) == this) CACHE.remove(myKey);
+      }
+      return;
+    }
+    myUsed = false;
+    try {
+      renew(mySession);
+    } catch (AWSException e) {
+      LOG.warn("Failed to renew temporary credentials for " + myRoleArn + ", will retry in " + RETRY_DELAY_SEC + " seconds: " + e.getMessage());
+      myUsed = true;
+      scheduleRefresh(RETRY_DELAY_SEC);
+    }
+  }
+
+  private static final class Session {
+    @NotNull
+    private final AWSSessionCredentials myCredentials;
+    private final long myExpiresAt;
+
+    private Session(@NotNull AWSSessionCredentials credentials, long expiresAt) {
+      myCredentials = credentials;
+      myExpiresAt = expiresAt;
+    }
+
+    private boolean expiresWithin(int sec) {
+      return System.currentTimeMillis() + sec * 1000L >= myExpiresAt;
+    }
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.util.amazon;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.retry.RetryPolicy;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * HTTP transport settings of AWS clients.
+ * <p>
+ * Each setting is taken from the given properties (build configuration parameters on the agent), then from TeamCity
+ * internal properties, then the default is used. The defaults favour failing fast over the SDK ones: a connection
+ * which got stuck behind a slow NAT fails within seconds and is retried instead of hanging a stack wait for minutes.
+ * The proxy may also be set with the PROXY_HOST and PROXY_PORT environment variables.
+ * <p>
+ * Service endpoints may be overridden, e.g. to point the clients at a local simulator.
+ */
+public final class AWSTransportProfile {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(AWSTransportProfile.class.getName());
+
+  public static final String PROPERTY_PREFIX = "teamcity.aws.transport.";
+  static final String MAX_CONNECTIONS = PROPERTY_PREFIX + "maxConnections";
+  static final String CONNECTION_TIMEOUT_MS = PROPERTY_PREFIX + "connectionTimeoutMs";
+  static final String SOCKET_TIMEOUT_MS = PROPERTY_PREFIX + "socketTimeoutMs";
+  static final String REQUEST_TIMEOUT_MS = PROPERTY_PREFIX + "requestTimeoutMs";
+  static final String CONNECTION_TTL_MS = PROPERTY_PREFIX + "connectionTtlMs";
+  static final String TCP_KEEP_ALIVE = PROPERTY_PREFIX + "tcpKeepAlive";
+  static final String GZIP = PROPERTY_PREFIX + "gzip";
+  static final String MAX_ERROR_RETRY = PROPERTY_PREFIX + "maxErrorRetry";
+  static final String PROXY_HOST = PROPERTY_PREFIX + "proxyHost";
+  static final String PROXY_PORT = PROPERTY_PREFIX + "proxyPort";
+  public static final String CLOUDFORMATION_ENDPOINT = PROPERTY_PREFIX + "cloudformationEndpoint";
+  public static final String STS_ENDPOINT = PROPERTY_PREFIX + "stsEndpoint";
+  public static final String S3_ENDPOINT = PROPERTY_PREFIX + "s3Endpoint";
+  static final String REQUESTS_PER_SECOND = PROPERTY_PREFIX + "requestsPerSecond";
+  static final String REQUESTS_BURST = PROPERTY_PREFIX + "requestsBurst";
+
+  private static final String PROXY_HOST_ENV = "PROXY_HOST";
+  private static final String PROXY_PORT_ENV = "PROXY_PORT";
+
+  private final int myMaxConnections;
+  private final int myConnectionTimeoutMs;
+  private final int mySocketTimeoutMs;
+  private final int myRequestTimeoutMs;
+  private final long myConnectionTtlMs;
+  private final boolean myTcpKeepAlive;
+  private final boolean myGzip;
+  private final int myMaxErrorRetry;
+  @Nullable
+  private final String myProxyHost;
+  private final int myProxyPort;
+  @Nullable
+  private final String myCloudFormationEndpoint;
+  @Nullable
+  private final String myStsEndpoint;
+  @Nullable
+  private final String myS3Endpoint;
+  private final int myRequestsPerSecond;
+  private final int myRequestsBurst;
+
+  private AWSTransportProfile(@NotNull Map<String, String> properties) {
+    myMaxConnections = getInt(properties, MAX_CONNECTIONS, 50);
+    myConnectionTimeoutMs = getInt(properties, CONNECTION_TIMEOUT_MS, 5000);
+    mySocketTimeoutMs = getInt(properties, SOCKET_TIMEOUT_MS, 30000);
+    myRequestTimeoutMs = getInt(properties, REQUEST_TIMEOUT_MS, 60000);
+    // connections are re-established from time to time, so that a NAT dropping idle mappings doesn't leave dead ones in the pool
+    myConnectionTtlMs = getInt(properties, CONNECTION_TTL_MS, 60000);
+    myTcpKeepAlive = Boolean.parseBoolean(getString(properties, TCP_KEEP_ALIVE, "true"));
+    myGzip = Boolean.parseBoolean(getString(properties, GZIP, "true"));
+    myMaxErrorRetry = getInt(properties, MAX_ERROR_RETRY, -1);
+    myProxyHost = StringUtil.nullIfEmpty(getString(properties, PROXY_HOST, System.getenv(PROXY_HOST_ENV)));
+    myProxyPort = getInt(properties, PROXY_PORT, parsePort(System.getenv(PROXY_PORT_ENV)));
+    myCloudFormationEndpoint = StringUtil.nullIfEmpty(getString(properties, CLOUDFORMATION_ENDPOINT, null));
+    myStsEndpoint = StringUtil.nullIfEmpty(getString(properties, STS_ENDPOINT, null));
+    myS3Endpoint = StringUtil.nullIfEmpty(getString(properties, S3_ENDPOINT, null));
+    myRequestsPerSecond = Math.max(1, getInt(properties, REQUESTS_PER_SECOND, 5));
+    myRequestsBurst = Math.max(1, getInt(properties, REQUESTS_BURST, 10));
+  }
+
+  @NotNull
+  public static AWSTransportProfile getDefault() {
+    return fromProperties(Collections.<String, String>emptyMap());
+  }
+
+  @NotNull
+  public static AWSTransportProfile fromProperties(@NotNull Map<String, String> properties) {
+    return new AWSTransportProfile(properties);
+  }
+
+  /**
+   * @param retryPolicy used unless the number of retries is overridden by the profile
+   */
+  @NotNull
+  ClientConfiguration createClientConfiguration(@NotNull String userAgent, @NotNull RetryPolicy retryPolicy) {
+    final ClientConfiguration config = new ClientConfiguration()
+        .withUserAgent(userAgent)
+        .withRetryPolicy(retryPolicy)
+        .withMaxConnections(myMaxConnections)
+        .withConnectionTimeout(myConnectionTimeoutMs)
+        .withSocketTimeout(mySocketTimeoutMs)
+        .withRequestTimeout(myRequestTimeoutMs)
+        .withConnectionTTL(myConnectionTtlMs)
+        .withTcpKeepAlive(myTcpKeepAlive)
+        .withGzip(myGzip);
+    if (myMaxErrorRetry >= 0) config.setMaxErrorRetry(myMaxErrorRetry);
+    if (myProxyHost != null) {
+      config.setProxyHost(myProxyHost);
+      // the scheme default port is used otherwise
+      if (myProxyPort > 0) config.setProxyPort(myProxyPort);
+    }
+    return config;
+  }
+
+  /**
+   * @return endpoint URL to use instead of the regional one, null if not overridden
+   */
+  @Nullable
+  String getCloudFormationEndpoint() {
+    return myCloudFormationEndpoint;
+  }
+
+  @Nullable
+  String getStsEndpoint() {
+    return myStsEndpoint;
+  }
+
+  @Nullable
+  String getS3Endpoint() {
+    return myS3Endpoint;
+  }
+
+  /**
+   * @return rate of CloudFormation requests {@link AWSRateLimiter} allows per credentials and region
+   */
+  int getRequestsPerSecond() {
+    return myRequestsPerSecond;
+  }
+
+  int getRequestsBurst() {
+    return myRequestsBurst;
+  }
+
+  @NotNull
+  private static String getString(@NotNull Map<String, String> properties, @NotNull String key, @Nullable String defaultValue) {
+    final String value = properties.get(key);
+    if (StringUtil.isNotEmpty(value)) return value.trim();
+    final String internal = TeamCityProperties.getPropertyOrNull(key);
+    if (StringUtil.isNotEmpty(internal)) return internal.trim();
+    return defaultValue == null ? "" : defaultValue;
+  }
+
+  private static int getInt(@NotNull Map<String, String> properties, @NotNull String key, int defaultValue) {
+    final String value = getString(properties, key, null);
+    if (value.isEmpty()) return defaultValue;
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      LOG.warn("Ignoring invalid value '" + value + "' of " + key + ", using " + defaultValue);
+      return defaultValue;
+    }
+  }
+
+  private static int parsePort(@Nullable String port) {
+    if (StringUtil.isEmptyOrSpaces(port)) return -1;
+    try {
+      return Integer.parseInt(port.trim());
+    } catch (NumberFormatException e) {
+      LOG.warn("Ignoring invalid " + PROXY_PORT_ENV + " environment variable value '" + port + "'");
+      return -1;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "maxConnections=" + myMaxConnections +
+        ", connectionTimeoutMs=" + myConnectionTimeoutMs +
+        ", socketTimeoutMs=" + mySocketTimeoutMs +
+        ", requestTimeoutMs=" + myRequestTimeoutMs +
+        ", connectionTtlMs=" + myConnectionTtlMs +
+        ", tcpKeepAlive=" + myTcpKeepAlive +
+        ", gzip=" + myGzip +
+        ", maxErrorRetry=" + (myMaxErrorRetry < 0 ? "default" : String.valueOf(myMaxErrorRetry)) +
+        ", proxy=" + (myProxyHost == null ? "none" : myProxyHost + (myProxyPort > 0 ? ":" + myProxyPort : "")) +
+        (myCloudFormationEndpoint == null ? "" : ", cloudformationEndpoint=" + myCloudFormationEndpoint) +
+        (myStsEndpoint == null ? "" : ", stsEndpoint=" + myStsEndpoint) +
+        (myS3Endpoint == null ? "" : ", s3Endpoint=" + myS3Endpoint) +
+        ", requestsPerSecond=" + myRequestsPerSecond +
+        ", requestsBurst=" + myRequestsBurst;
+  }
+}
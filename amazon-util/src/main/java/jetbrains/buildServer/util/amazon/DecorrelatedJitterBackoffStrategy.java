@@ -0,0 +1,61 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.util.amazon;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.retry.RetryPolicy;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.WeakHashMap;
+
+/**
+ * Backoff with "decorrelated jitter": each delay is random between the base delay and three times the previous one,
+ * never exceeding the cap. Unlike plain exponential backoff, requests throttled at the same time don't retry in lockstep.
+ */
+final class DecorrelatedJitterBackoffStrategy implements RetryPolicy.BackoffStrategy {
+  private final long myBaseMs;
+  private final long myCapMs;
+  @NotNull
+  private final Random myRandom = new Random();
+  /**
+   * request -> previous delay, the requests are dropped once the SDK is done with them
+   */
+  @NotNull
+  private final Map<AmazonWebServiceRequest, Long> myPreviousDelays = Collections.synchronizedMap(new WeakHashMap<AmazonWebServiceRequest, Long>());
+
+  DecorrelatedJitterBackoffStrategy(long baseMs, long capMs) {
+    myBaseMs = baseMs;
+    myCapMs = capMs;
+  }
+
+  @Override
+  public long delayBeforeNextRetry(AmazonWebServiceRequest originalRequest, AmazonClientException exception, int retriesAttempted) {
+    final Long previous = retriesAttempted == 0 ? null : myPreviousDelays.get(originalRequest);
+    final long delay = nextDelay(previous == null ? myBaseMs : previous);
+    myPreviousDelays.put(originalRequest, delay);
+    return delay;
+  }
+
+  long nextDelay(long previousMs) {
+    final long upper = Math.max(myBaseMs, Math.min(myCapMs, previousMs * 3));
+    return myBaseMs + (long) (myRandom.nextDouble() * (upper - myBaseMs));
+  }
+}
@@ -19,19 +19,55 @@ package jetbrains.buildServer.runner.cloudformation;
 import jetbrains.buildServer.RunBuildException;
 import jetbrains.buildServer.messages.ErrorData;
 import jetbrains.buildServer.agent.*;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.util.amazon.AWSApiMetrics;
+import jetbrains.buildServer.util.amazon.AWSTransportProfile;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import com.amazonaws.regions.Region;
+import com.amazonaws.services.cloudformation.model.StackSetOperationPreferences;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
 
 import static jetbrains.buildServer.runner.cloudformation.CloudFormationConstants.*;
 import static jetbrains.buildServer.util.StringUtil.nullIfEmpty;
 import static jetbrains.buildServer.util.amazon.AWSCommonParams.*;
 
 public class CloudFormationRunner implements AgentBuildRunner {
+  private static final String CACHE_DIR = "cloudformation";
+  private static final String VALIDATION_CACHE_FILE = "validation-cache.json";
+  private static final String FLOW_ID_PREFIX = "cloudformation.";
+  private static final String API_STATISTIC_PREFIX = "cloudformation.api.";
+  private static final String API_CALLS_BLOCK = "AWS API calls";
+  // time to issue the cancellation on top of following it
+  private static final long INTERRUPT_TIMEOUT_MARGIN_MS = 10000;
+
+  @NotNull
+  private final SharedStackPoller myStackPoller;
+  @NotNull
+  private final BuildAgentConfiguration myAgentConfiguration;
+  @Nullable
+  private ValidationCache myValidationCache;
+
+  public CloudFormationRunner(@NotNull SharedStackPoller stackPoller, @NotNull BuildAgentConfiguration agentConfiguration) {
+    myStackPoller = stackPoller;
+    myAgentConfiguration = agentConfiguration;
+  }
+
+  @NotNull
+  private synchronized ValidationCache getValidationCache(@NotNull Map<String, String> configParameters) {
+    if (myValidationCache == null) {
+      myValidationCache = new ValidationCache(new File(myAgentConfiguration.getCacheDirectory(CACHE_DIR), VALIDATION_CACHE_FILE),
+          getIntegerOrDefault(configParameters.get(VALIDATION_CACHE_SIZE_CONFIG_PARAM), ValidationCache.DEFAULT_CAPACITY));
+    }
+    return myValidationCache;
+  }
+
   @NotNull
   @Override
   public BuildProcess createBuildProcess(@NotNull final AgentRunningBuild runningBuild, @NotNull final BuildRunnerContext context) throws RunBuildException {
@@ -41,27 +77,240 @@ public class CloudFormationRunner implements AgentBuildRunner {
       protected BuildFinishedStatus runImpl() throws RunBuildException {
 
         final Map<String, String> runnerParameters = validateParams();
-        final Map<String, String> configParameters = context.getConfigParameters();
 
-        final Mutable m = new Mutable(configParameters);
-        m.problemOccurred = false;
-        m.s3ObjectVersion = nullIfEmpty(configParameters.get(S3_OBJECT_VERSION_CONFIG_PARAM));
+        final List<String> regions = getRegions(runnerParameters);
+        final AWSApiMetrics.Recording apiMetrics = new AWSApiMetrics.Recording();
+        apiMetrics.attach();
+        final boolean succeeded;
+        try {
+          succeeded = regions.size() == 1
+              ? runInRegion(runnerParameters, runningBuild.getBuildLogger())
+              : runInRegions(runnerParameters, regions);
+        } finally {
+          AWSApiMetrics.Recording.detach();
+          reportApiMetrics(apiMetrics.snapshot(), runningBuild.getBuildLogger());
+        }
+
+        return succeeded ? BuildFinishedStatus.FINISHED_SUCCESS : BuildFinishedStatus.FINISHED_WITH_PROBLEMS;
+      }
+
+      /**
+       * Runs the step in all the regions concurrently, each region logs to its own flow
+       *
+       * @return false if the step failed in any region
+       */
+      private boolean runInRegions(@NotNull final Map<String, String> runnerParameters, @NotNull List<String> regions) throws RunBuildException {
+        final BuildProgressLogger buildLogger = runningBuild.getBuildLogger();
+        buildLogger.message("Running in " + regions.size() + " regions: " + StringUtil.join(regions, ", "));
+        final AWSApiMetrics.Recording apiMetrics = AWSApiMetrics.Recording.current();
 
-        final AWSClient awsClient = createAWSClient(runnerParameters, runningBuild).withListener(
-            new LoggingDeploymentListener(runnerParameters, runningBuild.getBuildLogger(), runningBuild.getCheckoutDirectory().getAbsolutePath()));
+        final Map<String, Future<Boolean>> results = new LinkedHashMap<String, Future<Boolean>>();
+        final ExecutorService executor = Executors.newFixedThreadPool(regions.size());
+        try {
+          for (final String region : regions) {
+            results.put(region, executor.submit(new Callable<Boolean>() {
+              @Override
+              public Boolean call() {
+                final Map<String, String> regionParameters = new HashMap<String, String>(runnerParameters);
+                regionParameters.put(REGION_NAME_PARAM, region);
+                final FlowLogger flowLogger = buildLogger.getFlowLogger(FLOW_ID_PREFIX + runningBuild.getBuildId() + "." + region);
+                flowLogger.startFlow();
+                flowLogger.targetStarted(region);
+                if (apiMetrics != null) apiMetrics.attach();
+                try {
+                  return runInRegion(regionParameters, flowLogger);
+                } catch (RunBuildException e) {
+                  flowLogger.error(e.getMessage());
+                  return false;
+                } finally {
+                  AWSApiMetrics.Recording.detach();
+                  flowLogger.targetFinished(region);
+                  flowLogger.disposeFlow();
+                }
+              }
+            }));
+          }
+
+          final List<String> failed = new ArrayList<String>();
+          for (Map.Entry<String, Future<Boolean>> result : results.entrySet()) {
+            if (!result.getValue().get()) failed.add(result.getKey());
+          }
+          if (failed.isEmpty()) {
+            buildLogger.message("Succeeded in all " + regions.size() + " regions");
+            return true;
+          }
+          buildLogger.error("Failed in " + failed.size() + " of " + regions.size() + " regions: " + StringUtil.join(failed, ", "));
+          return false;
+        } catch (InterruptedException e) {
+          // the regions are cancelling their stack operations, see shutdownAndAwait below
+          return false;
+        } catch (ExecutionException e) {
+          throw new CloudFormationRunnerException("Failed to run in regions " + StringUtil.join(regions, ", ") + ": " + e.getCause().getMessage(), e.getCause());
+        } finally {
+          CloudFormationUtil.shutdownAndAwait(executor, getInterruptTimeoutMs());
+        }
+      }
+
+      /**
+       * @return false if the step failed, the failure is already reported
+       */
+      private boolean runInRegion(@NotNull Map<String, String> runnerParameters, @NotNull BuildProgressLogger logger) throws RunBuildException {
+        final String manifestFile = runnerParameters.get(MANIFEST_FILE_PARAM);
+        if (StringUtil.isNotEmpty(manifestFile)) {
+          return runManifest(runnerParameters, FileUtil.resolvePath(runningBuild.getCheckoutDirectory(), manifestFile), logger);
+        }
+
+        final String templateFile = runnerParameters.get(TEMPLATE_FILE_PARAM);
+        return runStack(runnerParameters, runnerParameters.get(STACK_NAME_PARAM),
+            StringUtil.isEmpty(templateFile) ? null : FileUtil.resolvePath(runningBuild.getCheckoutDirectory(), templateFile),
+            logger);
+      }
+
+      private boolean runManifest(@NotNull final Map<String, String> runnerParameters, @NotNull File manifestFile,
+                                  @NotNull final BuildProgressLogger buildLogger) throws RunBuildException {
+        final StackManifest manifest;
+        try {
+          manifest = StackManifest.load(manifestFile);
+        } catch (IOException e) {
+          throw new CloudFormationRunnerException("Failed to read stack manifest " + manifestFile + ": " + e.getMessage(), e);
+        } catch (IllegalArgumentException e) {
+          throw new CloudFormationRunnerException(e.getMessage(), null);
+        }
+
+        final boolean delete = "Delete".equalsIgnoreCase(runnerParameters.get(CLOUDFORMATION_STACK_ACTION_PARAM));
+        final int concurrency = getIntegerOrDefault(runnerParameters.get(MANIFEST_CONCURRENCY_PARAM), MANIFEST_CONCURRENCY_DEFAULT);
+        buildLogger.message(String.format("Processing %d stack(s) from %s, up to %d at a time", manifest.getStacks().size(), manifestFile.getName(), concurrency));
+
+        final AWSApiMetrics.Recording apiMetrics = AWSApiMetrics.Recording.current();
+        final Map<String, StackGraphDeployer.Outcome> outcomes;
+        try {
+          outcomes = new StackGraphDeployer(manifest, delete, concurrency, getInterruptTimeoutMs()).run(new StackGraphDeployer.StackAction() {
+            @Override
+            public boolean run(@NotNull StackManifest.Stack stack) {
+              if (isInterrupted()) return false;
+              final FlowLogger flowLogger = buildLogger.getFlowLogger(
+                  FLOW_ID_PREFIX + runningBuild.getBuildId() + "." + runnerParameters.get(REGION_NAME_PARAM) + "." + stack.myName);
+              flowLogger.startFlow();
+              if (apiMetrics != null) apiMetrics.attach();
+              try {
+                final Map<String, String> stackParameters = new HashMap<String, String>(runnerParameters);
+                stackParameters.put(STACK_NAME_PARAM, stack.myName);
+                return runStack(stackParameters, stack.myName, stack.myTemplate, flowLogger);
+              } catch (RunBuildException e) {
+                flowLogger.error(e.getMessage());
+                return false;
+              } catch (RuntimeException e) {
+                // the other stacks go on, their outcomes are reported below
+                flowLogger.error("Failed to process stack " + stack.myName + ": " + e.getMessage());
+                return false;
+              } finally {
+                AWSApiMetrics.Recording.detach();
+                flowLogger.disposeFlow();
+              }
+            }
+          });
+        } catch (InterruptedException e) {
+          return false;
+        }
+
+        boolean succeeded = true;
+        for (Map.Entry<String, StackGraphDeployer.Outcome> outcome : outcomes.entrySet()) {
+          if (outcome.getValue() == StackGraphDeployer.Outcome.SUCCESS) continue;
+          succeeded = false;
+          if (outcome.getValue() == StackGraphDeployer.Outcome.SKIPPED) {
+            buildLogger.warning("Stack " + outcome.getKey() + " was skipped because a stack it " + (delete ? "is required by" : "depends on") + " failed");
+          }
+        }
+        return succeeded;
+      }
+
+      /**
+       * Runs the step action for a single stack
+       *
+       * @param template local template, if null the template must be in S3 already, ignored for Delete
+       * @return false if the action failed, the failure is already reported
+       */
+      private boolean runStack(@NotNull Map<String, String> runnerParameters, @NotNull String stackName, @Nullable File template,
+                               @NotNull BuildProgressLogger logger) throws RunBuildException {
+        final Map<String, String> configParameters = context.getConfigParameters();
+
+        final LoggingDeploymentListener listener = new LoggingDeploymentListener(runnerParameters, logger, runningBuild.getCheckoutDirectory().getAbsolutePath(), context.getId());
+        final AWSClient awsClient = createAWSClient(runnerParameters, runningBuild).withListener(listener)
+            .withValidationCache(getValidationCache(configParameters), Boolean.parseBoolean(configParameters.get(FORCE_REVALIDATION_CONFIG_PARAM)))
+            .withChangeSets(UPDATE_MODE_CHANGE_SET.equals(runnerParameters.get(UPDATE_MODE_PARAM)))
+            .withSkipUnchanged(!"false".equalsIgnoreCase(configParameters.get(SKIP_UNCHANGED_CONFIG_PARAM)))
+            .withWaitTimeout(getIntegerOrDefault(runnerParameters.get(WAIT_TIMEOUT_SEC_PARAM), WAIT_TIMEOUT_SEC_DEFAULT))
+            .withPollStrategy(new ExponentialBackoffPollStrategy(getIntegerOrDefault(configParameters.get(WAIT_POLL_INTERVAL_SEC_CONFIG_PARAM), WAIT_POLL_INTERVAL_SEC_DEFAULT)))
+            .withDetached(Boolean.parseBoolean(runnerParameters.get(DETACHED_PARAM)))
+            .withCancelOnInterrupt(Boolean.parseBoolean(runnerParameters.get(CANCEL_ON_INTERRUPT_PARAM)) ? getInterruptGracePeriodSec() : 0);
+        if ("StackSet".equalsIgnoreCase(runnerParameters.get(CLOUDFORMATION_STACK_ACTION_PARAM))) {
+          final List<String> regions = CloudFormationUtil.splitList(runnerParameters.get(STACK_SET_REGIONS_PARAM));
+          awsClient.withStackSetTargets(CloudFormationUtil.splitList(runnerParameters.get(STACK_SET_ACCOUNTS_PARAM)), regions,
+              new StackSetOperationPreferences()
+                  .withRegionOrder(regions)
+                  .withMaxConcurrentCount(getInteger(runnerParameters.get(STACK_SET_MAX_CONCURRENT_COUNT_PARAM)))
+                  .withMaxConcurrentPercentage(getInteger(runnerParameters.get(STACK_SET_MAX_CONCURRENT_PERCENTAGE_PARAM)))
+                  .withFailureToleranceCount(getInteger(runnerParameters.get(STACK_SET_FAILURE_TOLERANCE_COUNT_PARAM)))
+                  .withFailureTolerancePercentage(getInteger(runnerParameters.get(STACK_SET_FAILURE_TOLERANCE_PERCENTAGE_PARAM))));
+        }
+        if (!"false".equalsIgnoreCase(configParameters.get(WAIT_SHARED_POLLER_CONFIG_PARAM))) {
+          awsClient.withStackPoller(myStackPoller, getCredentialsIdentity(runnerParameters) + "@" + runnerParameters.get(REGION_NAME_PARAM));
+        }
 
         final String s3BucketName = runnerParameters.get(S3_BUCKET_NAME_PARAM);
         String s3ObjectKey = runnerParameters.get(S3_OBJECT_KEY_PARAM);
+        String s3ObjectVersion = nullIfEmpty(configParameters.get(S3_OBJECT_VERSION_CONFIG_PARAM));
         final String region = runnerParameters.get(REGION_NAME_PARAM);
         final String cfnAction = runnerParameters.get(CLOUDFORMATION_STACK_ACTION_PARAM);
-        final String stackName = runnerParameters.get(STACK_NAME_PARAM);
         final String onFailure = runnerParameters.get(ONFAILURE_PARAM);
 
-        if (!m.problemOccurred && !isInterrupted()) {
-          awsClient.initiateCFN(stackName, region, s3BucketName, s3ObjectKey, cfnAction, onFailure);
+        String templateBody = null;
+        String templateDigest = null;
+        // Delete never uses the template, don't read, hash or upload it
+        if (template != null && !"Delete".equalsIgnoreCase(cfnAction) && !isInterrupted()) {
+          templateBody = getInlineTemplateBody(template, logger);
+          if (templateBody != null) {
+            templateDigest = CloudFormationUtil.sha256(templateBody);
+          } else {
+            final TemplateUploader.TemplateLocation location = awsClient.uploadTemplate(template, s3BucketName, s3ObjectKey);
+            if (location == null) return false;
+            s3ObjectKey = location.myKey;
+            s3ObjectVersion = location.myVersionId;
+            templateDigest = location.myDigest;
+          }
+        }
+
+        if (isInterrupted()) return false;
+        awsClient.initiateCFN(stackName, region, templateBody, templateDigest, s3BucketName, s3ObjectKey, s3ObjectVersion, cfnAction, onFailure);
+        return !listener.isFailed();
+      }
+
+      private int getInterruptGracePeriodSec() {
+        return getIntegerOrDefault(context.getConfigParameters().get(INTERRUPT_GRACE_PERIOD_SEC_CONFIG_PARAM), INTERRUPT_GRACE_PERIOD_SEC_DEFAULT);
+      }
+
+      /**
+       * @return how long an interrupted step may take to cancel its stack operations
+       */
+      private long getInterruptTimeoutMs() {
+        return getInterruptGracePeriodSec() * 1000L + INTERRUPT_TIMEOUT_MARGIN_MS;
+      }
+
+      /**
+       * @return minified template if it's small enough to be passed as TemplateBody, null if it must go through S3
+       */
+      @Nullable
+      private String getInlineTemplateBody(@NotNull File template, @NotNull BuildProgressLogger logger) throws RunBuildException {
+        if ("false".equalsIgnoreCase(context.getConfigParameters().get(INLINE_TEMPLATE_CONFIG_PARAM))) return null;
+        final String body;
+        try {
+          body = TemplateMinifier.minify(FileUtil.readText(template, "UTF-8"));
+        } catch (IOException e) {
+          throw new CloudFormationRunnerException("Failed to read template " + template, e);
         }
-        
-        return m.problemOccurred ? BuildFinishedStatus.FINISHED_WITH_PROBLEMS : BuildFinishedStatus.FINISHED_SUCCESS;
+        if (TemplateMinifier.fitsTemplateBody(body)) return body;
+        logger.message("Template " + template.getName() + " exceeds " + TemplateMinifier.MAX_TEMPLATE_BODY_BYTES + " bytes, it will be passed via S3");
+        return null;
       }
 
       @NotNull
@@ -74,6 +323,50 @@ public class CloudFormationRunner implements AgentBuildRunner {
     };
   }
 
+  /**
+   * Publishes the AWS API calls the step made as build statistics, e.g. cloudformation.api.describeStacks.us-east-1.success.count.
+   * Calls the agent made for other builds meanwhile aren't counted, neither are the shared poller calls which serve all of them.
+   */
+  private static void reportApiMetrics(@NotNull AWSApiMetrics.Snapshot metrics, @NotNull BuildProgressLogger logger) {
+    final List<AWSApiMetrics.CallStats> stats = metrics.getStats();
+    if (stats.isEmpty()) return;
+
+    final ServiceMessageEncoder encoder = new ServiceMessageEncoder();
+    long calls = 0, throttled = 0, retries = 0;
+    logger.targetStarted(API_CALLS_BLOCK);
+    for (AWSApiMetrics.CallStats call : stats) {
+      final String prefix = API_STATISTIC_PREFIX + call.getOperation() + "." + call.getRegion() + "." + call.getOutcome() + ".";
+      logger.message(encoder.statistic(prefix + "count", call.getCount()));
+      logger.message(encoder.statistic(prefix + "retries", call.getRetries()));
+      logger.message(encoder.statistic(prefix + "totalMs", call.getTotalLatencyMs()));
+      logger.message(encoder.statistic(prefix + "p95Ms", call.getPercentileLatencyMs(0.95)));
+      logger.message(call.toString());
+      calls += call.getCount();
+      retries += call.getRetries();
+      if (AWSApiMetrics.THROTTLED.equals(call.getOutcome())) throttled += call.getCount();
+    }
+    logger.message(encoder.statistic(API_STATISTIC_PREFIX + "calls", calls));
+    logger.message(encoder.statistic(API_STATISTIC_PREFIX + "throttled", throttled));
+    logger.message(encoder.statistic(API_STATISTIC_PREFIX + "retries", retries));
+    logger.targetFinished(API_CALLS_BLOCK);
+  }
+
+  @Nullable
+  private static Integer getInteger(@Nullable String value) {
+    return StringUtil.isEmpty(value) ? null : Integer.valueOf(value);
+  }
+
+  /**
+   * @return the main region followed by the additional ones
+   */
+  @NotNull
+  static List<String> getRegions(@NotNull Map<String, String> runnerParameters) {
+    final Set<String> regions = new LinkedHashSet<String>();
+    regions.add(runnerParameters.get(REGION_NAME_PARAM));
+    regions.addAll(CloudFormationUtil.splitList(runnerParameters.get(ADDITIONAL_REGIONS_PARAM)));
+    return new ArrayList<String>(regions);
+  }
+
   @NotNull
   @Override
   public AgentBuildRunnerInfo getRunnerInfo() {
@@ -94,7 +387,12 @@ public class CloudFormationRunner implements AgentBuildRunner {
   @NotNull
   private AWSClient createAWSClient(final Map<String, String> runnerParameters, @NotNull final AgentRunningBuild runningBuild) {
     final Map<String, String> params = new HashMap<String, String>(runnerParameters);
-    params.put(TEMP_CREDENTIALS_SESSION_NAME_PARAM, runningBuild.getBuildTypeExternalId() + runningBuild.getBuildId());
+    // transport settings may be tuned per build configuration or agent with configuration parameters
+    for (Map.Entry<String, String> param : runningBuild.getSharedConfigParameters().entrySet()) {
+      if (param.getKey().startsWith(AWSTransportProfile.PROPERTY_PREFIX)) params.put(param.getKey(), param.getValue());
+    }
+    // named after the build configuration, so that the builds of the configuration share the role session
+    params.put(TEMP_CREDENTIALS_SESSION_NAME_PARAM, runningBuild.getBuildTypeExternalId());
 //    if (CloudFormationUtil.isDeploymentWaitEnabled(runnerParameters)) {
 //      params.put(TEMP_CREDENTIALS_DURATION_SEC_PARAM, String.valueOf(2 * Integer.parseInt(runnerParameters.get(WAIT_TIMEOUT_SEC_PARAM))));
 //    }
@@ -108,15 +406,4 @@ public class CloudFormationRunner implements AgentBuildRunner {
       this.setLogStacktrace(false);
     }
   }
-
-  private class Mutable {
-    public Mutable(@NotNull Map<String, String> configParameters) {
-      problemOccurred = false;
-      s3ObjectVersion = nullIfEmpty(configParameters.get(S3_OBJECT_VERSION_CONFIG_PARAM));
-    }
-
-    boolean problemOccurred;
-    String s3ObjectVersion;
-    String s3ObjectETag;
-  }
 }
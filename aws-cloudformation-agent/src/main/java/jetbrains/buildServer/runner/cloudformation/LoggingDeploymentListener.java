@@ -16,6 +16,11 @@
 
 package jetbrains.buildServer.runner.cloudformation;
 
+import com.amazonaws.services.cloudformation.model.Change;
+import com.amazonaws.services.cloudformation.model.Replacement;
+import com.amazonaws.services.cloudformation.model.ResourceChange;
+import com.amazonaws.services.cloudformation.model.StackEvent;
+import com.amazonaws.services.cloudformation.model.StackSetOperationResultSummary;
 import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.agent.BuildProgressLogger;
 import jetbrains.buildServer.log.Loggers;
@@ -26,18 +31,18 @@ import jetbrains.buildServer.util.amazon.AWSException;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.Map;
+import java.util.*;
 
 class LoggingDeploymentListener extends AWSClient.Listener {
 	@NotNull
 	private static final Logger LOG = Logger.getInstance(Loggers.VCS_CATEGORY + CloudFormationRunner.class);
 
 	static final String CREATE_VERSION = "Create Stack";
-	static final String FAIL_VERSION = "Stack Failed";
 	static final String UPDATE_STACK = "Update Stack";
 	static final String DELETE_STACK = "Delete Stack";
+	static final String STACK_SET = "Stack Set";
+	static final String SLOWEST_RESOURCES = "Slowest resources";
+	static final int SLOWEST_RESOURCES_COUNT = 10;
 
 	@NotNull
 	private final Map<String, String> myRunnerParameters;
@@ -45,43 +50,108 @@ class LoggingDeploymentListener extends AWSClient.Listener {
 	private final BuildProgressLogger myBuildLogger;
 	@NotNull
 	private final String myCheckoutDir;
+	@NotNull
+	private final String myStepId;
+	@NotNull
+	private final ServiceMessageEncoder myEncoder = new ServiceMessageEncoder();
+	@Nullable
+	private String myOpenBlock;
+	private volatile boolean myFailed;
 
 	LoggingDeploymentListener(@NotNull Map<String, String> runnerParameters, @NotNull BuildProgressLogger buildLogger,
-			@NotNull String checkoutDir) {
+			@NotNull String checkoutDir, @NotNull String stepId) {
 		myRunnerParameters = runnerParameters;
 		myBuildLogger = buildLogger;
 		myCheckoutDir = checkoutDir;
+		myStepId = stepId;
 	}
 
 	@Override
-	void createStackStarted(@NotNull String stackName, @NotNull String region, @NotNull String s3BucketName,
-			@NotNull String s3ObjectKey, @NotNull String cfnAction) {
+	void createStackStarted(@NotNull String stackName, @NotNull String region, @NotNull String templateSource,
+			@NotNull String cfnAction) {
 		open(CREATE_VERSION);
-		log(String.format("Creating stack %s in region %s from bucket %s and key %s", stackName, region, s3BucketName,
-				s3ObjectKey));
+		log("Creating stack " + stackName + " in region " + region + " from " + templateSource);
 	}
 
 	@Override
 	void waitForStack(@NotNull String Status) {
-		log(String.format(Status));
+		log(Status);
+	}
+
+	@Override
+	void stackEvent(@NotNull StackEvent event) {
+		final String reason = event.getResourceStatusReason();
+		log(event.getLogicalResourceId() + " (" + event.getResourceType() + ") " + event.getResourceStatus()
+				+ (StringUtil.isEmpty(reason) ? "" : ": " + reason));
+	}
+
+	/**
+	 * Publishes the duration of each resource and the longest duration of each resource type as build statistics, e.g.
+	 * cloudformation.us-east-1.app.resource.Gateway.durationMs and cloudformation.us-east-1.app.resourceType.AWS::EC2::NatGateway.maxDurationMs
+	 */
+	@Override
+	void resourceTimings(@NotNull String stackName, @NotNull List<ResourceTimings.Timing> timings) {
+		if (timings.isEmpty()) return;
+
+		final String prefix = "cloudformation." + myRunnerParameters.get(AWSCommonParams.REGION_NAME_PARAM) + "." + stackName + ".";
+		final Map<String, Long> maxByType = new TreeMap<String, Long>();
+		for (ResourceTimings.Timing timing : timings) {
+			statistic(prefix + "resource." + timing.myLogicalId + ".durationMs", timing.myDurationMs);
+			final Long max = maxByType.get(timing.myResourceType);
+			if (max == null || max < timing.myDurationMs) maxByType.put(timing.myResourceType, timing.myDurationMs);
+		}
+		for (Map.Entry<String, Long> entry : maxByType.entrySet()) {
+			statistic(prefix + "resourceType." + entry.getKey() + ".maxDurationMs", entry.getValue());
+		}
+
+		final List<ResourceTimings.Timing> slowest = new ArrayList<ResourceTimings.Timing>(timings);
+		Collections.sort(slowest, new Comparator<ResourceTimings.Timing>() {
+			@Override
+			public int compare(ResourceTimings.Timing t1, ResourceTimings.Timing t2) {
+				return t1.myDurationMs < t2.myDurationMs ? 1 : t1.myDurationMs == t2.myDurationMs ? 0 : -1;
+			}
+		});
+		myBuildLogger.targetStarted(SLOWEST_RESOURCES);
+		for (ResourceTimings.Timing timing : slowest.subList(0, Math.min(SLOWEST_RESOURCES_COUNT, slowest.size()))) {
+			log(timing.myLogicalId + " (" + timing.myResourceType + ") " + timing.myStatus + " in " + formatDuration(timing.myDurationMs));
+		}
+		myBuildLogger.targetFinished(SLOWEST_RESOURCES);
+	}
+
+	@Override
+	void stackWaitTimedOut(@NotNull String stackName, @NotNull String stackStatus, int timeoutSec) {
+		final String msg = "Timeout exceeded, stack " + stackName + " is still " + stackStatus + " after " + timeoutSec + " seconds";
+		err(msg);
+		problem(getIdentity(stackName, "timeout"), CloudFormationConstants.TIMEOUT_BUILD_PROBLEM_TYPE, msg);
+		myFailed = true;
+		closeOpenBlock();
 	}
 
 	@Override
 	void createStackFinished(@NotNull String stackName, @NotNull String stackStatus) {
-		log(String.format("Created stack %s  %s", stackName, stackStatus));
-		close(CREATE_VERSION);
+		log("Stack " + stackName + " finished with status " + stackStatus);
+		closeOpenBlock();
 	}
 
 	@Override
-	void createStackFailed(@NotNull String stackName, @NotNull String stackReason, @NotNull String stackStatus) {
-		log(String.format("Create stack failed %s %s %s", stackName, stackStatus, stackReason));
-		close(FAIL_VERSION);
+	void createStackFailed(@NotNull String stackName, @NotNull String stackStatus, @NotNull String stackReason) {
+		final String msg = "Stack " + stackName + " failed with status " + stackStatus + ": " + stackReason;
+		err(msg);
+		problem(getIdentity(stackName, stackStatus), CloudFormationConstants.FAILURE_BUILD_PROBLEM_TYPE, msg);
+		myFailed = true;
+		closeOpenBlock();
 	}
 
 	@Override
 	void deleteStarted(@NotNull String stackName, @NotNull String region) {
 		open(DELETE_STACK);
-		log(String.format("Stack %s deletion started in region %s", stackName, region));
+		log("Stack " + stackName + " deletion started in region " + region);
+	}
+
+	@Override
+	void deleteSucceeded(@NotNull String stackName) {
+		log("Stack " + stackName + " deleted");
+		closeOpenBlock();
 	}
 
 	@Override
@@ -91,18 +161,141 @@ class LoggingDeploymentListener extends AWSClient.Listener {
 
 	@Override
 	void debugLog(@NotNull String stackName) {
-		log(String.format("Debuging.... %s", stackName));
+		log("Debuging.... " + stackName);
+	}
+
+	@Override
+	void validationCached(@NotNull String templateDigest) {
+		log("Template with SHA-256 " + templateDigest + " has already been validated, using the cached result");
 	}
 
 	@Override
-	void validateFinished(@NotNull String paraMeters) {
+	void validateFinished(@NotNull String paraMeters, @NotNull List<String> capabilities) {
 		log("CloudFormation validation complete");
-		log(String.format(paraMeters));
+		log(paraMeters);
+		if (!capabilities.isEmpty()) {
+			log("Required capabilities: " + StringUtil.join(capabilities, ", "));
+		}
 	}
 
 	@Override
 	void updateInProgress(@NotNull String stackName) {
-		progress(String.format("Waiting for update on stack %s", stackName));
+		open(UPDATE_STACK);
+		progress("Waiting for update on stack " + stackName);
+	}
+
+	@Override
+	void operationDetached(@NotNull String stackName, @NotNull String stackId, @NotNull StackOperation operation,
+			@Nullable String lastEventId) {
+		log("Stack " + stackName + " operation " + operation + " submitted, its completion will be tracked by the server");
+		final String message;
+		synchronized (myEncoder) {
+			message = myEncoder.start(CloudFormationConstants.DETACHED_OPERATION_SERVICE_MESSAGE)
+					.attribute("stepId", myStepId)
+					.attribute("stackName", stackName)
+					.attribute("stackId", stackId)
+					.attribute("region", myRunnerParameters.get(AWSCommonParams.REGION_NAME_PARAM))
+					.attribute("operation", operation.name())
+					.attribute("lastEventId", lastEventId)
+					.end();
+		}
+		myBuildLogger.message(message);
+		statusText("Stack " + stackName + " " + operation.name().toLowerCase() + " submitted");
+		closeOpenBlock();
+	}
+
+	@Override
+	void waitInterrupted(@NotNull String stackName) {
+		myBuildLogger.warning("Build interrupted, stopped waiting for stack " + stackName + ", its operation keeps running");
+		closeOpenBlock();
+	}
+
+	@Override
+	void cancelStarted(@NotNull String stackName, @NotNull StackOperation operation) {
+		myBuildLogger.warning(operation == StackOperation.CREATE
+				? "Build interrupted, deleting stack " + stackName + " being created"
+				: "Build interrupted, cancelling update of stack " + stackName);
+	}
+
+	@Override
+	void cancelFinished(@NotNull String stackName, @NotNull String stackStatus) {
+		log("Stack " + stackName + " is " + stackStatus + " after cancellation");
+		closeOpenBlock();
+	}
+
+	@Override
+	void cancelTimedOut(@NotNull String stackName, @NotNull String stackStatus, int graceSec) {
+		myBuildLogger.warning("Stack " + stackName + " is still " + stackStatus + " after " + graceSec + " seconds, stopped following the cancellation");
+		closeOpenBlock();
+	}
+
+	@Override
+	void interrupted() {
+		myBuildLogger.warning("Build interrupted");
+		closeOpenBlock();
+	}
+
+	@Override
+	void stackSetStarted(@NotNull String stackSetName, @NotNull List<String> accounts, @NotNull List<String> regions) {
+		open(STACK_SET);
+		log("Deploying stack set " + stackSetName + " to accounts " + StringUtil.join(accounts, ", ")
+				+ " in regions " + StringUtil.join(regions, ", "));
+	}
+
+	@Override
+	void stackSetOperationStarted(@NotNull String stackSetName, @NotNull String operationId) {
+		progress("Waiting for operation " + operationId + " on stack set " + stackSetName);
+	}
+
+	@Override
+	void stackInstanceResult(@NotNull StackSetOperationResultSummary result) {
+		final String reason = result.getStatusReason();
+		log(result.getAccount() + "/" + result.getRegion() + " " + result.getStatus() + (StringUtil.isEmpty(reason) ? "" : ": " + reason));
+	}
+
+	@Override
+	void stackSetFinished(@NotNull String stackSetName) {
+		log("Stack set " + stackSetName + " deployed");
+		closeOpenBlock();
+	}
+
+	@Override
+	void templateUploaded(@NotNull String templateName, @NotNull TemplateUploader.TemplateLocation location) {
+		final String url = "s3://" + location.myBucketName + "/" + location.myKey
+				+ (location.myVersionId == null ? "" : " (version " + location.myVersionId + ")");
+		log(location.myUploaded ? "Template " + templateName + " uploaded to " + url
+				: "Template " + templateName + " is already in " + url + ", upload skipped");
+	}
+
+	@Override
+	void changeSetCreated(@NotNull String stackName, @NotNull String changeSetName, @NotNull List<Change> changes) {
+		log("Change set " + changeSetName + " for stack " + stackName + " contains " + changes.size() + " change(s)");
+		int replacements = 0;
+		for (Change change : changes) {
+			final ResourceChange resourceChange = change.getResourceChange();
+			if (resourceChange == null) continue;
+			final String replacement = resourceChange.getReplacement();
+			log(resourceChange.getAction() + " " + resourceChange.getLogicalResourceId() + " (" + resourceChange.getResourceType() + ")"
+					+ (StringUtil.isEmpty(replacement) ? "" : ", replacement: " + replacement));
+			if (Replacement.True.toString().equals(replacement)) replacements++;
+		}
+		if (replacements > 0) {
+			myBuildLogger.warning(replacements + " resource(s) of stack " + stackName + " will be replaced");
+		}
+	}
+
+	@Override
+	void stackUpToDate(@NotNull String stackName) {
+		final String message = "Stack " + stackName + " is up to date";
+		log(message);
+		statusText(message);
+		closeOpenBlock();
+	}
+
+	@Override
+	void stackUnchanged(@NotNull String stackName, @NotNull String fingerprint) {
+		log("Stack " + stackName + " was deployed from the same template (fingerprint " + fingerprint + "), skipping the update");
+		stackUpToDate(stackName);
 	}
 
 	@Override
@@ -128,6 +321,7 @@ class LoggingDeploymentListener extends AWSClient.Listener {
 				: CloudFormationConstants.TIMEOUT_BUILD_PROBLEM_TYPE;
 
 		problem(getIdentity(hasTimeout.toString(), errMessage, errSeverity), failureType, msg);
+		myFailed = true;
 
 		close(UPDATE_STACK);
 	}
@@ -153,7 +347,15 @@ class LoggingDeploymentListener extends AWSClient.Listener {
 		if (StringUtil.isNotEmpty(details))
 			err(details);
 		problem(getIdentity(e.getIdentity()), e.getType(), message);
-		close(UPDATE_STACK);
+		myFailed = true;
+		closeOpenBlock();
+	}
+
+	/**
+	 * @return true if a build problem has been reported
+	 */
+	boolean isFailed() {
+		return myFailed;
 	}
 
 	private int getIdentity(String... parts) {
@@ -180,6 +382,13 @@ class LoggingDeploymentListener extends AWSClient.Listener {
 
 	protected void open(@NotNull String block) {
 		myBuildLogger.targetStarted(block);
+		myOpenBlock = block;
+	}
+
+	private void closeOpenBlock() {
+		if (myOpenBlock == null) return;
+		close(myOpenBlock);
+		myOpenBlock = null;
 	}
 
 	protected void close(@NotNull String block) {
@@ -187,23 +396,42 @@ class LoggingDeploymentListener extends AWSClient.Listener {
 	}
 
 	protected void progress(@NotNull String message) {
-		myBuildLogger.message(String.format("##teamcity[progressMessage '%s']", escape(message)));
+		final String serviceMessage;
+		synchronized (myEncoder) {
+			serviceMessage = myEncoder.start("progressMessage").value(message).end();
+		}
+		myBuildLogger.message(serviceMessage);
 	}
 
 	protected void problem(int identity, @NotNull String type, @NotNull String descr) {
-		myBuildLogger.message(
-				String.format("##teamcity[buildProblem identity='%d' type='%s' description='%s' tc:tags='tc:internal']",
-						identity, type, escape(descr)));
+		final String serviceMessage;
+		synchronized (myEncoder) {
+			serviceMessage = myEncoder.start("buildProblem").attribute("identity", identity).attribute("type", type)
+					.attribute("description", descr).attribute("tc:tags", "tc:internal").end();
+		}
+		myBuildLogger.message(serviceMessage);
+	}
+
+	protected void statistic(@NotNull String key, long value) {
+		final String serviceMessage;
+		synchronized (myEncoder) {
+			serviceMessage = myEncoder.statistic(key, value);
+		}
+		myBuildLogger.message(serviceMessage);
 	}
 
 	protected void statusText(@NotNull String text) {
-		myBuildLogger.message(
-				String.format("##teamcity[buildStatus tc:tags='tc:internal' text='{build.status.text}; %s']", text));
+		final String serviceMessage;
+		synchronized (myEncoder) {
+			serviceMessage = myEncoder.start("buildStatus").attribute("tc:tags", "tc:internal")
+					.attribute("text", "{build.status.text}; " + text).end();
+		}
+		myBuildLogger.message(serviceMessage);
 	}
 
 	@NotNull
-	private String escape(@NotNull String s) {
-		return s.replace("|", "||").replace("'", "|'").replace("\n", "|n").replace("\r", "|r")
-				.replace("\\uNNNN", "|0xNNNN").replace("[", "|[").replace("]", "|]");
+	private static String formatDuration(long ms) {
+		final long sec = ms / 1000;
+		return sec < 60 ? sec + "." + ms % 1000 / 100 + "s" : sec / 60 + "m " + sec % 60 + "s";
 	}
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.cloudformation;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Builds TeamCity service messages escaping attribute values in a single pass.
+ * <p>
+ * The encoder reuses its buffer, so a listener logging thousands of stack events keeps a single one.
+ * It's not thread-safe, callers sharing an encoder must synchronize on it.
+ */
+final class ServiceMessageEncoder {
+  private static final String PREFIX = "##teamcity[";
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  // longer messages don't keep their buffer after being built
+  private static final int MAX_RETAINED_CAPACITY = 16 * 1024;
+
+  @NotNull
+  private StringBuilder myBuffer = new StringBuilder(256);
+
+  @NotNull
+  ServiceMessageEncoder start(@NotNull String messageName) {
+    myBuffer.setLength(0);
+    myBuffer.append(PREFIX).append(messageName);
+    return this;
+  }
+
+  /**
+   * Appends the single unnamed value, as in <code>##teamcity[progressMessage 'value']</code>
+   */
+  @NotNull
+  ServiceMessageEncoder value(@NotNull CharSequence value) {
+    myBuffer.append(" '");
+    escape(value, myBuffer);
+    myBuffer.append('\'');
+    return this;
+  }
+
+  /**
+   * Appends the attribute, a null value is written as an empty one
+   */
+  @NotNull
+  ServiceMessageEncoder attribute(@NotNull String name, @Nullable CharSequence value) {
+    myBuffer.append(' ').append(name).append("='");
+    if (value != null) escape(value, myBuffer);
+    myBuffer.append('\'');
+    return this;
+  }
+
+  @NotNull
+  ServiceMessageEncoder attribute(@NotNull String name, long value) {
+    myBuffer.append(' ').append(name).append("='").append(value).append('\'');
+    return this;
+  }
+
+  /**
+   * @return complete buildStatisticValue message
+   */
+  @NotNull
+  String statistic(@NotNull String key, long value) {
+    return start("buildStatisticValue").attribute("key", key).attribute("value", value).end();
+  }
+
+  @NotNull
+  String end() {
+    myBuffer.append(']');
+    final String message = myBuffer.toString();
+    if (myBuffer.capacity() > MAX_RETAINED_CAPACITY) myBuffer = new StringBuilder(256);
+    return message;
+  }
+
+  /**
+   * Escapes the service message value: the characters with special meaning get a '|' prefix, line breaks
+   * become |n, |r, |x, |l and |p, other control and non-ASCII characters are written as |0xNNNN
+   */
+  static void escape(@NotNull CharSequence value, @NotNull StringBuilder out) {
+    final int length = value.length();
+    for (int i = 0; i < length; i++) {
+      final char c = value.charAt(i);
+      switch (c) {
+        case '|':
+        case '\'':
+        case '[':
+        case ']':
+          out.append('|').append(c);
+          break;
+        case '\n':
+          out.append("|n");
+          break;
+        case '\r':
+          out.append("|r");
+          break;
+        case '\u0085':
+          out.append("|x");
+          break;
+        case '\u2028':
+          out.append("|l");
+          break;
+        case '\u2029':
+          out.append("|p");
+          break;
+        default:
+          if (c < 0x20 || c > 0x7e) {
+            out.append("|0x").append(HEX[(c >> 12) & 0xf]).append(HEX[(c >> 8) & 0xf]).append(HEX[(c >> 4) & 0xf]).append(HEX[c & 0xf]);
+          } else {
+            out.append(c);
+          }
+      }
+    }
+  }
+
+  @NotNull
+  static String escape(@NotNull CharSequence value) {
+    final StringBuilder sb = new StringBuilder(value.length() + 16);
+    escape(value, sb);
+    return sb.toString();
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.cloudformation;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs an action for each stack of the manifest in dependency order, independent stacks are processed
+ * concurrently. In reverse mode (e.g. deletion) a stack is processed only after all stacks which depend
+ * on it. If the action fails for a stack, the stacks waiting for it are skipped.
+ */
+final class StackGraphDeployer {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(StackGraphDeployer.class.getName());
+
+  enum Outcome {
+    SUCCESS, FAILURE, SKIPPED
+  }
+
+  interface StackAction {
+    /**
+     * @return false if the action failed, the failure must be already reported. An exception fails the stack as well,
+     * it's only logged to the agent log though.
+     */
+    boolean run(@NotNull StackManifest.Stack stack) throws Exception;
+  }
+
+  @NotNull
+  private final Map<String, StackManifest.Stack> myStacks = new LinkedHashMap<String, StackManifest.Stack>();
+  /**
+   * stack name -> stacks which must be processed before it
+   */
+  @NotNull
+  private final Map<String, Set<String>> myPrerequisites = new HashMap<String, Set<String>>();
+  private final int myConcurrency;
+  private final long myShutdownTimeoutMs;
+
+  /**
+   * @param shutdownTimeoutMs how long interrupted stack actions may take to finish
+   */
+  StackGraphDeployer(@NotNull StackManifest manifest, boolean reverse, int concurrency, long shutdownTimeoutMs) {
+    myConcurrency = concurrency;
+    myShutdownTimeoutMs = shutdownTimeoutMs;
+    for (StackManifest.Stack stack : manifest.getStacks()) {
+      myStacks.put(stack.myName, stack);
+      myPrerequisites.put(stack.myName, new HashSet<String>());
+    }
+    for (StackManifest.Stack stack : manifest.getStacks()) {
+      for (String dependency : stack.myDependsOn) {
+        if (reverse) {
+          myPrerequisites.get(dependency).add(stack.myName);
+        } else {
+          myPrerequisites.get(stack.myName).add(dependency);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return outcome for each stack in the manifest order
+   */
+  @NotNull
+  Map<String, Outcome> run(@NotNull final StackAction action) throws InterruptedException {
+    final Map<String, Outcome> outcomes = new LinkedHashMap<String, Outcome>();
+    final Set<String> started = new HashSet<String>();
+    final ExecutorService executor = Executors.newFixedThreadPool(Math.min(myConcurrency, myStacks.size()));
+    final CompletionService<Map.Entry<String, Outcome>> completion = new ExecutorCompletionService<Map.Entry<String, Outcome>>(executor);
+    int running = 0;
+    try {
+      while (outcomes.size() < myStacks.size()) {
+        final int resolved = outcomes.size();
+        for (final StackManifest.Stack stack : myStacks.values()) {
+          final String name = stack.myName;
+          if (started.contains(name)) continue;
+
+          final Set<String> prerequisites = myPrerequisites.get(name);
+          if (!outcomes.keySet().containsAll(prerequisites)) continue;
+          started.add(name);
+
+          if (!isAllSucceeded(prerequisites, outcomes)) {
+            outcomes.put(name, Outcome.SKIPPED);
+            continue;
+          }
+          completion.submit(new Callable<Map.Entry<String, Outcome>>() {
+            @Override
+            public Map.Entry<String, Outcome> call() {
+              Outcome outcome;
+              try {
+                outcome = action.run(stack) ? Outcome.SUCCESS : Outcome.FAILURE;
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                outcome = Outcome.FAILURE;
+              } catch (Exception e) {
+                LOG.warn("Failed to process stack " + name, e);
+                outcome = Outcome.FAILURE;
+              }
+              return new AbstractMap.SimpleEntry<String, Outcome>(name, outcome);
+            }
+          });
+          running++;
+        }
+        if (running == 0) {
+          // skipped stacks may have released others
+          if (outcomes.size() == resolved) throw new IllegalStateException("Stacks have cyclic dependencies");
+          continue;
+        }
+
+        final Map.Entry<String, Outcome> finished;
+        try {
+          finished = completion.take().get();
+        } catch (ExecutionException e) {
+          // the task catches everything, only an Error gets here
+          throw new IllegalStateException(e.getCause());
+        }
+        running--;
+        outcomes.put(finished.getKey(), finished.getValue());
+      }
+    } finally {
+      CloudFormationUtil.shutdownAndAwait(executor, myShutdownTimeoutMs);
+    }
+
+    final Map<String, Outcome> ordered = new LinkedHashMap<String, Outcome>();
+    for (String name : myStacks.keySet()) {
+      ordered.put(name, outcomes.get(name));
+    }
+    return ordered;
+  }
+
+  private static boolean isAllSucceeded(@NotNull Set<String> names, @NotNull Map<String, Outcome> outcomes) {
+    for (String name : names) {
+      if (outcomes.get(name) != Outcome.SUCCESS) return false;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.cloudformation;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Set of stacks deployed by a single build step, e.g.
+ * <pre>
+ * {
+ *   "stacks": [
+ *     { "name": "network", "template": "network.json" },
+ *     { "name": "app", "template": "app.yaml", "dependsOn": [ "network" ] }
+ *   ]
+ * }
+ * </pre>
+ * Template paths are relative to the manifest. Besides explicit dependsOn, a stack depends on
+ * the stacks which export the values its template imports with Fn::ImportValue. Export names
+ * computed by anything but Fn::Sub with ${AWS::StackName} can't be resolved statically,
+ * such dependencies must be declared explicitly.
+ */
+final class StackManifest {
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private static final String IMPORT_VALUE = "Fn::ImportValue";
+  private static final String SUB = "Fn::Sub";
+  private static final String STACK_NAME_VARIABLE = "${AWS::StackName}";
+
+  // YAML templates are scanned line by line, there's no YAML parser on the classpath.
+  // The name, optionally substituted, is a single or double quoted scalar or a plain one, plain names may contain ${...} of Fn::Sub
+  // but can't start a flow collection
+  private static final String YAML_NAME = "(?:(?:!Sub|Fn::Sub:)\\s+)?(?:'([^'\\n]*)'|\"([^\"\\n]*)\"|([^'\"\\s#{\\[][^\\s,]*))";
+  private static final Pattern YAML_IMPORT = Pattern.compile("(?:Fn::ImportValue:|!ImportValue)\\s+" + YAML_NAME);
+  private static final Pattern YAML_EXPORT = Pattern.compile("Export:\\s*\\n\\s*Name:\\s+" + YAML_NAME);
+
+  @NotNull
+  private final List<Stack> myStacks;
+
+  private StackManifest(@NotNull List<Stack> stacks) {
+    myStacks = stacks;
+  }
+
+  /**
+   * @return stacks in the manifest order
+   */
+  @NotNull
+  List<Stack> getStacks() {
+    return myStacks;
+  }
+
+  /**
+   * @throws IllegalArgumentException if the manifest is malformed, refers to unknown stacks or has cyclic dependencies
+   */
+  @NotNull
+  static StackManifest load(@NotNull File manifestFile) throws IOException {
+    final JsonNode root = MAPPER.readTree(manifestFile);
+    final JsonNode stacksNode = root == null ? null : root.get("stacks");
+    if (stacksNode == null || !stacksNode.isArray() || stacksNode.size() == 0) {
+      throw new IllegalArgumentException("Manifest " + manifestFile + " must contain a non-empty \"stacks\" array");
+    }
+
+    final File baseDir = manifestFile.getAbsoluteFile().getParentFile();
+    final Map<String, Stack> stacks = new LinkedHashMap<String, Stack>();
+    for (JsonNode node : stacksNode) {
+      final String name = getText(node, "name");
+      final String template = getText(node, "template");
+      if (StringUtil.isEmpty(name) || StringUtil.isEmpty(template)) {
+        throw new IllegalArgumentException("Each stack in manifest " + manifestFile + " must have \"name\" and \"template\"");
+      }
+      if (stacks.containsKey(name)) {
+        throw new IllegalArgumentException("Stack " + name + " is listed in manifest " + manifestFile + " more than once");
+      }
+      final Stack stack = new Stack(name, FileUtil.resolvePath(baseDir, template));
+      final JsonNode dependsOn = node.get("dependsOn");
+      if (dependsOn != null) {
+        for (JsonNode dependency : dependsOn) {
+          stack.myDependsOn.add(dependency.asText());
+        }
+      }
+      stacks.put(name, stack);
+    }
+
+    addImportDependencies(stacks.values());
+
+    for (Stack stack : stacks.values()) {
+      for (String dependency : stack.myDependsOn) {
+        if (!stacks.containsKey(dependency)) {
+          throw new IllegalArgumentException("Stack " + stack.myName + " depends on " + dependency + " which isn't listed in manifest " + manifestFile);
+        }
+      }
+    }
+    checkNoCycles(stacks);
+
+    return new StackManifest(new ArrayList<Stack>(stacks.values()));
+  }
+
+  private static void addImportDependencies(@NotNull Collection<Stack> stacks) throws IOException {
+    final Map<String, String> exporters = new HashMap<String, String>();
+    final Map<Stack, Set<String>> imports = new HashMap<Stack, Set<String>>();
+    for (Stack stack : stacks) {
+      final Set<String> exports = new HashSet<String>();
+      final Set<String> stackImports = new HashSet<String>();
+      scanTemplate(stack, exports, stackImports);
+      for (String export : exports) {
+        exporters.put(export, stack.myName);
+      }
+      imports.put(stack, stackImports);
+    }
+    for (Stack stack : stacks) {
+      for (String imported : imports.get(stack)) {
+        final String exporter = exporters.get(imported);
+        // values exported outside of the manifest are not our concern
+        if (exporter != null && !exporter.equals(stack.myName)) stack.myDependsOn.add(exporter);
+      }
+    }
+  }
+
+  private static void scanTemplate(@NotNull Stack stack, @NotNull Set<String> exports, @NotNull Set<String> imports) throws IOException {
+    if (!stack.myTemplate.isFile()) {
+      throw new IllegalArgumentException("Template " + stack.myTemplate + " of stack " + stack.myName + " doesn't exist");
+    }
+    final String text = FileUtil.readText(stack.myTemplate, "UTF-8").replace("\r\n", "\n");
+    if (text.trim().startsWith("{")) {
+      final JsonNode template = MAPPER.readTree(text);
+      final JsonNode outputs = template.get("Outputs");
+      if (outputs != null) {
+        for (JsonNode output : outputs) {
+          final JsonNode export = output.get("Export");
+          final String name = export == null ? null : resolveName(export.get("Name"), stack.myName);
+          if (name != null) exports.add(name);
+        }
+      }
+      collectImports(template, imports);
+    } else {
+      final Matcher exportMatcher = YAML_EXPORT.matcher(text);
+      while (exportMatcher.find()) {
+        final String name = resolveName(getYamlName(exportMatcher), stack.myName);
+        if (name != null) exports.add(name);
+      }
+      final Matcher importMatcher = YAML_IMPORT.matcher(text);
+      while (importMatcher.find()) {
+        final String name = resolveName(getYamlName(importMatcher), null);
+        if (name != null) imports.add(name);
+      }
+    }
+  }
+
+  @NotNull
+  private static String getYamlName(@NotNull Matcher matcher) {
+    for (int group = 1; group <= 3; group++) {
+      if (matcher.group(group) != null) return matcher.group(group);
+    }
+    throw new IllegalStateException("Unexpected match " + matcher.group());
+  }
+
+  private static void collectImports(@Nullable JsonNode node, @NotNull Set<String> imports) {
+    if (node == null) return;
+    if (node.isObject()) {
+      final Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+      while (fields.hasNext()) {
+        final Map.Entry<String, JsonNode> field = fields.next();
+        if (IMPORT_VALUE.equals(field.getKey())) {
+          final String name = resolveName(field.getValue(), null);
+          if (name != null) imports.add(name);
+        } else {
+          collectImports(field.getValue(), imports);
+        }
+      }
+    } else if (node.isArray()) {
+      for (JsonNode element : node) {
+        collectImports(element, imports);
+      }
+    }
+  }
+
+  @Nullable
+  private static String resolveName(@Nullable JsonNode name, @Nullable String stackName) {
+    if (name == null) return null;
+    if (name.isTextual()) return name.asText();
+    final JsonNode sub = name.get(SUB);
+    return sub != null && sub.isTextual() ? resolveName(sub.asText(), stackName) : null;
+  }
+
+  /**
+   * @return the name or null if it depends on anything but the stack name
+   */
+  @Nullable
+  private static String resolveName(@NotNull String name, @Nullable String stackName) {
+    final String resolved = stackName == null ? name : name.replace(STACK_NAME_VARIABLE, stackName);
+    return resolved.contains("${") ? null : resolved;
+  }
+
+  private static void checkNoCycles(@NotNull Map<String, Stack> stacks) {
+    final Set<String> done = new HashSet<String>();
+    final Set<String> inProgress = new LinkedHashSet<String>();
+    for (String name : stacks.keySet()) {
+      visit(name, stacks, done, inProgress);
+    }
+  }
+
+  private static void visit(@NotNull String name, @NotNull Map<String, Stack> stacks, @NotNull Set<String> done, @NotNull Set<String> inProgress) {
+    if (done.contains(name)) return;
+    if (!inProgress.add(name)) {
+      throw new IllegalArgumentException("Stacks have cyclic dependencies: " + StringUtil.join(inProgress, " -> ") + " -> " + name);
+    }
+    for (String dependency : stacks.get(name).myDependsOn) {
+      visit(dependency, stacks, done, inProgress);
+    }
+    inProgress.remove(name);
+    done.add(name);
+  }
+
+  @Nullable
+  private static String getText(@NotNull JsonNode node, @NotNull String field) {
+    final JsonNode value = node.get(field);
+    return value == null || !value.isTextual() ? null : value.asText();
+  }
+
+  static final class Stack {
+    @NotNull
+    final String myName;
+    @NotNull
+    final File myTemplate;
+    @NotNull
+    final Set<String> myDependsOn = new LinkedHashSet<String>();
+
+    private Stack(@NotNull String name, @NotNull File template) {
+      myName = name;
+      myTemplate = template;
+    }
+  }
+}
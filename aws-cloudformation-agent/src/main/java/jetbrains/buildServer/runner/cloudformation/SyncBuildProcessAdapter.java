@@ -20,6 +20,7 @@ import jetbrains.buildServer.RunBuildException;
 import jetbrains.buildServer.agent.BuildFinishedStatus;
 import jetbrains.buildServer.agent.BuildProcess;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -28,6 +29,8 @@ public abstract class SyncBuildProcessAdapter implements BuildProcess {
   private final AtomicBoolean myIsInterrupted = new AtomicBoolean();
   @NotNull
   private final AtomicBoolean myIsFinished = new AtomicBoolean();
+  @Nullable
+  private Thread myThread;
 
   public final boolean isInterrupted() {
     return myIsInterrupted.get();
@@ -47,12 +50,20 @@ public abstract class SyncBuildProcessAdapter implements BuildProcess {
 
   @NotNull
   public final BuildFinishedStatus waitFor() throws RunBuildException {
+    synchronized (this) {
+      myThread = Thread.currentThread();
+    }
     try {
       if (isInterrupted()) return BuildFinishedStatus.INTERRUPTED;
       final BuildFinishedStatus status = runImpl();
       if (isInterrupted()) return BuildFinishedStatus.INTERRUPTED;
       return status;
     } finally {
+      synchronized (this) {
+        myThread = null;
+        // the interruption was meant for this build only, it mustn't leak to the agent thread
+        Thread.interrupted();
+      }
       myIsFinished.set(true);
     }
   }
@@ -60,6 +71,12 @@ public abstract class SyncBuildProcessAdapter implements BuildProcess {
   @NotNull
   protected abstract BuildFinishedStatus runImpl() throws RunBuildException;
 
+  /**
+   * Wakes up the build thread, so that it stops waiting at once
+   */
   protected void interruptImpl() {
+    synchronized (this) {
+      if (myThread != null) myThread.interrupt();
+    }
   }
 }
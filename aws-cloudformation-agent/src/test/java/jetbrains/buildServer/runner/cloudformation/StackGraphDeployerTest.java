@@ -0,0 +1,147 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.cloudformation;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Test
+public class StackGraphDeployerTest extends BaseTestCase {
+  // network <- app <- web, monitoring is independent
+  private static final String STACKS =
+      "{\"name\": \"network\", \"template\": \"empty.json\"}, " +
+      "{\"name\": \"app\", \"template\": \"empty.json\", \"dependsOn\": [\"network\"]}, " +
+      "{\"name\": \"web\", \"template\": \"empty.json\", \"dependsOn\": [\"app\"]}, " +
+      "{\"name\": \"monitoring\", \"template\": \"empty.json\"}";
+
+  private File myDir;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = createTempDir();
+  }
+
+  public void create_follows_dependencies() throws Exception {
+    final List<String> order = new ArrayList<String>();
+    final Map<String, StackGraphDeployer.Outcome> outcomes = new StackGraphDeployer(load(STACKS), false, 1, 1000).run(recording(order, null));
+
+    assertEquals(outcomes, outcomes("network", "SUCCESS", "app", "SUCCESS", "web", "SUCCESS", "monitoring", "SUCCESS"));
+    assertTrue(order.indexOf("network") < order.indexOf("app") && order.indexOf("app") < order.indexOf("web"), order.toString());
+  }
+
+  public void delete_processes_dependents_first() throws Exception {
+    final List<String> order = new ArrayList<String>();
+    final Map<String, StackGraphDeployer.Outcome> outcomes = new StackGraphDeployer(load(STACKS), true, 1, 1000).run(recording(order, null));
+
+    assertEquals(outcomes, outcomes("network", "SUCCESS", "app", "SUCCESS", "web", "SUCCESS", "monitoring", "SUCCESS"));
+    assertTrue(order.indexOf("web") < order.indexOf("app") && order.indexOf("app") < order.indexOf("network"), order.toString());
+  }
+
+  public void failure_skips_the_dependents() throws Exception {
+    final List<String> order = new ArrayList<String>();
+    final Map<String, StackGraphDeployer.Outcome> outcomes = new StackGraphDeployer(load(STACKS), false, 2, 1000).run(recording(order, "network"));
+
+    assertEquals(outcomes, outcomes("network", "FAILURE", "app", "SKIPPED", "web", "SKIPPED", "monitoring", "SUCCESS"));
+    assertFalse(order.contains("app") || order.contains("web"), order.toString());
+  }
+
+  public void delete_failure_skips_the_dependencies() throws Exception {
+    final List<String> order = new ArrayList<String>();
+    final Map<String, StackGraphDeployer.Outcome> outcomes = new StackGraphDeployer(load(STACKS), true, 2, 1000).run(recording(order, "web"));
+
+    assertEquals(outcomes, outcomes("network", "SKIPPED", "app", "SKIPPED", "web", "FAILURE", "monitoring", "SUCCESS"));
+  }
+
+  public void exception_fails_the_stack_and_skips_its_dependents() throws Exception {
+    final Map<String, StackGraphDeployer.Outcome> outcomes = new StackGraphDeployer(load(STACKS), false, 2, 1000).run(new StackGraphDeployer.StackAction() {
+      @Override
+      public boolean run(@NotNull StackManifest.Stack stack) {
+        if ("network".equals(stack.myName)) throw new IllegalStateException("Unexpected");
+        return true;
+      }
+    });
+
+    assertEquals(outcomes, outcomes("network", "FAILURE", "app", "SKIPPED", "web", "SKIPPED", "monitoring", "SUCCESS"));
+  }
+
+  public void concurrency_is_bounded() throws Exception {
+    final StringBuilder stacks = new StringBuilder();
+    for (int i = 0; i < 6; i++) {
+      if (i > 0) stacks.append(", ");
+      stacks.append("{\"name\": \"stack").append(i).append("\", \"template\": \"empty.json\"}");
+    }
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    new StackGraphDeployer(load(stacks.toString()), false, 2, 1000).run(new StackGraphDeployer.StackAction() {
+      @Override
+      public boolean run(@NotNull StackManifest.Stack stack) throws InterruptedException {
+        final int now = running.incrementAndGet();
+        synchronized (maxRunning) {
+          maxRunning.set(Math.max(maxRunning.get(), now));
+        }
+        Thread.sleep(50);
+        running.decrementAndGet();
+        return true;
+      }
+    });
+
+    assertEquals(maxRunning.get(), 2);
+  }
+
+  /**
+   * @param failing stack the action fails for, null if none
+   */
+  @NotNull
+  private static StackGraphDeployer.StackAction recording(@NotNull final List<String> order, final String failing) {
+    return new StackGraphDeployer.StackAction() {
+      @Override
+      public boolean run(@NotNull StackManifest.Stack stack) {
+        synchronized (order) {
+          order.add(stack.myName);
+        }
+        return !stack.myName.equals(failing);
+      }
+    };
+  }
+
+  @NotNull
+  private static Map<String, StackGraphDeployer.Outcome> outcomes(@NotNull String... namesAndOutcomes) {
+    final Map<String, StackGraphDeployer.Outcome> outcomes = new LinkedHashMap<String, StackGraphDeployer.Outcome>();
+    for (int i = 0; i < namesAndOutcomes.length; i += 2) {
+      outcomes.put(namesAndOutcomes[i], StackGraphDeployer.Outcome.valueOf(namesAndOutcomes[i + 1]));
+    }
+    return outcomes;
+  }
+
+  @NotNull
+  private StackManifest load(@NotNull String stacks) throws IOException {
+    FileUtil.writeFile(new File(myDir, "empty.json"), "{}", "UTF-8");
+    final File manifest = new File(myDir, "manifest.json");
+    FileUtil.writeFile(manifest, "{\"stacks\": [" + stacks + "]}", "UTF-8");
+    return StackManifest.load(manifest);
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.cloudformation;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+@Test
+public class StackManifestTest extends BaseTestCase {
+  private File myDir;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = createTempDir();
+  }
+
+  public void yaml_sub_export_with_stack_name() throws IOException {
+    write("network.yaml",
+        "Outputs:\n" +
+        "  Vpc:\n" +
+        "    Value: !Ref Vpc\n" +
+        "    Export:\n" +
+        "      Name: !Sub '${AWS::StackName}-Vpc'\n");
+    write("app.yaml",
+        "Resources:\n" +
+        "  Subnet:\n" +
+        "    Properties:\n" +
+        "      VpcId: !ImportValue network-Vpc\n");
+
+    assertEquals(getDependencies(loadYaml("network", "app")), map("network", "", "app", "network"));
+  }
+
+  public void yaml_plain_and_double_quoted_sub() throws IOException {
+    write("network.yaml",
+        "Outputs:\n" +
+        "  Vpc:\n" +
+        "    Export:\n" +
+        "      Name: !Sub ${AWS::StackName}-Vpc\n" +
+        "  Subnet:\n" +
+        "    Export:\n" +
+        "      Name: !Sub \"${AWS::StackName}-Subnet\"\n");
+    write("app.yaml",
+        "Resources:\n" +
+        "  Instance:\n" +
+        "    Properties:\n" +
+        "      SubnetId: !ImportValue \"network-Subnet\"\n");
+
+    assertEquals(getDependencies(loadYaml("network", "app")), map("network", "", "app", "network"));
+  }
+
+  public void yaml_sub_with_other_variables_is_ignored() throws IOException {
+    // both stacks would export and import "$" if the names were cut at the brace
+    write("network.yaml",
+        "Outputs:\n" +
+        "  Vpc:\n" +
+        "    Export:\n" +
+        "      Name: !Sub '${Env}-Vpc'\n" +
+        "Resources:\n" +
+        "  Peer:\n" +
+        "    Properties:\n" +
+        "      VpcId: !ImportValue !Sub \"${Env}-AppVpc\"\n");
+    write("app.yaml",
+        "Outputs:\n" +
+        "  Vpc:\n" +
+        "    Export:\n" +
+        "      Name: !Sub \"${Env}-AppVpc\"\n" +
+        "Resources:\n" +
+        "  Subnet:\n" +
+        "    Properties:\n" +
+        "      VpcId:\n" +
+        "        Fn::ImportValue: !Sub '${Env}-Vpc'\n");
+
+    assertEquals(getDependencies(loadYaml("network", "app")), map("network", "", "app", ""));
+  }
+
+  public void json_sub_export_with_stack_name() throws IOException {
+    write("network.json",
+        "{\"Outputs\": {\"Vpc\": {\"Value\": {\"Ref\": \"Vpc\"}, \"Export\": {\"Name\": {\"Fn::Sub\": \"${AWS::StackName}-Vpc\"}}}}}");
+    write("app.json",
+        "{\"Resources\": {\"Subnet\": {\"Properties\": {\"VpcId\": {\"Fn::ImportValue\": \"network-Vpc\"}}}}}");
+
+    assertEquals(getDependencies(loadJson("network", "app")), map("network", "", "app", "network"));
+  }
+
+  @NotNull
+  private StackManifest loadYaml(@NotNull String... stacks) throws IOException {
+    return load("yaml", stacks);
+  }
+
+  @NotNull
+  private StackManifest loadJson(@NotNull String... stacks) throws IOException {
+    return load("json", stacks);
+  }
+
+  @NotNull
+  private StackManifest load(@NotNull String extension, @NotNull String[] stacks) throws IOException {
+    final StringBuilder manifest = new StringBuilder("{\"stacks\": [");
+    for (int i = 0; i < stacks.length; i++) {
+      if (i > 0) manifest.append(", ");
+      manifest.append("{\"name\": \"").append(stacks[i]).append("\", \"template\": \"").append(stacks[i]).append('.').append(extension).append("\"}");
+    }
+    manifest.append("]}");
+    return StackManifest.load(write("manifest.json", manifest.toString()));
+  }
+
+  @NotNull
+  private static Map<String, String> getDependencies(@NotNull StackManifest manifest) {
+    final Map<String, String> dependencies = new LinkedHashMap<String, String>();
+    for (StackManifest.Stack stack : manifest.getStacks()) {
+      final StringBuilder names = new StringBuilder();
+      for (String dependency : stack.myDependsOn) {
+        if (names.length() > 0) names.append(',');
+        names.append(dependency);
+      }
+      dependencies.put(stack.myName, names.toString());
+    }
+    return dependencies;
+  }
+
+  @NotNull
+  private static Map<String, String> map(@NotNull String... keysAndValues) {
+    final Map<String, String> map = new LinkedHashMap<String, String>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      map.put(keysAndValues[i], keysAndValues[i + 1]);
+    }
+    return map;
+  }
+
+  @NotNull
+  private File write(@NotNull String name, @NotNull String text) throws IOException {
+    final File file = new File(myDir, name);
+    FileUtil.writeFile(file, text, "UTF-8");
+    return file;
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.cloudformation;
+
+import jetbrains.buildServer.util.amazon.AWSCommonParams;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Build problem identities are calculated for every reported problem
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class IdentityBenchmark {
+  private static final String CHECKOUT_DIR = "/opt/buildAgent/work/0a1b2c3d4e5f6a7b";
+
+  private Map<String, String> myParameters;
+  private List<String> myParts;
+
+  @Setup
+  public void setUp() {
+    myParameters = BenchmarkFixtures.runnerParameters();
+    myParts = Arrays.asList("templates/app.json", "benchmark-templates", BenchmarkFixtures.STACK_NAME, "CREATE_FAILED");
+  }
+
+  @Benchmark
+  public int calculateIdentity() {
+    return AWSCommonParams.calculateIdentity(CHECKOUT_DIR, myParameters, myParts);
+  }
+}
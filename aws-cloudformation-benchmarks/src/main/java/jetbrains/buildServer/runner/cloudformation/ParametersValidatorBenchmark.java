@@ -0,0 +1,58 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.cloudformation;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Settings are validated on every save of the runner settings page and before each step
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ParametersValidatorBenchmark {
+  private Map<String, String> myValid;
+  private Map<String, String> myInvalid;
+
+  @Setup
+  public void setUp() {
+    myValid = BenchmarkFixtures.runnerParameters();
+    myValid.put(CloudFormationConstants.ADDITIONAL_REGIONS_PARAM, "eu-west-1, ap-southeast-2, us-west-2");
+
+    myInvalid = BenchmarkFixtures.runnerParameters();
+    myInvalid.put(CloudFormationConstants.S3_BUCKET_NAME_PARAM, "bucket/folder");
+    myInvalid.put(CloudFormationConstants.ADDITIONAL_REGIONS_PARAM, "eu-west-1, mars-north-1");
+    myInvalid.put(CloudFormationConstants.WAIT_TIMEOUT_SEC_PARAM, "forever");
+    myInvalid.remove(CloudFormationConstants.ONFAILURE_PARAM);
+  }
+
+  @Benchmark
+  public Map<String, String> validSettings() {
+    return ParametersValidator.validateSettings(myValid);
+  }
+
+  @Benchmark
+  public Map<String, String> invalidSettings() {
+    return ParametersValidator.validateSettings(myInvalid);
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.cloudformation;
+
+import com.amazonaws.services.cloudformation.model.StackEvent;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every stack event and progress message goes through the service message escaping
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ServiceMessageBenchmark {
+  @Param({"plain", "special", "unicode"})
+  public String myText;
+
+  private String myValue;
+  private ServiceMessageEncoder myEncoder;
+  private LoggingDeploymentListener myListener;
+  private StackEvent myEvent;
+
+  @Setup
+  public void setUp() {
+    if ("plain".equals(myText)) {
+      myValue = "Resource handler returned message: The maximum number of addresses has been reached. (Service: Ec2, Status Code: 400)";
+    } else if ("special".equals(myText)) {
+      myValue = "Parameter 'VpcId' [vpc-0a1b2c3d] must be one of:\n|AllowedValues| 100% used\r\n[ 'a', 'b' ]";
+    } else {
+      myValue = "\u0420\u0435\u0441\u0443\u0440\u0441 \u0441\u043e\u0437\u0434\u0430\u043d \u2014 \u30b9\u30c6\u30fc\u30bf\u30b9 COMPLETE \u2192 ok\u2028next";
+    }
+    myEncoder = new ServiceMessageEncoder();
+    myListener = new LoggingDeploymentListener(BenchmarkFixtures.runnerParameters(), BenchmarkFixtures.noOpLogger(), "/opt/buildAgent/work", "RUNNER_1");
+    myEvent = BenchmarkFixtures.event(1).withResourceStatusReason(myValue);
+  }
+
+  @Benchmark
+  public String encode() {
+    return myEncoder.start("progressMessage").value(myValue).end();
+  }
+
+  @Benchmark
+  public String statistic() {
+    return myEncoder.statistic("cloudformation.us-east-1.benchmark.resource.Resource1.durationMs", 480000);
+  }
+
+  @Benchmark
+  public LoggingDeploymentListener stackEvent() {
+    myListener.stackEvent(myEvent);
+    return myListener;
+  }
+
+  @Benchmark
+  public LoggingDeploymentListener progress() {
+    myListener.progress(myValue);
+    return myListener;
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.cloudformation;
+
+import com.amazonaws.services.cloudformation.model.StackEvent;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading, deduplicating and pairing the events of stacks with long histories
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class StackEventBenchmark {
+  private static final int NEW_EVENTS = 100;
+
+  @Param({"10000", "100000"})
+  public int myEventCount;
+
+  private BenchmarkFixtures.StubCloudFormationClient myClient;
+  private List<StackEvent> myOldestFirst;
+
+  @Setup
+  public void setUp() {
+    myClient = new BenchmarkFixtures.StubCloudFormationClient(myEventCount, 0, 0);
+    myOldestFirst = new StackEventStreamer(BenchmarkFixtures.STACK_ID).readNewEvents(myClient);
+  }
+
+  /**
+   * The first poll of a stack whose previous events weren't skipped
+   */
+  @Benchmark
+  public List<StackEvent> readAll() {
+    return new StackEventStreamer(BenchmarkFixtures.STACK_ID).readNewEvents(myClient);
+  }
+
+  /**
+   * A regular poll: only the events after the last seen one are new
+   */
+  @Benchmark
+  public List<StackEvent> readNew() {
+    final StackEventStreamer streamer = new StackEventStreamer(BenchmarkFixtures.STACK_ID);
+    streamer.skipUntil(myClient.getEventId(NEW_EVENTS));
+    return streamer.readNewEvents(myClient);
+  }
+
+  @Benchmark
+  public List<ResourceTimings.Timing> resourceTimings() {
+    final ResourceTimings timings = new ResourceTimings();
+    for (StackEvent event : myOldestFirst) {
+      timings.onEvent(event);
+    }
+    return timings.getFinished();
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.cloudformation;
+
+import jetbrains.buildServer.util.amazon.AWSCommonParams;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The whole wait loop against a stubbed client which completes the stack after the given number of polls,
+ * the poll delay is zero so that only the CPU and allocation cost of the loop is measured
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class WaitForStackBenchmark {
+  private static final int EVENTS_PER_POLL = 10;
+
+  @Param({"100", "1000"})
+  public int myPolls;
+
+  private AWSClient myAWSClient;
+  private BenchmarkFixtures.StubCloudFormationClient myClient;
+
+  @Setup(Level.Trial)
+  public void setUpClient() {
+    final LoggingDeploymentListener listener = new LoggingDeploymentListener(BenchmarkFixtures.runnerParameters(),
+        BenchmarkFixtures.noOpLogger(), "/opt/buildAgent/work", "RUNNER_1");
+    myAWSClient = new AWSClient(AWSCommonParams.createAWSClients(BenchmarkFixtures.runnerParameters()))
+        .withListener(listener)
+        .withPollStrategy(new PollStrategy() {
+          @Override
+          public long getDelayMillis(int attempt) {
+            return 0;
+          }
+        });
+  }
+
+  @Setup(Level.Invocation)
+  public void setUpStack() {
+    myClient = new BenchmarkFixtures.StubCloudFormationClient(0, EVENTS_PER_POLL, myPolls);
+  }
+
+  @Benchmark
+  public BenchmarkFixtures.StubCloudFormationClient waitForStack() throws InterruptedException {
+    myAWSClient.waitForStack(myClient, BenchmarkFixtures.STACK_NAME, BenchmarkFixtures.STACK_ID, StackOperation.CREATE,
+        new StackEventStreamer(BenchmarkFixtures.STACK_ID));
+    return myClient;
+  }
+}
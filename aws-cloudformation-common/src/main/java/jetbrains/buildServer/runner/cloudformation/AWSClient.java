@@ -16,25 +16,55 @@
 
 package jetbrains.buildServer.runner.cloudformation;
 
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.regions.Region;
-import com.amazonaws.regions.Regions;
 import com.amazonaws.services.cloudformation.AmazonCloudFormationClient;
+import com.amazonaws.services.cloudformation.model.CancelUpdateStackRequest;
+import com.amazonaws.services.cloudformation.model.Change;
+import com.amazonaws.services.cloudformation.model.ChangeSetStatus;
+import com.amazonaws.services.cloudformation.model.CreateChangeSetRequest;
+import com.amazonaws.services.cloudformation.model.CreateStackInstancesRequest;
 import com.amazonaws.services.cloudformation.model.CreateStackRequest;
+import com.amazonaws.services.cloudformation.model.CreateStackSetRequest;
+import com.amazonaws.services.cloudformation.model.DeleteChangeSetRequest;
 import com.amazonaws.services.cloudformation.model.DeleteStackRequest;
-import com.amazonaws.services.cloudformation.model.DescribeStackEventsRequest;
-import com.amazonaws.services.cloudformation.model.DescribeStackEventsResult;
+import com.amazonaws.services.cloudformation.model.DescribeChangeSetRequest;
+import com.amazonaws.services.cloudformation.model.DescribeChangeSetResult;
+import com.amazonaws.services.cloudformation.model.DescribeStackSetOperationRequest;
+import com.amazonaws.services.cloudformation.model.DescribeStackSetRequest;
 import com.amazonaws.services.cloudformation.model.DescribeStacksRequest;
+import com.amazonaws.services.cloudformation.model.ExecuteChangeSetRequest;
+import com.amazonaws.services.cloudformation.model.ListStackInstancesRequest;
+import com.amazonaws.services.cloudformation.model.ListStackInstancesResult;
 import com.amazonaws.services.cloudformation.model.Stack;
 import com.amazonaws.services.cloudformation.model.StackEvent;
+import com.amazonaws.services.cloudformation.model.StackInstanceSummary;
+import com.amazonaws.services.cloudformation.model.StackSetNotFoundException;
+import com.amazonaws.services.cloudformation.model.StackSetOperationPreferences;
+import com.amazonaws.services.cloudformation.model.StackSetOperationResultSummary;
+import com.amazonaws.services.cloudformation.model.StackSetOperationStatus;
 import com.amazonaws.services.cloudformation.model.StackStatus;
+import com.amazonaws.services.cloudformation.model.Tag;
 import com.amazonaws.services.cloudformation.model.UpdateStackRequest;
+import com.amazonaws.services.cloudformation.model.UpdateStackSetRequest;
 import com.amazonaws.services.cloudformation.model.ValidateTemplateRequest;
+import com.amazonaws.services.cloudformation.model.ValidateTemplateResult;
 
 import jetbrains.buildServer.util.amazon.AWSClients;
 import jetbrains.buildServer.util.amazon.AWSException;
+import jetbrains.buildServer.util.amazon.AWSRegions;
 
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
@@ -42,14 +72,40 @@ import org.jetbrains.annotations.Nullable;
 
 public class AWSClient {
 
+	private static final String CHANGE_SET_NAME_PREFIX = "teamcity-";
+	private static final long CANCEL_POLL_INTERVAL_MS = 2000;
+
+	@NotNull
+	private final AWSClients myClients;
 	@NotNull
 	private AmazonCloudFormationClient myCloudFormationClient;
 	@Nullable
 	private String myDescription;
 	@NotNull
 	private Listener myListener = new Listener();
+	@NotNull
+	private PollStrategy myPollStrategy = new ExponentialBackoffPollStrategy(CloudFormationConstants.WAIT_POLL_INTERVAL_SEC_DEFAULT);
+	private int myWaitTimeoutSec = CloudFormationConstants.WAIT_TIMEOUT_SEC_DEFAULT;
+	@Nullable
+	private SharedStackPoller myStackPoller;
+	@Nullable
+	private String myStackPollerGroupKey;
+	private boolean myUseChangeSets;
+	@Nullable
+	private ValidationCache myValidationCache;
+	@NotNull
+	private List<String> myStackSetAccounts = Collections.emptyList();
+	@NotNull
+	private List<String> myStackSetRegions = Collections.emptyList();
+	@Nullable
+	private StackSetOperationPreferences myStackSetPreferences;
+	private boolean myForceRevalidation;
+	private int myInterruptGraceSec;
+	private boolean myDetached;
+	private boolean mySkipUnchanged;
 
 	public AWSClient(@NotNull AWSClients clients) {
+		myClients = clients;
 		myCloudFormationClient = clients.createCloudFormationClient();
 	}
 
@@ -65,6 +121,119 @@ public class AWSClient {
 		return this;
 	}
 
+	@NotNull
+	public AWSClient withPollStrategy(@NotNull PollStrategy pollStrategy) {
+		myPollStrategy = pollStrategy;
+		return this;
+	}
+
+	/**
+	 * Stacks will be polled by the agent-wide poller together with other stacks of the same
+	 * credentials and region instead of being described separately by each build
+	 *
+	 * @param groupKey must identify both credentials and region
+	 */
+	@NotNull
+	public AWSClient withStackPoller(@NotNull SharedStackPoller poller, @NotNull String groupKey) {
+		myStackPoller = poller;
+		myStackPollerGroupKey = groupKey;
+		return this;
+	}
+
+	/**
+	 * Stacks will be updated through change sets: the change set is summarized before it's
+	 * executed and the update is skipped altogether if the change set is empty
+	 */
+	@NotNull
+	public AWSClient withChangeSets(boolean useChangeSets) {
+		myUseChangeSets = useChangeSets;
+		return this;
+	}
+
+	/**
+	 * Validation results of templates with known digests will be looked up in the cache and stored there
+	 *
+	 * @param forceRevalidation if true, templates are always validated by CloudFormation and the cached results are replaced
+	 */
+	@NotNull
+	public AWSClient withValidationCache(@NotNull ValidationCache validationCache, boolean forceRevalidation) {
+		myValidationCache = validationCache;
+		myForceRevalidation = forceRevalidation;
+		return this;
+	}
+
+	/**
+	 * Deployed stacks will be tagged with the fingerprint of the template (see {@link StackFingerprint}),
+	 * updates of stacks which already carry the fingerprint of the template being deployed are skipped
+	 */
+	@NotNull
+	public AWSClient withSkipUnchanged(boolean skipUnchanged) {
+		mySkipUnchanged = skipUnchanged;
+		return this;
+	}
+
+	/**
+	 * Stack operations are only submitted, their completion is tracked by the server
+	 */
+	@NotNull
+	public AWSClient withDetached(boolean detached) {
+		myDetached = detached;
+		return this;
+	}
+
+	/**
+	 * When the build is interrupted while waiting for a stack, the update is cancelled or the stack being
+	 * created is deleted, and the stack is followed for up to graceSec. With 0 the operation is left running.
+	 */
+	@NotNull
+	public AWSClient withCancelOnInterrupt(int graceSec) {
+		myInterruptGraceSec = graceSec;
+		return this;
+	}
+
+	/**
+	 * Stack instances the StackSet action deploys the stack set to
+	 *
+	 * @param preferences concurrency and failure tolerance of the stack set operations, defaults are used if null
+	 */
+	@NotNull
+	public AWSClient withStackSetTargets(@NotNull List<String> accounts, @NotNull List<String> regions, @Nullable StackSetOperationPreferences preferences) {
+		myStackSetAccounts = accounts;
+		myStackSetRegions = regions;
+		myStackSetPreferences = preferences;
+		return this;
+	}
+
+	/**
+	 * Stack operations which don't reach a terminal status within waitTimeoutSec
+	 * are reported as {@link CloudFormationConstants#TIMEOUT_BUILD_PROBLEM_TYPE}
+	 */
+	@NotNull
+	public AWSClient withWaitTimeout(int waitTimeoutSec) {
+		myWaitTimeoutSec = waitTimeoutSec;
+		return this;
+	}
+
+	/**
+	 * Uploads the template to S3 bucket under a key derived from the template contents,
+	 * the upload is skipped if the bucket already has the template.
+	 *
+	 * @param keyPrefix folder inside the bucket to upload the template to, may be empty
+	 * @return location of the template or null if the upload failed, in the latter case
+	 *         the failure is already reported to the listener
+	 */
+	@Nullable
+	public TemplateUploader.TemplateLocation uploadTemplate(@NotNull File template, @NotNull String s3BucketName, @Nullable String keyPrefix) {
+		try {
+			final TemplateUploader.TemplateLocation location = new TemplateUploader(myClients.createS3Client()).upload(template, s3BucketName, keyPrefix);
+			myListener.templateUploaded(template.getName(), location);
+			return location;
+		} catch (Throwable t) {
+			processFailure(t);
+			return null;
+		}
+	}
+
 	/**
 	 * Uploads application revision archive to S3 bucket named s3BucketName with
 	 * the provided key and bundle type.
@@ -72,179 +241,624 @@ public class AWSClient {
 	 * For performing this operation target AWSClient must have corresponding S3
 	 * permissions.
 	 *
+	 * @param templateBody
+	 *            template to pass inline, the template is read from S3 if null
+	 * @param templateDigest
+	 *            SHA-256 of the template if it's known, templates with known digests are validated only once
 	 * @param s3BucketName
 	 *            valid S3 bucket name
 	 * @param s3ObjectKey
 	 *            valid S3 object key
+	 * @param s3ObjectVersion
+	 *            version of the S3 object, the latest version is used if null
 	 */
-	public void initiateCFN(@NotNull String stackName, @NotNull String region, @NotNull String s3BucketName,
-			@NotNull String s3ObjectKey, @NotNull String cfnAction, @NotNull String onFailure) {
+	public void initiateCFN(@NotNull String stackName, @NotNull String region, @Nullable String templateBody, @Nullable String templateDigest, @NotNull String s3BucketName,
+			@NotNull String s3ObjectKey, @Nullable String s3ObjectVersion, @NotNull String cfnAction, @NotNull String onFailure) {
 		try {
-			String templateURL;
-			Region reg = Region.getRegion(Regions.fromName(region));
-			myCloudFormationClient.setRegion(reg);
-			templateURL = getTemplateUrl(reg, s3BucketName, s3ObjectKey);
-			System.out.println("The template url is " + templateURL);
+			String templateURL = null;
+			if (templateBody == null) {
+				templateURL = getTemplateUrl(AWSRegions.getRegionInfo(region), s3BucketName, s3ObjectKey, s3ObjectVersion);
+				System.out.println("The template url is " + templateURL);
+			}
+			final String templateSource = templateURL == null ? "inline template (" + TemplateMinifier.getSize(templateBody) + " bytes)" : templateURL;
+			final String fingerprint = mySkipUnchanged && templateDigest != null ? StackFingerprint.compute(templateDigest) : null;
 
 			if (cfnAction.equalsIgnoreCase("Create")) {
 				System.out.println("The CFN action is " + cfnAction);
-				myListener.createStackStarted(stackName, region, s3BucketName, s3ObjectKey, cfnAction);
+				myListener.createStackStarted(stackName, region, templateSource, cfnAction);
 				CreateStackRequest createRequest = new CreateStackRequest();
 				createRequest.setStackName(stackName);
 				if (!onFailure.equalsIgnoreCase("null"))
 					createRequest.setOnFailure(onFailure);
 				createRequest.setTemplateURL(templateURL);
-				myCloudFormationClient.createStack(createRequest);
-				waitForCompletion(myCloudFormationClient, stackName);
+				createRequest.setTemplateBody(templateBody);
+				if (fingerprint != null) createRequest.setTags(StackFingerprint.createTags(null, fingerprint));
+				final StackEventStreamer events = new StackEventStreamer(stackName);
+				final String stackId = myCloudFormationClient.createStack(createRequest).getStackId();
+				waitForStack(myCloudFormationClient, stackName, stackId, StackOperation.CREATE, events);
 
 			} else if (cfnAction.equalsIgnoreCase("Delete")) {
 				myListener.deleteStarted(stackName, region);
+				final Stack stack = findStack(stackName);
+				if (stack == null) {
+					myListener.waitForStack("Stack " + stackName + " doesn't exist");
+					myListener.deleteSucceeded(stackName);
+					return;
+				}
 				DeleteStackRequest deleteStackRequest = new DeleteStackRequest();
-				deleteStackRequest.setStackName(stackName);
+				deleteStackRequest.setStackName(stack.getStackId());
+				final StackEventStreamer events = new StackEventStreamer(stack.getStackId());
+				events.skipExisting(myCloudFormationClient);
 				myCloudFormationClient.deleteStack(deleteStackRequest);
-				waitForDelete(myCloudFormationClient, stackName);
+				waitForStack(myCloudFormationClient, stackName, stack.getStackId(), StackOperation.DELETE, events);
 
 			} else if (cfnAction.equalsIgnoreCase("Validate")) {
 				myListener.validateStarted(stackName);
-				ValidateTemplateRequest validatetempRequest = new ValidateTemplateRequest();
-				validatetempRequest.setTemplateURL(templateURL);
-				myListener.validateFinished(
-						myCloudFormationClient.validateTemplate(validatetempRequest).getParameters().toString());
+				ValidateTemplateResult validateResult = null;
+				if (templateDigest != null && myValidationCache != null && !myForceRevalidation) {
+					validateResult = myValidationCache.get(templateDigest, region);
+					if (validateResult != null) myListener.validationCached(templateDigest);
+				}
+				if (validateResult == null) {
+					ValidateTemplateRequest validatetempRequest = new ValidateTemplateRequest();
+					validatetempRequest.setTemplateURL(templateURL);
+					validatetempRequest.setTemplateBody(templateBody);
+					validateResult = myCloudFormationClient.validateTemplate(validatetempRequest);
+					if (templateDigest != null && myValidationCache != null) {
+						myValidationCache.put(templateDigest, region, validateResult);
+					}
+				}
+				myListener.validateFinished(validateResult.getParameters().toString(), validateResult.getCapabilities());
+
+			} else if (cfnAction.equalsIgnoreCase("StackSet")) {
+				deployStackSet(stackName, templateURL, templateBody);
 
 			} else if (cfnAction.equalsIgnoreCase("Update")) {
 				myListener.updateInProgress(stackName);
+				final Stack stack = findStack(stackName);
+				if (stack != null && fingerprint != null && StackFingerprint.matches(stack, fingerprint)) {
+					myListener.stackUnchanged(stackName, fingerprint);
+					return;
+				}
+				final List<Tag> tags = getUpdateTags(stack, fingerprint);
+				final StackEventStreamer events = new StackEventStreamer(stackName);
+				events.skipExisting(myCloudFormationClient);
+				if (myUseChangeSets) {
+					updateWithChangeSet(stackName, templateURL, templateBody, tags, events);
+					return;
+				}
 				UpdateStackRequest updateStackRequest = new UpdateStackRequest();
 				updateStackRequest.setStackName(stackName);
 				updateStackRequest.setTemplateURL(templateURL);
-				myCloudFormationClient.updateStack(updateStackRequest);
-				waitForCompletion(myCloudFormationClient, stackName);
+				updateStackRequest.setTemplateBody(templateBody);
+				updateStackRequest.setTags(tags);
+				final String stackId;
+				try {
+					stackId = myCloudFormationClient.updateStack(updateStackRequest).getStackId();
+				} catch (AmazonServiceException e) {
+					if (!isNoUpdates(e.getErrorMessage())) throw e;
+					myListener.stackUpToDate(stackName);
+					return;
+				}
+				waitForStack(myCloudFormationClient, stackName, stackId, StackOperation.UPDATE, events);
 			}
 		} catch (Throwable t) {
 			processFailure(t);
 		}
 	}
 
-	public void waitForCompletion(AmazonCloudFormationClient stackbuilder, String stackName)
-			throws InterruptedException {
-		DescribeStacksRequest wait = new DescribeStacksRequest();
-		wait.setStackName(stackName);
-		Boolean completed = false;
-		String action = "CREATE";
-		String stackStatus = "Waiting";
-		String stackReason = "";
-		String stackId = "";
-		List<String> events;
-		int len, first, last;
+	/**
+	 * Polls the stack until the operation reaches one of its terminal statuses (see {@link StackOperation})
+	 * or the wait timeout expires. The stack is polled by ID as deleted stacks can't be described by name.
+	 */
+	public void waitForStack(@NotNull AmazonCloudFormationClient stackbuilder, @NotNull String stackName, @NotNull String stackId,
+			@NotNull StackOperation operation, @NotNull StackEventStreamer events) throws InterruptedException {
+		waitForStack(stackbuilder, stackName, stackId, operation, events, null);
+	}
 
-		first = 0;
+	/**
+	 * @param before state of the stack before an operation which doesn't return until the stack status changes,
+	 *               e.g. ExecuteChangeSet: while the stack keeps this status and last update time, the operation
+	 *               is considered not started yet rather than finished
+	 */
+	private void waitForStack(@NotNull AmazonCloudFormationClient stackbuilder, @NotNull String stackName, @NotNull String stackId,
+			@NotNull StackOperation operation, @NotNull StackEventStreamer events, @Nullable Stack before) throws InterruptedException {
+		final long deadline = getWaitDeadline();
+		int attempt = 0;
+		String lastStatus = null;
 
-		myListener.waitForStack(stackStatus);
+		events.setStackId(stackId);
+		if (myDetached) {
+			myListener.operationDetached(stackName, stackId, operation, events.getLastSeenEventId());
+			return;
+		}
+		myListener.waitForStack("Waiting");
 
-		while (!completed) {
-			List<Stack> stacks = stackbuilder.describeStacks(wait).getStacks();
-			if (stacks.isEmpty()) {
-				completed = true;
-				stackStatus = "NO_SUCH_STACK";
-				stackReason = "Stack has been deleted";
-			} else {
-				for (Stack stack : stacks) {
-					if (stack.getStackStatus().equals(StackStatus.CREATE_COMPLETE.toString())
-							|| stack.getStackStatus().equals(StackStatus.CREATE_FAILED.toString())
-							|| stack.getStackStatus().equals(StackStatus.ROLLBACK_FAILED.toString())
-							|| stack.getStackStatus().equals(StackStatus.DELETE_FAILED.toString())) {
-						completed = true;
-						stackStatus = stack.getStackStatus();
-						if (stack.getStackStatus().equals(StackStatus.CREATE_COMPLETE.toString())) {
-							stackReason = "Success";
+		final ResourceTimings timings = new ResourceTimings();
+		Stack stack = describeStack(stackbuilder, stackId);
+		final StackTracker tracker = startTracking(stackbuilder, stackId, stack);
+		try {
+			while (true) {
+				final String stackStatus = stack == null ? StackStatus.DELETE_COMPLETE.toString() : stack.getStackStatus();
+				reportNewEvents(stackbuilder, events, timings);
+
+				if (before != null && isChanged(before, stack)) before = null;
+				// until the operation starts, the stack shows the outcome of the previous one
+				final StackOperation.Outcome outcome = before == null ? operation.classify(stackStatus) : StackOperation.Outcome.IN_PROGRESS;
+				if (outcome != StackOperation.Outcome.IN_PROGRESS || !stackStatus.equals(lastStatus)) {
+					myListener.waitForStack(stackStatus);
+					lastStatus = stackStatus;
+				}
+
+				if (outcome != StackOperation.Outcome.IN_PROGRESS) myListener.resourceTimings(stackName, timings.getFinished());
+
+				switch (outcome) {
+					case SUCCESS:
+						if (operation == StackOperation.DELETE) {
+							myListener.deleteSucceeded(stackName);
 						} else {
-							stackReason = "Failure";
+							myListener.createStackFinished(stackName, stackStatus);
 						}
-						stackId = stack.getStackId();
-					}
+						return;
+					case FAILURE:
+						final String reason = stack == null ? null : stack.getStackStatusReason();
+						myListener.createStackFailed(stackName, stackStatus, reason == null ? "Failure" : reason);
+						return;
+					default:
+						if (!tracker.awaitNext(attempt++, deadline)) {
+							myListener.resourceTimings(stackName, timings.getFinished());
+							myListener.stackWaitTimedOut(stackName, stackStatus, myWaitTimeoutSec);
+							return;
+						}
+						stack = refreshStack(tracker, stack);
 				}
 			}
-			//sleep for 10 seconds
-			Thread.sleep(10000);
-		}
-		
-		if (completed) {
-			events = describeStackEvents(stackbuilder, stackName, action);
-			for (String event : events) {
-				myListener.waitForStack(event.toString());
+		} catch (InterruptedException e) {
+			cancelOperation(stackName, stackId, operation, events, timings);
+		} catch (AbortedException e) {
+			// the SDK aborts requests of an interrupted thread
+			cancelOperation(stackName, stackId, operation, events, timings);
+		} finally {
+			tracker.close();
+		}
+	}
+
+	/**
+	 * Called when the build is interrupted while waiting for the stack. Unless cancellation is disabled, rolls the
+	 * update back or deletes the stack being created and follows it for the grace period, so that the stack isn't
+	 * left in the middle of an operation nobody waits for. The timings of the resources finished so far are published
+	 * however the cancellation ends. The interrupted status of the thread is restored afterwards.
+	 */
+	private void cancelOperation(@NotNull String stackName, @NotNull String stackId, @NotNull StackOperation operation,
+			@NotNull StackEventStreamer events, @NotNull ResourceTimings timings) {
+		Thread.interrupted();
+		try {
+			final StackOperation cancellation = operation.getCancellation();
+			if (cancellation == null || myInterruptGraceSec <= 0) {
+				myListener.waitInterrupted(stackName);
+				return;
 			}
-			events.clear();
 
+			myListener.cancelStarted(stackName, operation);
+			try {
+				if (operation == StackOperation.UPDATE) {
+					myCloudFormationClient.cancelUpdateStack(new CancelUpdateStackRequest().withStackName(stackId));
+				} else {
+					myCloudFormationClient.deleteStack(new DeleteStackRequest().withStackName(stackId));
+				}
+			} catch (AmazonServiceException e) {
+				// the operation may have finished meanwhile, the stack status will tell
+			}
+
+			final long deadline = System.currentTimeMillis() + myInterruptGraceSec * 1000L;
+			while (true) {
+				final Stack stack = describeStack(myCloudFormationClient, stackId);
+				final String stackStatus = stack == null ? StackStatus.DELETE_COMPLETE.toString() : stack.getStackStatus();
+				reportNewEvents(myCloudFormationClient, events, timings);
+				if (cancellation.classify(stackStatus) != StackOperation.Outcome.IN_PROGRESS) {
+					myListener.cancelFinished(stackName, stackStatus);
+					return;
+				}
+				final long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					myListener.cancelTimedOut(stackName, stackStatus, myInterruptGraceSec);
+					return;
+				}
+				Thread.sleep(Math.min(CANCEL_POLL_INTERVAL_MS, remaining));
+			}
+		} catch (InterruptedException e) {
+			// interrupted once more, stop following the stack
+		} catch (RuntimeException e) {
+			processFailure(e);
+		} finally {
+			myListener.resourceTimings(stackName, timings.getFinished());
+			Thread.currentThread().interrupt();
 		}
-		myListener.waitForStack(stackStatus);
-		if (stackReason.contains("Failure")) {
-			myListener.createStackFailed(stackName, stackStatus, stackReason);
+	}
+
+	/**
+	 * Creates the stack set or updates all its existing instances, then creates the instances missing for
+	 * the target accounts and regions. CloudFormation deploys the instances, the build only follows the operations.
+	 */
+	private void deployStackSet(@NotNull String stackSetName, @Nullable String templateURL, @Nullable String templateBody) throws InterruptedException {
+		myListener.stackSetStarted(stackSetName, myStackSetAccounts, myStackSetRegions);
+
+		final Set<String> existing;
+		if (isStackSetExists(stackSetName)) {
+			existing = getStackInstances(stackSetName);
+			final String operationId = myCloudFormationClient.updateStackSet(new UpdateStackSetRequest()
+					.withStackSetName(stackSetName)
+					.withTemplateURL(templateURL)
+					.withTemplateBody(templateBody)
+					.withOperationPreferences(myStackSetPreferences)).getOperationId();
+			if (!waitForStackSetOperation(stackSetName, operationId)) return;
 		} else {
-			myListener.createStackFinished(stackName, stackStatus);
+			myCloudFormationClient.createStackSet(new CreateStackSetRequest()
+					.withStackSetName(stackSetName)
+					.withTemplateURL(templateURL)
+					.withTemplateBody(templateBody)
+					.withDescription(myDescription));
+			existing = Collections.emptySet();
+		}
+
+		// there may be only one operation on a stack set at a time
+		for (Map.Entry<List<String>, List<String>> group : getMissingInstances(existing).entrySet()) {
+			final String operationId = myCloudFormationClient.createStackInstances(new CreateStackInstancesRequest()
+					.withStackSetName(stackSetName)
+					.withAccounts(group.getValue())
+					.withRegions(group.getKey())
+					.withOperationPreferences(myStackSetPreferences)).getOperationId();
+			if (!waitForStackSetOperation(stackSetName, operationId)) return;
+		}
+
+		myListener.stackSetFinished(stackSetName);
+	}
+
+	/**
+	 * @return true if the operation succeeded, otherwise the failure is already reported
+	 */
+	private boolean waitForStackSetOperation(@NotNull String stackSetName, @NotNull String operationId) throws InterruptedException {
+		final long deadline = getWaitDeadline();
+		final StackSetResultStreamer results = new StackSetResultStreamer(stackSetName, operationId);
+		myListener.stackSetOperationStarted(stackSetName, operationId);
+
+		int attempt = 0;
+		while (true) {
+			// the operation is described before its results, so that the final results are reported for a finished operation
+			final String status = myCloudFormationClient.describeStackSetOperation(new DescribeStackSetOperationRequest()
+					.withStackSetName(stackSetName).withOperationId(operationId)).getStackSetOperation().getStatus();
+			for (StackSetOperationResultSummary result : results.readChangedResults(myCloudFormationClient)) {
+				myListener.stackInstanceResult(result);
+			}
+
+			if (StackSetOperationStatus.SUCCEEDED.toString().equals(status)) return true;
+			if (StackSetOperationStatus.FAILED.toString().equals(status) || StackSetOperationStatus.STOPPED.toString().equals(status)) {
+				myListener.createStackFailed(stackSetName, "operation " + operationId + " " + status, "Failure tolerance exceeded, see stack instance results");
+				return false;
+			}
+			if (!sleepBeforeNextPoll(attempt++, deadline)) {
+				myListener.stackWaitTimedOut(stackSetName, "operation " + operationId + " " + status, myWaitTimeoutSec);
+				return false;
+			}
 		}
 	}
 
-	public void waitForDelete(AmazonCloudFormationClient stackbuilder, String stackName) throws InterruptedException {
-		DescribeStacksRequest wait = new DescribeStacksRequest();
-		wait.setStackName(stackName);
-		String stackStatus;
-		String stackReason;
-		String action = "DELETE";
-		Boolean delete = false;
-		List<String> events;
+	private boolean isStackSetExists(@NotNull String stackSetName) {
+		try {
+			myCloudFormationClient.describeStackSet(new DescribeStackSetRequest().withStackSetName(stackSetName));
+			return true;
+		} catch (StackSetNotFoundException e) {
+			return false;
+		}
+	}
 
-		while (!delete) {
+	/**
+	 * @return account/region of each stack instance
+	 */
+	@NotNull
+	private Set<String> getStackInstances(@NotNull String stackSetName) {
+		final Set<String> instances = new HashSet<String>();
+		String nextToken = null;
+		do {
+			final ListStackInstancesResult page = myCloudFormationClient.listStackInstances(new ListStackInstancesRequest()
+					.withStackSetName(stackSetName).withNextToken(nextToken));
+			for (StackInstanceSummary instance : page.getSummaries()) {
+				instances.add(instance.getAccount() + "/" + instance.getRegion());
+			}
+			nextToken = page.getNextToken();
+		} while (nextToken != null);
+		return instances;
+	}
 
-			List<Stack> stacks = stackbuilder.describeStacks(wait).getStacks();
-			if (stacks.isEmpty()) {
-				delete = true;
-				stackStatus = "NO_SUCH_STACK";
-				stackReason = "Stack has been deleted";
+	/**
+	 * CreateStackInstances creates an instance for each account and region pair, so accounts
+	 * missing instances in the same regions are grouped together
+	 *
+	 * @return regions -> accounts which lack instances in each of these regions
+	 */
+	@NotNull
+	private Map<List<String>, List<String>> getMissingInstances(@NotNull Set<String> existing) {
+		final Map<List<String>, List<String>> groups = new LinkedHashMap<List<String>, List<String>>();
+		for (String account : myStackSetAccounts) {
+			final List<String> regions = new ArrayList<String>();
+			for (String region : myStackSetRegions) {
+				if (!existing.contains(account + "/" + region)) regions.add(region);
+			}
+			if (regions.isEmpty()) continue;
+			List<String> accounts = groups.get(regions);
+			if (accounts == null) {
+				accounts = new ArrayList<String>();
+				groups.put(regions, accounts);
+			}
+			accounts.add(account);
+		}
+		return groups;
+	}
+
+	/**
+	 * A fingerprint left by an earlier deploy is dropped when the template isn't fingerprinted this time,
+	 * otherwise it could match again after the stack has been changed
+	 *
+	 * @return tags to update the stack with, null to keep the current ones
+	 */
+	@Nullable
+	private static List<Tag> getUpdateTags(@Nullable Stack stack, @Nullable String fingerprint) {
+		if (fingerprint != null) return StackFingerprint.createTags(stack, fingerprint);
+		if (stack == null || StackFingerprint.find(stack) == null) return null;
+		return StackFingerprint.getOtherTags(stack);
+	}
+
+	/**
+	 * Updates the stack through a change set. Deployments which don't change the stack finish as soon
+	 * as CloudFormation computes the (empty) change set, without going through the update cycle.
+	 */
+	private void updateWithChangeSet(@NotNull String stackName, @Nullable String templateURL, @Nullable String templateBody,
+			@Nullable List<Tag> tags, @NotNull StackEventStreamer events) throws InterruptedException {
+		final String changeSetName = CHANGE_SET_NAME_PREFIX + System.currentTimeMillis();
+		final String changeSetId = myCloudFormationClient.createChangeSet(new CreateChangeSetRequest()
+				.withStackName(stackName)
+				.withChangeSetName(changeSetName)
+				.withTemplateURL(templateURL)
+				.withTemplateBody(templateBody)
+				.withTags(tags)
+				.withDescription(myDescription)).getId();
+
+		final DescribeChangeSetResult changeSet = waitForChangeSet(changeSetId);
+		final String status = changeSet.getStatus();
+
+		if (ChangeSetStatus.FAILED.toString().equals(status)) {
+			deleteChangeSet(changeSetId);
+			final String reason = changeSet.getStatusReason();
+			if (isNoUpdates(reason)) {
+				myListener.stackUpToDate(stackName);
 			} else {
-				myListener.debugLog("From the wait for delete");
-				events = describeStackEvents(stackbuilder, stackName, action);
-				for (String event : events) {
-					myListener.waitForStack(event.toString());
-				}
-				Thread.sleep(10000);
-				events.clear();
+				myListener.createStackFailed(stackName, "change set " + status, reason == null ? "Failure" : reason);
 			}
+			return;
 		}
-		stackStatus = "done";
-		stackReason = "Delete Complete";
-		myListener.waitForStack(stackStatus);
-		myListener.createStackFinished(stackName, stackStatus);
+		if (!ChangeSetStatus.CREATE_COMPLETE.toString().equals(status)) {
+			deleteChangeSet(changeSetId);
+			myListener.stackWaitTimedOut(stackName, "change set " + status, myWaitTimeoutSec);
+			return;
+		}
+
+		final List<Change> changes = getChanges(changeSet);
+		myListener.changeSetCreated(stackName, changeSetName, changes);
+		if (changes.isEmpty()) {
+			deleteChangeSet(changeSetId);
+			myListener.stackUpToDate(stackName);
+			return;
+		}
+
+		final Stack before = describeStack(myCloudFormationClient, changeSet.getStackId());
+		myCloudFormationClient.executeChangeSet(new ExecuteChangeSetRequest().withChangeSetName(changeSetId));
+		waitForStack(myCloudFormationClient, stackName, changeSet.getStackId(), StackOperation.UPDATE, events, before);
 	}
 
-	public List<String> describeStackEvents(AmazonCloudFormationClient stackbuilder, String stackName, String ACTION) {
-		List<String> output = new ArrayList<String>();
-		DescribeStackEventsRequest request = new DescribeStackEventsRequest();
-		request.setStackName(stackName);
-		DescribeStackEventsResult results = stackbuilder.describeStackEvents(request);
-		for (StackEvent event : results.getStackEvents()) {
-			if (event.getEventId().contains(ACTION)) {
+	/**
+	 * @return the change set in a terminal status or in the last known status if the wait timeout expired
+	 */
+	@NotNull
+	private DescribeChangeSetResult waitForChangeSet(@NotNull String changeSetId) throws InterruptedException {
+		final long deadline = getWaitDeadline();
+		int attempt = 0;
+		while (true) {
+			final DescribeChangeSetResult changeSet = myCloudFormationClient.describeChangeSet(new DescribeChangeSetRequest().withChangeSetName(changeSetId));
+			final String status = changeSet.getStatus();
+			if (ChangeSetStatus.CREATE_COMPLETE.toString().equals(status) || ChangeSetStatus.FAILED.toString().equals(status)) {
+				return changeSet;
+			}
+			if (!sleepBeforeNextPoll(attempt++, deadline)) return changeSet;
+		}
+	}
 
-				output.add(event.getEventId());
-				// myListener.debugLog(event.toString());
+	@NotNull
+	private List<Change> getChanges(@NotNull DescribeChangeSetResult changeSet) {
+		final List<Change> changes = new ArrayList<Change>(changeSet.getChanges());
+		String nextToken = changeSet.getNextToken();
+		while (nextToken != null) {
+			final DescribeChangeSetResult page = myCloudFormationClient.describeChangeSet(new DescribeChangeSetRequest()
+					.withChangeSetName(changeSet.getChangeSetId()).withNextToken(nextToken));
+			changes.addAll(page.getChanges());
+			nextToken = page.getNextToken();
+		}
+		return changes;
+	}
+
+	private void deleteChangeSet(@NotNull String changeSetId) {
+		try {
+			myCloudFormationClient.deleteChangeSet(new DeleteChangeSetRequest().withChangeSetName(changeSetId));
+		} catch (AmazonServiceException e) {
+			// a leftover change set doesn't affect the stack
+		}
+	}
+
+	private static boolean isNoUpdates(@Nullable String message) {
+		return message != null && (message.contains("No updates are to be performed") || message.contains("didn't contain changes"));
+	}
+
+	@Nullable
+	private static Stack describeStack(@NotNull AmazonCloudFormationClient stackbuilder, @NotNull String stackId) {
+		final List<Stack> stacks = stackbuilder.describeStacks(new DescribeStacksRequest().withStackName(stackId)).getStacks();
+		return stacks.isEmpty() ? null : stacks.get(0);
+	}
+
+	/**
+	 * @return true if the stack status or its last update time differs from the earlier state
+	 */
+	private static boolean isChanged(@NotNull Stack before, @Nullable Stack stack) {
+		if (stack == null) return true;
+		if (!before.getStackStatus().equals(stack.getStackStatus())) return true;
+		return before.getLastUpdatedTime() == null ? stack.getLastUpdatedTime() != null : !before.getLastUpdatedTime().equals(stack.getLastUpdatedTime());
+	}
+
+	/**
+	 * Source of the fresh stack state between two checks of {@link #waitForStack}
+	 */
+	private interface StackTracker {
+		/**
+		 * @return false if the deadline has already passed and the caller must stop waiting
+		 */
+		boolean awaitNext(int attempt, long deadline) throws InterruptedException;
+
+		@Nullable
+		Stack getStack();
+
+		void close();
+	}
+
+	@NotNull
+	private StackTracker startTracking(@NotNull final AmazonCloudFormationClient stackbuilder, @NotNull final String stackId, @Nullable Stack stack) {
+		if (myStackPoller == null || myStackPollerGroupKey == null) {
+			return new StackTracker() {
+				@Override
+				public boolean awaitNext(int attempt, long deadline) throws InterruptedException {
+					return sleepBeforeNextPoll(attempt, deadline);
+				}
+
+				@Nullable
+				@Override
+				public Stack getStack() {
+					return describeStack(stackbuilder, stackId);
+				}
+
+				@Override
+				public void close() {
+				}
+			};
+		}
+
+		final SharedStackPoller.Watch watch = myStackPoller.watch(myStackPollerGroupKey, stackbuilder, stackId, stack, myPollStrategy);
+		return new StackTracker() {
+			@Override
+			public boolean awaitNext(int attempt, long deadline) throws InterruptedException {
+				final long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) return false;
+				watch.awaitUpdate(remaining);
+				return true;
 			}
+
+			@Nullable
+			@Override
+			public Stack getStack() {
+				return watch.getStack();
+			}
+
+			@Override
+			public void close() {
+				watch.close();
+			}
+		};
+	}
+
+	private long getWaitDeadline() {
+		return System.currentTimeMillis() + myWaitTimeoutSec * 1000L;
+	}
+
+	/**
+	 * Sleeps as long as the poll strategy says, but never past the deadline.
+	 *
+	 * @return false if the deadline has already passed and the caller must stop waiting
+	 */
+	private boolean sleepBeforeNextPoll(int attempt, long deadline) throws InterruptedException {
+		final long remaining = deadline - System.currentTimeMillis();
+		if (remaining <= 0) return false;
+		Thread.sleep(Math.min(myPollStrategy.getDelayMillis(attempt), remaining));
+		return true;
+	}
+
+	/**
+	 * @return the current state of the stack or the previous one if describing it is still throttled after the retries
+	 */
+	@Nullable
+	private static Stack refreshStack(@NotNull StackTracker tracker, @Nullable Stack previous) {
+		try {
+			return tracker.getStack();
+		} catch (AmazonServiceException e) {
+			if (!AWSException.isThrottling(e)) throw e;
+			return previous;
+		}
+	}
+
+	private void reportNewEvents(@NotNull AmazonCloudFormationClient stackbuilder, @NotNull StackEventStreamer events,
+			@NotNull ResourceTimings timings) {
+		final List<StackEvent> fresh;
+		try {
+			fresh = events.readNewEvents(stackbuilder);
+		} catch (AmazonServiceException e) {
+			// the cursor isn't moved, the events will be read by the next poll
+			if (!AWSException.isThrottling(e)) throw e;
+			return;
+		}
+		for (StackEvent event : fresh) {
+			timings.onEvent(event);
+			myListener.stackEvent(event);
 		}
-		return output;
 	}
 
 	public String getTemplateUrl(Region region, String s3Bucket, String s3Object) {
-		// "https://s3-us-west-2.amazonaws.com/" + s3BucketName + "/" +
-		// s3ObjectKey;
-		String templateUrl;
-		// hard coded s3 bucket location
-		// templateUrl = "https://s3-ap-southeast-2.amazonaws.com" + "/" + s3Bucket + "/" + s3Object;
-		templateUrl = "https://" + region.getServiceEndpoint("s3") + "/" +  s3Bucket + "/" + s3Object;
-		return templateUrl;
+		return getTemplateUrl(AWSRegions.getRegionInfo(region.getName()), s3Bucket, s3Object);
+	}
+
+	public String getTemplateUrl(Region region, String s3Bucket, String s3Object, @Nullable String s3ObjectVersion) throws UnsupportedEncodingException {
+		return getTemplateUrl(AWSRegions.getRegionInfo(region.getName()), s3Bucket, s3Object, s3ObjectVersion);
+	}
+
+	/**
+	 * @return URL of the template in the S3 endpoint of the region's partition
+	 */
+	@NotNull
+	public String getTemplateUrl(@NotNull AWSRegions.RegionInfo region, @NotNull String s3Bucket, @NotNull String s3Object) {
+		return region.getS3ObjectUrl(s3Bucket, s3Object);
+	}
+
+	@NotNull
+	public String getTemplateUrl(@NotNull AWSRegions.RegionInfo region, @NotNull String s3Bucket, @NotNull String s3Object,
+			@Nullable String s3ObjectVersion) throws UnsupportedEncodingException {
+		final String templateUrl = getTemplateUrl(region, s3Bucket, s3Object);
+		return s3ObjectVersion == null ? templateUrl : templateUrl + "?versionId=" + URLEncoder.encode(s3ObjectVersion, "UTF-8");
 	}
 
 	public Boolean isStackExists(@NotNull String stackName) {
-		Boolean exists;
-		DescribeStacksRequest wait = new DescribeStacksRequest();
-		wait.setStackName(stackName);
-		return true;
+		return findStack(stackName) != null;
+	}
+
+	/**
+	 * @return live stack with the given name or null if there's no such stack
+	 */
+	@Nullable
+	public Stack findStack(@NotNull String stackName) {
+		try {
+			final List<Stack> stacks = myCloudFormationClient.describeStacks(new DescribeStacksRequest().withStackName(stackName)).getStacks();
+			return stacks.isEmpty() ? null : stacks.get(0);
+		} catch (AmazonServiceException e) {
+			if (isNoSuchStack(e)) return null;
+			throw e;
+		}
+	}
+
+	static boolean isNoSuchStack(@NotNull AmazonServiceException e) {
+		return "ValidationError".equals(e.getErrorCode()) && e.getErrorMessage() != null && e.getErrorMessage().contains("does not exist");
 	}
 
 	// public void updateEnvironmentAndWait(@NotNull String environmentName,
@@ -356,6 +970,11 @@ public class AWSClient {
 	// }
 
 	private void processFailure(@NotNull Throwable t) {
+		if (t instanceof InterruptedException || t instanceof AbortedException) {
+			Thread.currentThread().interrupt();
+			myListener.interrupted();
+			return;
+		}
 		myListener.exception(new AWSException(t));
 	}
 
@@ -391,8 +1010,11 @@ public class AWSClient {
 
 	public static class Listener {
 
-		void createStackStarted(@NotNull String stackName, @NotNull String region, @NotNull String s3BucketName,
-				@NotNull String s3ObjectKey, @NotNull String cfnAction) {
+		/**
+		 * @param templateSource template URL or a description of the inline template
+		 */
+		void createStackStarted(@NotNull String stackName, @NotNull String region, @NotNull String templateSource,
+				@NotNull String cfnAction) {
 		}
 
 		void debugLog(String status) {
@@ -407,6 +1029,20 @@ public class AWSClient {
 		void waitForStack(@NotNull String status) {
 		}
 
+		void stackEvent(@NotNull StackEvent event) {
+		}
+
+		/**
+		 * Called once the stack operation finishes or the wait times out
+		 *
+		 * @param timings resources which have finished their part of the operation, in the order they did
+		 */
+		void resourceTimings(@NotNull String stackName, @NotNull List<ResourceTimings.Timing> timings) {
+		}
+
+		void stackWaitTimedOut(@NotNull String stackName, @NotNull String stackStatus, int timeoutSec) {
+		}
+
 		void deleteStarted(@NotNull String stackName, @NotNull String region) {
 		}
 
@@ -416,12 +1052,65 @@ public class AWSClient {
 		void validateStarted(@NotNull String stackName) {
 		}
 
-		void validateFinished(@NotNull String parameters) {
+		void validationCached(@NotNull String templateDigest) {
+		}
+
+		void validateFinished(@NotNull String parameters, @NotNull List<String> capabilities) {
 		}
 
 		void updateInProgress(@NotNull String stackName) {
 		}
 
+		/**
+		 * @param lastEventId the newest stack event preceding the operation, null if there's none
+		 */
+		void operationDetached(@NotNull String stackName, @NotNull String stackId, @NotNull StackOperation operation,
+				@Nullable String lastEventId) {
+		}
+
+		void waitInterrupted(@NotNull String stackName) {
+		}
+
+		void cancelStarted(@NotNull String stackName, @NotNull StackOperation operation) {
+		}
+
+		void cancelFinished(@NotNull String stackName, @NotNull String stackStatus) {
+		}
+
+		void cancelTimedOut(@NotNull String stackName, @NotNull String stackStatus, int graceSec) {
+		}
+
+		void interrupted() {
+		}
+
+		void stackSetStarted(@NotNull String stackSetName, @NotNull List<String> accounts, @NotNull List<String> regions) {
+		}
+
+		void stackSetOperationStarted(@NotNull String stackSetName, @NotNull String operationId) {
+		}
+
+		void stackInstanceResult(@NotNull StackSetOperationResultSummary result) {
+		}
+
+		void stackSetFinished(@NotNull String stackSetName) {
+		}
+
+		void templateUploaded(@NotNull String templateName, @NotNull TemplateUploader.TemplateLocation location) {
+		}
+
+		void changeSetCreated(@NotNull String stackName, @NotNull String changeSetName, @NotNull List<Change> changes) {
+		}
+
+		void stackUpToDate(@NotNull String stackName) {
+		}
+
+		/**
+		 * Called instead of {@link #stackUpToDate} when the update is skipped without asking CloudFormation
+		 */
+		void stackUnchanged(@NotNull String stackName, @NotNull String fingerprint) {
+			stackUpToDate(stackName);
+		}
+
 		void exception(@NotNull AWSException exception) {
 		}
 
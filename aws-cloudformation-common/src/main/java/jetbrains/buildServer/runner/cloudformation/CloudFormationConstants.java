@@ -28,6 +28,8 @@ public interface CloudFormationConstants {
   String VIEW_PARAMS_HTML = "viewCloudFormationParams.html";
   String EDIT_PARAMS_JSP = "editCloudFormationParams.jsp";
   String VIEW_PARAMS_JSP = "viewCloudFormationParams.jsp";
+  String STACK_STATUS_HTML = "stackStatus.html";
+  String STACK_STATUS_JSP = "stackStatus.jsp";
 
   String TIMEOUT_BUILD_PROBLEM_TYPE = "CLOUDFORMATION_TIMEOUT";
   String FAILURE_BUILD_PROBLEM_TYPE = "CLOUDFORMATION_FAILURE";
@@ -38,15 +40,49 @@ public interface CloudFormationConstants {
   String S3_OBJECT_KEY_PARAM = "cloudformation_s3_object_key";
   String S3_OBJECT_KEY_LABEL = "S3 object key";
 
+  String TEMPLATE_FILE_PARAM = "cloudformation_template_file";
+  String TEMPLATE_FILE_LABEL = "Template file";
+  String INLINE_TEMPLATE_CONFIG_PARAM = "cloudformation.template.inline.enabled";
+  String FORCE_REVALIDATION_CONFIG_PARAM = "cloudformation.validation.force";
+  String VALIDATION_CACHE_SIZE_CONFIG_PARAM = "cloudformation.validation.cache.size";
+
   String STACK_NAME_PARAM = "cloudformation_stack_name";
   String STACK_NAME_LABEL = "Stack Name";
 
+  String ADDITIONAL_REGIONS_PARAM = "cloudformation_additional_regions";
+  String ADDITIONAL_REGIONS_LABEL = "Additional regions";
+
+  String MANIFEST_FILE_PARAM = "cloudformation_manifest_file";
+  String MANIFEST_FILE_LABEL = "Stack manifest";
+  String MANIFEST_CONCURRENCY_PARAM = "cloudformation_manifest_concurrency";
+  String MANIFEST_CONCURRENCY_LABEL = "Concurrent stacks";
+  int MANIFEST_CONCURRENCY_DEFAULT = 4;
+
   String APP_NAME_PARAM = "cloudformation_appname_label";
   String APP_NAME_LABEL = "Application Name";
   
   String CLOUDFORMATION_STACK_ACTION_PARAM = "cloudformation_stack_action";
   String CLOUDFORMATION_STACK_ACTION_LABEL = "Action";
 
+  String STACK_SET_ACCOUNTS_PARAM = "cloudformation_stack_set_accounts";
+  String STACK_SET_ACCOUNTS_LABEL = "Target accounts";
+  String STACK_SET_REGIONS_PARAM = "cloudformation_stack_set_regions";
+  String STACK_SET_REGIONS_LABEL = "Target regions";
+  String STACK_SET_MAX_CONCURRENT_COUNT_PARAM = "cloudformation_stack_set_max_concurrent_count";
+  String STACK_SET_MAX_CONCURRENT_COUNT_LABEL = "Max concurrent accounts";
+  String STACK_SET_MAX_CONCURRENT_PERCENTAGE_PARAM = "cloudformation_stack_set_max_concurrent_percentage";
+  String STACK_SET_MAX_CONCURRENT_PERCENTAGE_LABEL = "Max concurrent accounts (%)";
+  String STACK_SET_FAILURE_TOLERANCE_COUNT_PARAM = "cloudformation_stack_set_failure_tolerance_count";
+  String STACK_SET_FAILURE_TOLERANCE_COUNT_LABEL = "Failure tolerance";
+  String STACK_SET_FAILURE_TOLERANCE_PERCENTAGE_PARAM = "cloudformation_stack_set_failure_tolerance_percentage";
+  String STACK_SET_FAILURE_TOLERANCE_PERCENTAGE_LABEL = "Failure tolerance (%)";
+
+  String UPDATE_MODE_PARAM = "cloudformation_update_mode";
+  String UPDATE_MODE_LABEL = "Update mode";
+  String UPDATE_MODE_DIRECT = "direct";
+  String UPDATE_MODE_CHANGE_SET = "changeSet";
+  String SKIP_UNCHANGED_CONFIG_PARAM = "cloudformation.update.skip.unchanged.enabled";
+
   String APP_VERSION_PARAM = "cloudformation_version_label";
   String APP_VERSION_LABEL = "Application Version";
 
@@ -54,8 +90,23 @@ public interface CloudFormationConstants {
   String ONFAILURE_LABEL = "Action on Failure";
   String WAIT_TIMEOUT_SEC_PARAM = "cloudformation_wait_timeout_sec";
   String WAIT_TIMEOUT_SEC_LABEL = "Timeout (seconds)";
+  int WAIT_TIMEOUT_SEC_DEFAULT = 3600;
   String WAIT_POLL_INTERVAL_SEC_CONFIG_PARAM = "cloudformation.wait.poll.interval.sec";
   int WAIT_POLL_INTERVAL_SEC_DEFAULT = 20;
+  String WAIT_SHARED_POLLER_CONFIG_PARAM = "cloudformation.wait.shared.poller.enabled";
+
+  String DETACHED_PARAM = "cloudformation_detached";
+  String DETACHED_LABEL = "Don't wait for completion";
+  String FOLLOW_UP_BUILD_TYPE_PARAM = "cloudformation_follow_up_build_type";
+  String FOLLOW_UP_BUILD_TYPE_LABEL = "Follow-up build configuration";
+  String DETACHED_OPERATION_SERVICE_MESSAGE = "cloudformationStackOperation";
+  String DETACHED_POLL_INTERVAL_SEC_PROPERTY = "teamcity.cloudformation.detached.poll.interval.sec";
+  int DETACHED_POLL_INTERVAL_SEC_DEFAULT = 30;
+
+  String CANCEL_ON_INTERRUPT_PARAM = "cloudformation_cancel_on_interrupt";
+  String CANCEL_ON_INTERRUPT_LABEL = "Cancel on interrupt";
+  String INTERRUPT_GRACE_PERIOD_SEC_CONFIG_PARAM = "cloudformation.interrupt.grace.period.sec";
+  int INTERRUPT_GRACE_PERIOD_SEC_DEFAULT = 30;
 
   String STATUS_IS_UNKNOWN = "status is unknown";
 }
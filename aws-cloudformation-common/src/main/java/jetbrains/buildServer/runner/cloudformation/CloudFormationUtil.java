@@ -16,14 +16,26 @@
 
 package jetbrains.buildServer.runner.cloudformation;
 
+import com.amazonaws.util.BinaryUtils;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.StringUtil;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 final class CloudFormationUtil {
 
@@ -39,6 +51,32 @@ final class CloudFormationUtil {
     return StringUtil.isEmpty(path) && isFromPart ? "**" : path + suffix;
   }
 
+  /**
+   * @return non-empty items of a comma or newline separated list
+   */
+  @NotNull
+  static List<String> splitList(@Nullable String list) {
+    final List<String> items = new ArrayList<String>();
+    if (list == null) return items;
+    for (String item : list.split("[,\\n\\r]")) {
+      if (!item.trim().isEmpty()) items.add(item.trim());
+    }
+    return items;
+  }
+
+  /**
+   * Interrupts the running tasks and lets them finish for up to timeoutMs,
+   * so that interrupted stack operations are cancelled before the build is over
+   */
+  static void shutdownAndAwait(@NotNull ExecutorService executor, long timeoutMs) {
+    executor.shutdownNow();
+    try {
+      executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
   @NotNull
   static String printStrings(@NotNull Collection<String> strings) {
     if (strings.isEmpty()) return StringUtil.EMPTY;
@@ -47,6 +85,46 @@ final class CloudFormationUtil {
     return sb.toString();
   }
 
+  /**
+   * @return hex-encoded SHA-256 of the file contents
+   */
+  @NotNull
+  static String sha256(@NotNull File file) throws IOException {
+    final MessageDigest digest = createSha256();
+    final InputStream in = new FileInputStream(file);
+    try {
+      final byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+    } finally {
+      FileUtil.close(in);
+    }
+    return BinaryUtils.toHex(digest.digest());
+  }
+
+  /**
+   * @return hex-encoded SHA-256 of the UTF-8 representation of the text
+   */
+  @NotNull
+  static String sha256(@NotNull String text) {
+    try {
+      return BinaryUtils.toHex(createSha256().digest(text.getBytes("UTF-8")));
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @NotNull
+  private static MessageDigest createSha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
   /* Borrowed from jetbrains.buildServer.util.StringUtil.truncateStringValueWithDotsAtCenter
   * TODO: use the original util method */
   @Contract("null, _ -> null")
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.cloudformation;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Random;
+
+/**
+ * Polls often right after the operation is submitted (small stacks usually settle within seconds),
+ * then backs off exponentially with jitter until the maximum interval is reached
+ */
+public class ExponentialBackoffPollStrategy implements PollStrategy {
+  static final long INITIAL_DELAY_MS = 2000;
+  static final int QUICK_POLLS = 3;
+  private static final int MAX_SHIFT = 16;
+
+  private final long myMaxDelayMs;
+  @NotNull
+  private final Random myRandom;
+
+  public ExponentialBackoffPollStrategy(int maxIntervalSec) {
+    this(maxIntervalSec, new Random());
+  }
+
+  ExponentialBackoffPollStrategy(int maxIntervalSec, @NotNull Random random) {
+    myMaxDelayMs = Math.max(1, maxIntervalSec) * 1000L;
+    myRandom = random;
+  }
+
+  @Override
+  public long getDelayMillis(int attempt) {
+    if (attempt < QUICK_POLLS) return Math.min(INITIAL_DELAY_MS, myMaxDelayMs);
+
+    final int shift = Math.min(attempt - QUICK_POLLS + 1, MAX_SHIFT);
+    final long ceiling = Math.min(myMaxDelayMs, INITIAL_DELAY_MS << shift);
+    // "equal jitter": at least a half of the ceiling, so that the backoff still grows
+    final long half = ceiling / 2;
+    return half + (long) (myRandom.nextDouble() * (ceiling - half));
+  }
+}
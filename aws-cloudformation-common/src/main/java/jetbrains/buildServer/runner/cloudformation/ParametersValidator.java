@@ -17,8 +17,10 @@
 package jetbrains.buildServer.runner.cloudformation;
 
 import jetbrains.buildServer.parameters.ReferencesResolverUtil;
+import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.util.amazon.AWSCommonParams;
+import jetbrains.buildServer.util.amazon.AWSRegions;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
@@ -37,12 +39,20 @@ final class ParametersValidator {
   static Map<String, String> validateRuntime(@NotNull Map<String, String> runnerParams, @NotNull Map<String, String> configParams, @NotNull File checkoutDir) {
     final Map<String, String> invalids = new HashMap<String, String>(validate(runnerParams, true));
 
-//    if (isDeploymentWaitEnabled(runnerParams)) {
-//      final String waitIntervalSec = configParams.get(CloudFormationConstants.WAIT_POLL_INTERVAL_SEC_CONFIG_PARAM);
-//      if (StringUtil.isNotEmpty(waitIntervalSec)) {
-//        validatePositiveInteger(invalids, waitIntervalSec, CloudFormationConstants.WAIT_POLL_INTERVAL_SEC_CONFIG_PARAM, CloudFormationConstants.WAIT_POLL_INTERVAL_SEC_CONFIG_PARAM, true);
-//      }
-//    }
+    final String templateFile = runnerParams.get(CloudFormationConstants.TEMPLATE_FILE_PARAM);
+    if (StringUtil.isNotEmpty(templateFile) && !FileUtil.resolvePath(checkoutDir, templateFile).isFile()) {
+      invalids.put(CloudFormationConstants.TEMPLATE_FILE_PARAM, CloudFormationConstants.TEMPLATE_FILE_LABEL + " " + templateFile + " doesn't exist in the checkout directory");
+    }
+
+    final String manifestFile = runnerParams.get(CloudFormationConstants.MANIFEST_FILE_PARAM);
+    if (StringUtil.isNotEmpty(manifestFile) && !FileUtil.resolvePath(checkoutDir, manifestFile).isFile()) {
+      invalids.put(CloudFormationConstants.MANIFEST_FILE_PARAM, CloudFormationConstants.MANIFEST_FILE_LABEL + " " + manifestFile + " doesn't exist in the checkout directory");
+    }
+
+    final String waitIntervalSec = configParams.get(CloudFormationConstants.WAIT_POLL_INTERVAL_SEC_CONFIG_PARAM);
+    if (StringUtil.isNotEmpty(waitIntervalSec)) {
+      validatePositiveInteger(invalids, waitIntervalSec, CloudFormationConstants.WAIT_POLL_INTERVAL_SEC_CONFIG_PARAM, CloudFormationConstants.WAIT_POLL_INTERVAL_SEC_CONFIG_PARAM, true);
+    }
 
     return Collections.unmodifiableMap(invalids);
   }
@@ -69,12 +79,38 @@ final class ParametersValidator {
 
     final String s3ObjectKey = runnerParams.get(CloudFormationConstants.S3_OBJECT_KEY_PARAM);
     if (StringUtil.isEmptyOrSpaces(s3ObjectKey)) {
-      invalids.put(CloudFormationConstants.S3_OBJECT_KEY_PARAM, CloudFormationConstants.S3_OBJECT_KEY_LABEL + " mustn't be empty");
+      // with local templates the key is just a prefix
+      if (StringUtil.isEmptyOrSpaces(runnerParams.get(CloudFormationConstants.TEMPLATE_FILE_PARAM)) &&
+          StringUtil.isEmptyOrSpaces(runnerParams.get(CloudFormationConstants.MANIFEST_FILE_PARAM))) {
+        invalids.put(CloudFormationConstants.S3_OBJECT_KEY_PARAM, CloudFormationConstants.S3_OBJECT_KEY_LABEL + " mustn't be empty");
+      }
     } else {
       validateS3Key(invalids, s3ObjectKey, CloudFormationConstants.S3_OBJECT_KEY_PARAM, CloudFormationConstants.S3_OBJECT_KEY_LABEL, runtime);
     }
 
-    if (StringUtil.isEmptyOrSpaces(runnerParams.get(CloudFormationConstants.STACK_NAME_PARAM))) {
+    final String additionalRegions = runnerParams.get(CloudFormationConstants.ADDITIONAL_REGIONS_PARAM);
+    if (StringUtil.isNotEmpty(additionalRegions) && !isReference(additionalRegions, runtime)) {
+      for (String region : CloudFormationUtil.splitList(additionalRegions)) {
+        if (!AWSRegions.isSupported(region)) {
+          invalids.put(CloudFormationConstants.ADDITIONAL_REGIONS_PARAM, AWSRegions.getUnsupportedRegionMessage(region));
+        }
+      }
+    }
+
+    final String manifestFile = runnerParams.get(CloudFormationConstants.MANIFEST_FILE_PARAM);
+    if (StringUtil.isNotEmpty(manifestFile)) {
+      if (StringUtil.isNotEmpty(runnerParams.get(CloudFormationConstants.TEMPLATE_FILE_PARAM))) {
+        invalids.put(CloudFormationConstants.TEMPLATE_FILE_PARAM, CloudFormationConstants.TEMPLATE_FILE_LABEL + " must be empty when " + CloudFormationConstants.MANIFEST_FILE_LABEL + " is specified, templates are listed in the manifest");
+      }
+      // dependent stacks can't be started before their prerequisites complete
+      if (Boolean.parseBoolean(runnerParams.get(CloudFormationConstants.DETACHED_PARAM))) {
+        invalids.put(CloudFormationConstants.DETACHED_PARAM, CloudFormationConstants.DETACHED_LABEL + " can't be used with " + CloudFormationConstants.MANIFEST_FILE_LABEL);
+      }
+      final String concurrency = runnerParams.get(CloudFormationConstants.MANIFEST_CONCURRENCY_PARAM);
+      if (StringUtil.isNotEmpty(concurrency)) {
+        validatePositiveInteger(invalids, concurrency, CloudFormationConstants.MANIFEST_CONCURRENCY_PARAM, CloudFormationConstants.MANIFEST_CONCURRENCY_LABEL, runtime);
+      }
+    } else if (StringUtil.isEmptyOrSpaces(runnerParams.get(CloudFormationConstants.STACK_NAME_PARAM))) {
       invalids.put(CloudFormationConstants.STACK_NAME_PARAM, CloudFormationConstants.STACK_NAME_LABEL + " mustn't be empty");
     }
 
@@ -82,18 +118,61 @@ final class ParametersValidator {
      invalids.put(CloudFormationConstants.ONFAILURE_PARAM, CloudFormationConstants.ONFAILURE_LABEL + " mustn't be empty");
     } 
 
-//    if (isDeploymentWaitEnabled(runnerParams)) {
-//      final String waitTimeoutSec = runnerParams.get(CloudFormationConstants.WAIT_TIMEOUT_SEC_PARAM);
-//      if (StringUtil.isEmptyOrSpaces(waitTimeoutSec)) {
-//        invalids.put(CloudFormationConstants.WAIT_TIMEOUT_SEC_PARAM, CloudFormationConstants.WAIT_TIMEOUT_SEC_LABEL + " mustn't be empty");
-//      } else {
-//        validatePositiveInteger(invalids, waitTimeoutSec, CloudFormationConstants.WAIT_TIMEOUT_SEC_PARAM, CloudFormationConstants.WAIT_TIMEOUT_SEC_LABEL, runtime);
-//      }
-//    }
+    if ("StackSet".equalsIgnoreCase(runnerParams.get(CloudFormationConstants.CLOUDFORMATION_STACK_ACTION_PARAM))) {
+      validateStackSet(invalids, runnerParams, runtime);
+    }
+
+    final String waitTimeoutSec = runnerParams.get(CloudFormationConstants.WAIT_TIMEOUT_SEC_PARAM);
+    if (StringUtil.isNotEmpty(waitTimeoutSec)) {
+      validatePositiveInteger(invalids, waitTimeoutSec, CloudFormationConstants.WAIT_TIMEOUT_SEC_PARAM, CloudFormationConstants.WAIT_TIMEOUT_SEC_LABEL, runtime);
+    }
 
     return invalids;
   }
 
+  private static void validateStackSet(@NotNull Map<String, String> invalids, @NotNull Map<String, String> runnerParams, boolean runtime) {
+    if (StringUtil.isEmptyOrSpaces(runnerParams.get(CloudFormationConstants.STACK_SET_ACCOUNTS_PARAM))) {
+      invalids.put(CloudFormationConstants.STACK_SET_ACCOUNTS_PARAM, CloudFormationConstants.STACK_SET_ACCOUNTS_LABEL + " mustn't be empty");
+    }
+    if (StringUtil.isEmptyOrSpaces(runnerParams.get(CloudFormationConstants.STACK_SET_REGIONS_PARAM))) {
+      invalids.put(CloudFormationConstants.STACK_SET_REGIONS_PARAM, CloudFormationConstants.STACK_SET_REGIONS_LABEL + " mustn't be empty");
+    }
+    // CloudFormation accepts either a count or a percentage
+    validateCountOrPercentage(invalids, runnerParams,
+        CloudFormationConstants.STACK_SET_MAX_CONCURRENT_COUNT_PARAM, CloudFormationConstants.STACK_SET_MAX_CONCURRENT_COUNT_LABEL, 1,
+        CloudFormationConstants.STACK_SET_MAX_CONCURRENT_PERCENTAGE_PARAM, CloudFormationConstants.STACK_SET_MAX_CONCURRENT_PERCENTAGE_LABEL, runtime);
+    validateCountOrPercentage(invalids, runnerParams,
+        CloudFormationConstants.STACK_SET_FAILURE_TOLERANCE_COUNT_PARAM, CloudFormationConstants.STACK_SET_FAILURE_TOLERANCE_COUNT_LABEL, 0,
+        CloudFormationConstants.STACK_SET_FAILURE_TOLERANCE_PERCENTAGE_PARAM, CloudFormationConstants.STACK_SET_FAILURE_TOLERANCE_PERCENTAGE_LABEL, runtime);
+  }
+
+  private static void validateCountOrPercentage(@NotNull Map<String, String> invalids, @NotNull Map<String, String> runnerParams,
+                                                @NotNull String countKey, @NotNull String countName, int minCount,
+                                                @NotNull String percentageKey, @NotNull String percentageName, boolean runtime) {
+    final String count = runnerParams.get(countKey);
+    final String percentage = runnerParams.get(percentageKey);
+    if (StringUtil.isNotEmpty(count) && StringUtil.isNotEmpty(percentage)) {
+      invalids.put(percentageKey, "Only one of " + countName + " and " + percentageName + " may be specified");
+      return;
+    }
+    if (StringUtil.isNotEmpty(count)) validateIntegerInRange(invalids, count, countKey, countName, minCount, Integer.MAX_VALUE, runtime);
+    if (StringUtil.isNotEmpty(percentage)) validateIntegerInRange(invalids, percentage, percentageKey, percentageName, 0, 100, runtime);
+  }
+
+  private static void validateIntegerInRange(@NotNull Map<String, String> invalids, @NotNull String param, @NotNull String key, @NotNull String name,
+                                             int min, int max, boolean runtime) {
+    if (!isReference(param, runtime)) {
+      try {
+        final int i = Integer.parseInt(param);
+        if (i < min || i > max) {
+          invalids.put(key, name + " must be an integer value between " + min + " and " + max);
+        }
+      } catch (NumberFormatException e) {
+        invalids.put(key, name + " must be an integer value between " + min + " and " + max);
+      }
+    }
+  }
+
   private static void validatePositiveInteger(@NotNull Map<String, String> invalids, @NotNull String param, @NotNull String key, @NotNull String name, boolean runtime) {
     if (!isReference(param, runtime)) {
       try {
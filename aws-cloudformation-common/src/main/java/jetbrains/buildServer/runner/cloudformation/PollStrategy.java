@@ -0,0 +1,28 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.cloudformation;
+
+/**
+ * Decides how long {@link AWSClient} sleeps between two stack status polls
+ */
+public interface PollStrategy {
+  /**
+   * @param attempt number of polls already made which didn't see a terminal stack status, starting from 0
+   * @return delay in milliseconds before the next poll
+   */
+  long getDelayMillis(int attempt);
+}
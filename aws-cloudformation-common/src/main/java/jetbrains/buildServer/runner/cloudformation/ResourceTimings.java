@@ -0,0 +1,93 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.cloudformation;
+
+import com.amazonaws.services.cloudformation.model.StackEvent;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Pairs the *_IN_PROGRESS and the terminal events of each stack resource to measure how long the resource took.
+ * <p>
+ * Events must be fed oldest first. The events of the stack itself are ignored, nested stacks are measured as resources.
+ */
+final class ResourceTimings {
+  private static final String IN_PROGRESS_SUFFIX = "_IN_PROGRESS";
+  private static final String[] TERMINAL_SUFFIXES = {"_COMPLETE", "_FAILED"};
+
+  @NotNull
+  private final Map<String, StackEvent> myStarted = new HashMap<String, StackEvent>();
+  @NotNull
+  private final List<Timing> myFinished = new ArrayList<Timing>();
+
+  void onEvent(@NotNull StackEvent event) {
+    final String logicalId = event.getLogicalResourceId();
+    final String status = event.getResourceStatus();
+    if (logicalId == null || status == null || event.getTimestamp() == null || logicalId.equals(event.getStackName())) return;
+
+    if (status.endsWith(IN_PROGRESS_SUFFIX)) {
+      // CloudFormation may report the same operation in progress several times, it starts with the first event
+      final StackEvent started = myStarted.get(logicalId);
+      if (started == null || !getOperation(started.getResourceStatus()).equals(getOperation(status))) myStarted.put(logicalId, event);
+      return;
+    }
+
+    final StackEvent started = myStarted.get(logicalId);
+    if (started == null || !getOperation(started.getResourceStatus()).equals(getOperation(status))) return;
+    myStarted.remove(logicalId);
+    myFinished.add(new Timing(logicalId, String.valueOf(event.getResourceType()), status,
+        event.getTimestamp().getTime() - started.getTimestamp().getTime()));
+  }
+
+  /**
+   * @return timings of the resources which have reached a terminal status, in the order they did
+   */
+  @NotNull
+  List<Timing> getFinished() {
+    return Collections.unmodifiableList(myFinished);
+  }
+
+  /**
+   * @return e.g. CREATE for CREATE_IN_PROGRESS and CREATE_COMPLETE
+   */
+  @NotNull
+  private static String getOperation(@NotNull String status) {
+    if (status.endsWith(IN_PROGRESS_SUFFIX)) return status.substring(0, status.length() - IN_PROGRESS_SUFFIX.length());
+    for (String suffix : TERMINAL_SUFFIXES) {
+      if (status.endsWith(suffix)) return status.substring(0, status.length() - suffix.length());
+    }
+    return status;
+  }
+
+  static final class Timing {
+    @NotNull
+    final String myLogicalId;
+    @NotNull
+    final String myResourceType;
+    @NotNull
+    final String myStatus;
+    final long myDurationMs;
+
+    private Timing(@NotNull String logicalId, @NotNull String resourceType, @NotNull String status, long durationMs) {
+      myLogicalId = logicalId;
+      myResourceType = resourceType;
+      myStatus = status;
+      myDurationMs = durationMs;
+    }
+  }
+}
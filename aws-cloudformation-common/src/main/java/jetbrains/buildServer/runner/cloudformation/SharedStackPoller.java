@@ -0,0 +1,318 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.cloudformation;
+
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.model.DescribeStacksRequest;
+import com.amazonaws.services.cloudformation.model.DescribeStacksResult;
+import com.amazonaws.services.cloudformation.model.Stack;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.amazon.AWSException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Agent-wide poller for the stacks builds are waiting for.
+ * <p>
+ * Watched stacks are grouped by credentials identity and region. Each watch is due according to the
+ * {@link PollStrategy} of its build, the group is refreshed when the earliest watch is due. The due stacks are
+ * described one by one, unless that takes more calls than a paginated DescribeStacks of the whole region did
+ * last time: then all the stacks of the group are refreshed by that single listing. So the number of API calls
+ * doesn't grow with the number of concurrent deployments, and is never above what polling per build would take.
+ */
+public class SharedStackPoller {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(SharedStackPoller.class.getName());
+
+  private static final int THREADS = 2;
+  // until the number of pages is known, listing all the stacks is tried only when this many stacks are due at once
+  static final int MIN_DUE_FOR_LISTING = 5;
+  // watches due within this time are refreshed together with the earlier ones
+  private static final long DUE_SLACK_MS = 500;
+
+  @NotNull
+  private final ScheduledExecutorService myExecutor;
+  @NotNull
+  private final Map<String, Group> myGroups = new HashMap<String, Group>();
+
+  public SharedStackPoller() {
+    myExecutor = Executors.newScheduledThreadPool(THREADS, new ThreadFactory() {
+      @Override
+      public Thread newThread(@NotNull Runnable r) {
+        final Thread thread = new Thread(r, "CloudFormation stack poller");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Starts watching the stack.
+   *
+   * @param groupKey     stacks with the same key are described together, must identify both credentials and region
+   * @param client       client to describe stacks with, any client of the group may be used for the whole group
+   * @param stackId      ID of the stack to watch
+   * @param stack        current state of the stack, it's reported until the first refresh
+   * @param pollStrategy how often the stack must be refreshed
+   */
+  @NotNull
+  Watch watch(@NotNull String groupKey, @NotNull AmazonCloudFormation client, @NotNull String stackId, @Nullable Stack stack,
+              @NotNull PollStrategy pollStrategy) {
+    synchronized (myGroups) {
+      Group group = myGroups.get(groupKey);
+      if (group == null) {
+        group = new Group(groupKey);
+        myGroups.put(groupKey, group);
+      }
+      final Watch watch = new Watch(group, client, stackId, stack, pollStrategy);
+      group.myWatches.add(watch);
+      schedule(group);
+      return watch;
+    }
+  }
+
+  private void unwatch(@NotNull Watch watch) {
+    synchronized (myGroups) {
+      final Group group = watch.myGroup;
+      group.myWatches.remove(watch);
+      if (group.myWatches.isEmpty()) {
+        final ScheduledFuture<?> future = group.myFuture;
+        if (future != null) future.cancel(false);
+        group.myFuture = null;
+        myGroups.remove(group.myKey);
+      }
+    }
+  }
+
+  @NotNull
+  private List<Watch> getWatches(@NotNull Group group) {
+    synchronized (myGroups) {
+      return new ArrayList<Watch>(group.myWatches);
+    }
+  }
+
+  /**
+   * Schedules the group for the time its earliest watch is due, unless it runs earlier anyway
+   */
+  private void schedule(@NotNull Group group) {
+    synchronized (myGroups) {
+      if (group.myWatches.isEmpty() || myGroups.get(group.myKey) != group) return;
+      long dueAt = Long.MAX_VALUE;
+      for (Watch watch : group.myWatches) {
+        dueAt = Math.min(dueAt, watch.getDueAt());
+      }
+      final ScheduledFuture<?> future = group.myFuture;
+      if (future != null && !future.isDone() && group.myScheduledAt <= dueAt) return;
+      if (future != null) future.cancel(false);
+      try {
+        group.myFuture = myExecutor.schedule(group, Math.max(0, dueAt - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        group.myScheduledAt = dueAt;
+      } catch (RejectedExecutionException e) {
+        // shut down, the builds stop waiting on their deadlines
+      }
+    }
+  }
+
+  public void shutdown() {
+    myExecutor.shutdownNow();
+  }
+
+  private final class Group implements Runnable {
+    @NotNull
+    private final String myKey;
+    @NotNull
+    private final Set<Watch> myWatches = new LinkedHashSet<Watch>();
+    @Nullable
+    private ScheduledFuture<?> myFuture;
+    private long myScheduledAt;
+    /**
+     * pages the last listing of all the stacks took, 0 if unknown
+     */
+    private volatile int myListingPages;
+
+    private Group(@NotNull String key) {
+      myKey = key;
+    }
+
+    @Override
+    public void run() {
+      try {
+        refresh();
+      } finally {
+        synchronized (myGroups) {
+          // a group is never scheduled while it runs, so the future is the current run
+          myFuture = null;
+          schedule(this);
+        }
+      }
+    }
+
+    private void refresh() {
+      final List<Watch> watches = getWatches(this);
+      final List<Watch> due = new ArrayList<Watch>();
+      final long now = System.currentTimeMillis();
+      for (Watch watch : watches) {
+        if (watch.getDueAt() <= now + DUE_SLACK_MS) due.add(watch);
+      }
+      if (due.isEmpty()) return;
+
+      try {
+        if (isListingCheaper(due.size())) {
+          final Map<String, Stack> stacks = describeAll(due.get(0).myClient);
+          for (Watch watch : watches) {
+            final Stack stack = stacks.get(watch.myStackId);
+            // deleted stacks aren't listed by DescribeStacks without a stack name
+            watch.update(stack == null ? describe(watch.myClient, watch.myStackId) : stack);
+          }
+        } else {
+          for (Watch watch : due) {
+            watch.update(describe(watch.myClient, watch.myStackId));
+          }
+        }
+      } catch (RuntimeException e) {
+        if (myExecutor.isShutdown()) return;
+        if (AWSException.isThrottling(e)) {
+          // the builds keep the stack state they have and are retried when due next time
+          LOG.info("Describing stacks for " + due.size() + " build(s) is throttled, skipping the refresh");
+          for (Watch watch : due) {
+            watch.postpone();
+          }
+          return;
+        }
+        LOG.warn("Failed to describe stacks for " + due.size() + " build(s): " + e.getMessage());
+        for (Watch watch : due) {
+          watch.fail(e);
+        }
+      }
+    }
+
+    private boolean isListingCheaper(int dueCount) {
+      final int pages = myListingPages;
+      return pages == 0 ? dueCount >= MIN_DUE_FOR_LISTING : dueCount > pages;
+    }
+
+    @NotNull
+    private Map<String, Stack> describeAll(@NotNull AmazonCloudFormation client) {
+      final Map<String, Stack> stacks = new HashMap<String, Stack>();
+      String nextToken = null;
+      int pages = 0;
+      do {
+        final DescribeStacksResult result = client.describeStacks(new DescribeStacksRequest().withNextToken(nextToken));
+        pages++;
+        for (Stack stack : result.getStacks()) {
+          stacks.put(stack.getStackId(), stack);
+        }
+        nextToken = result.getNextToken();
+      } while (nextToken != null);
+      myListingPages = pages;
+      return stacks;
+    }
+
+    @Nullable
+    private Stack describe(@NotNull AmazonCloudFormation client, @NotNull String stackId) {
+      final List<Stack> stacks = client.describeStacks(new DescribeStacksRequest().withStackName(stackId)).getStacks();
+      return stacks.isEmpty() ? null : stacks.get(0);
+    }
+  }
+
+  /**
+   * Latest known state of a single watched stack
+   */
+  final class Watch {
+    @NotNull
+    private final Group myGroup;
+    @NotNull
+    private final AmazonCloudFormation myClient;
+    @NotNull
+    private final String myStackId;
+    @NotNull
+    private final PollStrategy myPollStrategy;
+    @Nullable
+    private Stack myStack;
+    @Nullable
+    private RuntimeException myError;
+    private boolean myUpdated;
+    private int myAttempt;
+    private long myDueAt;
+
+    private Watch(@NotNull Group group, @NotNull AmazonCloudFormation client, @NotNull String stackId, @Nullable Stack stack,
+                  @NotNull PollStrategy pollStrategy) {
+      myGroup = group;
+      myClient = client;
+      myStackId = stackId;
+      myStack = stack;
+      myPollStrategy = pollStrategy;
+      myDueAt = System.currentTimeMillis() + pollStrategy.getDelayMillis(0);
+    }
+
+    private synchronized long getDueAt() {
+      return myDueAt;
+    }
+
+    private synchronized void postpone() {
+      myDueAt = System.currentTimeMillis() + myPollStrategy.getDelayMillis(myAttempt);
+    }
+
+    private synchronized void update(@Nullable Stack stack) {
+      myStack = stack;
+      myError = null;
+      myUpdated = true;
+      myDueAt = System.currentTimeMillis() + myPollStrategy.getDelayMillis(++myAttempt);
+      notifyAll();
+    }
+
+    private synchronized void fail(@NotNull RuntimeException e) {
+      myError = e;
+      myUpdated = true;
+      myDueAt = System.currentTimeMillis() + myPollStrategy.getDelayMillis(++myAttempt);
+      notifyAll();
+    }
+
+    /**
+     * Blocks until the next refresh of the stack
+     *
+     * @return false if nothing happened within timeoutMs
+     */
+    synchronized boolean awaitUpdate(long timeoutMs) throws InterruptedException {
+      final long end = System.currentTimeMillis() + timeoutMs;
+      while (!myUpdated) {
+        final long left = end - System.currentTimeMillis();
+        if (left <= 0) return false;
+        wait(left);
+      }
+      myUpdated = false;
+      final RuntimeException error = myError;
+      if (error != null) {
+        myError = null;
+        throw error;
+      }
+      return true;
+    }
+
+    @Nullable
+    synchronized Stack getStack() {
+      return myStack;
+    }
+
+    void close() {
+      unwatch(this);
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.cloudformation;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.model.DescribeStackEventsRequest;
+import com.amazonaws.services.cloudformation.model.DescribeStackEventsResult;
+import com.amazonaws.services.cloudformation.model.StackEvent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads stack events incrementally.
+ * <p>
+ * DescribeStackEvents returns events newest first, so pages are only followed until the
+ * last event which has already been seen is met. Each call therefore costs O(new events).
+ */
+final class StackEventStreamer {
+  @NotNull
+  private String myStackNameOrId;
+  @Nullable
+  private String myLastSeenEventId;
+
+  StackEventStreamer(@NotNull String stackNameOrId) {
+    myStackNameOrId = stackNameOrId;
+  }
+
+  /**
+   * Stack name can't be used for describing events of a deleted stack, stack ID can
+   */
+  void setStackId(@Nullable String stackId) {
+    if (stackId != null) myStackNameOrId = stackId;
+  }
+
+  /**
+   * Moves the cursor to the given event, so that a stack followed by another streamer can be picked up where it stopped
+   */
+  void skipUntil(@Nullable String eventId) {
+    myLastSeenEventId = eventId;
+  }
+
+  @Nullable
+  String getLastSeenEventId() {
+    return myLastSeenEventId;
+  }
+
+  /**
+   * Moves the cursor to the newest existing event, so that the events of the previous
+   * operations on the stack are not reported. Also remembers the stack ID, so that events can
+   * be read after the stack is deleted. Does nothing if the stack doesn't exist yet.
+   * <p>
+   * Other errors, e.g. throttling which outlasted the client retries, are propagated: without the
+   * cursor the whole event history of the stack would be reported as new.
+   */
+  void skipExisting(@NotNull AmazonCloudFormation client) {
+    try {
+      final List<StackEvent> events = client.describeStackEvents(new DescribeStackEventsRequest().withStackName(myStackNameOrId)).getStackEvents();
+      if (!events.isEmpty()) {
+        myLastSeenEventId = events.get(0).getEventId();
+        setStackId(events.get(0).getStackId());
+      }
+    } catch (AmazonServiceException e) {
+      // no such stack - all its events will be new
+      if (!AWSClient.isNoSuchStack(e)) throw e;
+    }
+  }
+
+  /**
+   * @return events which appeared since the previous call, oldest first
+   */
+  @NotNull
+  List<StackEvent> readNewEvents(@NotNull AmazonCloudFormation client) {
+    final List<StackEvent> fresh = new ArrayList<StackEvent>();
+    String nextToken = null;
+    pages:
+    do {
+      final DescribeStackEventsResult result = client.describeStackEvents(new DescribeStackEventsRequest().withStackName(myStackNameOrId).withNextToken(nextToken));
+      for (StackEvent event : result.getStackEvents()) {
+        if (event.getEventId().equals(myLastSeenEventId)) break pages;
+        fresh.add(event);
+      }
+      nextToken = result.getNextToken();
+    } while (nextToken != null);
+
+    if (fresh.isEmpty()) return Collections.emptyList();
+
+    myLastSeenEventId = fresh.get(0).getEventId();
+    Collections.reverse(fresh);
+    return fresh;
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.cloudformation;
+
+import com.amazonaws.services.cloudformation.model.Stack;
+import com.amazonaws.services.cloudformation.model.StackStatus;
+import com.amazonaws.services.cloudformation.model.Tag;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fingerprint of everything the runner sends to a stack, stored as a stack tag by each deploy.
+ * <p>
+ * A stack which is in a completed state and carries the fingerprint of the current deploy is
+ * known to be up to date, so the update can be skipped after a single DescribeStacks call.
+ */
+final class StackFingerprint {
+  static final String TAG_KEY = "teamcity:cloudformation:fingerprint";
+
+  // bumped when the inputs of the fingerprint change
+  private static final String VERSION = "2";
+
+  private StackFingerprint() {
+  }
+
+  /**
+   * The runner passes neither parameters nor capabilities, so the template is all that's sent to CloudFormation
+   *
+   * @param templateDigest SHA-256 of the template as it's sent to CloudFormation
+   */
+  @NotNull
+  static String compute(@NotNull String templateDigest) {
+    return CloudFormationUtil.sha256(VERSION + "\n" + templateDigest);
+  }
+
+  @Nullable
+  static String find(@NotNull Stack stack) {
+    for (Tag tag : stack.getTags()) {
+      if (TAG_KEY.equals(tag.getKey())) return tag.getValue();
+    }
+    return null;
+  }
+
+  /**
+   * Tags can't be trusted after a failed or rolled back operation, as well as during one
+   */
+  static boolean matches(@NotNull Stack stack, @NotNull String fingerprint) {
+    final String status = stack.getStackStatus();
+    return (StackStatus.CREATE_COMPLETE.toString().equals(status) || StackStatus.UPDATE_COMPLETE.toString().equals(status))
+           && fingerprint.equals(find(stack));
+  }
+
+  /**
+   * Stack tags are replaced as a whole by updates, so the other tags of the stack are kept
+   *
+   * @param stack existing stack, null for a new one
+   */
+  @NotNull
+  static List<Tag> createTags(@Nullable Stack stack, @NotNull String fingerprint) {
+    final List<Tag> tags = stack == null ? new ArrayList<Tag>() : getOtherTags(stack);
+    tags.add(new Tag().withKey(TAG_KEY).withValue(fingerprint));
+    return tags;
+  }
+
+  /**
+   * @return tags of the stack except the fingerprint
+   */
+  @NotNull
+  static List<Tag> getOtherTags(@NotNull Stack stack) {
+    final List<Tag> tags = new ArrayList<Tag>();
+    for (Tag tag : stack.getTags()) {
+      if (!TAG_KEY.equals(tag.getKey())) tags.add(tag);
+    }
+    return tags;
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.cloudformation;
+
+import com.amazonaws.services.cloudformation.model.StackStatus;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import static com.amazonaws.services.cloudformation.model.StackStatus.*;
+
+/**
+ * Stack operations the runner waits for, each one knows which stack statuses finish it.
+ * <p>
+ * Rollback statuses count as failures as soon as the rollback starts: the operation has
+ * already failed at that point and there is no reason to keep the agent busy while it's undone.
+ */
+public enum StackOperation {
+  CREATE(EnumSet.of(CREATE_COMPLETE),
+         EnumSet.of(CREATE_FAILED, ROLLBACK_IN_PROGRESS, ROLLBACK_FAILED, ROLLBACK_COMPLETE,
+                    // on failure stack may be deleted, see CreateStackRequest.onFailure
+                    DELETE_IN_PROGRESS, DELETE_FAILED, DELETE_COMPLETE)),
+
+  UPDATE(EnumSet.of(UPDATE_COMPLETE),
+         EnumSet.of(UPDATE_ROLLBACK_IN_PROGRESS, UPDATE_ROLLBACK_FAILED, UPDATE_ROLLBACK_COMPLETE_CLEANUP_IN_PROGRESS, UPDATE_ROLLBACK_COMPLETE)),
+
+  DELETE(EnumSet.of(DELETE_COMPLETE),
+         EnumSet.of(DELETE_FAILED)),
+
+  // the update may complete before CloudFormation gets the cancellation
+  CANCEL_UPDATE(EnumSet.of(UPDATE_ROLLBACK_COMPLETE, UPDATE_COMPLETE),
+                EnumSet.of(UPDATE_ROLLBACK_FAILED));
+
+  public enum Outcome {
+    IN_PROGRESS, SUCCESS, FAILURE
+  }
+
+  @NotNull
+  private final Set<StackStatus> mySuccess;
+  @NotNull
+  private final Set<StackStatus> myFailure;
+
+  StackOperation(@NotNull Set<StackStatus> success, @NotNull Set<StackStatus> failure) {
+    mySuccess = success;
+    myFailure = failure;
+  }
+
+  @NotNull
+  public Outcome classify(@NotNull String stackStatus) {
+    final StackStatus status = parse(stackStatus);
+    if (status == null) {
+      // a status this SDK version doesn't know about
+      return stackStatus.endsWith("_FAILED") ? Outcome.FAILURE : Outcome.IN_PROGRESS;
+    }
+    if (mySuccess.contains(status)) return Outcome.SUCCESS;
+    if (myFailure.contains(status)) return Outcome.FAILURE;
+    return Outcome.IN_PROGRESS;
+  }
+
+  /**
+   * @return operation which undoes this one when the build is interrupted, null if there's none
+   */
+  @Nullable
+  public StackOperation getCancellation() {
+    switch (this) {
+      case CREATE:
+        return DELETE;
+      case UPDATE:
+        return CANCEL_UPDATE;
+      default:
+        return null;
+    }
+  }
+
+  @Nullable
+  private static StackStatus parse(@NotNull String stackStatus) {
+    try {
+      return StackStatus.fromValue(stackStatus);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.cloudformation;
+
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.model.ListStackSetOperationResultsRequest;
+import com.amazonaws.services.cloudformation.model.ListStackSetOperationResultsResult;
+import com.amazonaws.services.cloudformation.model.StackSetOperationResultSummary;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads per-instance results of a stack set operation while it runs.
+ * <p>
+ * ListStackSetOperationResults returns the current result of every stack instance,
+ * only the instances whose status changed since the previous call are reported.
+ */
+final class StackSetResultStreamer {
+  @NotNull
+  private final String myStackSetName;
+  @NotNull
+  private final String myOperationId;
+  @NotNull
+  private final Map<String, String> myLastStatuses = new HashMap<String, String>();
+
+  StackSetResultStreamer(@NotNull String stackSetName, @NotNull String operationId) {
+    myStackSetName = stackSetName;
+    myOperationId = operationId;
+  }
+
+  /**
+   * @return results of the instances which changed their status since the previous call
+   */
+  @NotNull
+  List<StackSetOperationResultSummary> readChangedResults(@NotNull AmazonCloudFormation client) {
+    final List<StackSetOperationResultSummary> changed = new ArrayList<StackSetOperationResultSummary>();
+    String nextToken = null;
+    do {
+      final ListStackSetOperationResultsResult page = client.listStackSetOperationResults(new ListStackSetOperationResultsRequest()
+          .withStackSetName(myStackSetName).withOperationId(myOperationId).withNextToken(nextToken));
+      for (StackSetOperationResultSummary result : page.getSummaries()) {
+        final String instance = result.getAccount() + "/" + result.getRegion();
+        if (!result.getStatus().equals(myLastStatuses.put(instance, result.getStatus()))) {
+          changed.add(result);
+        }
+      }
+      nextToken = page.getNextToken();
+    } while (nextToken != null);
+    return changed;
+  }
+}
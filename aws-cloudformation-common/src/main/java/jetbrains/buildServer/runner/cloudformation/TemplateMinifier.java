@@ -0,0 +1,76 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.cloudformation;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Shrinks templates so that more of them fit into the TemplateBody size limit
+ */
+final class TemplateMinifier {
+  /**
+   * Maximum size of the TemplateBody request parameter, larger templates must be passed via S3
+   */
+  static final int MAX_TEMPLATE_BODY_BYTES = 51200;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  // numbers are kept exactly as written, e.g. version 1.10 mustn't become 1.1
+  private static final ObjectMapper MAPPER = new ObjectMapper()
+      .enable(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS)
+      .setNodeFactory(JsonNodeFactory.withExactBigDecimals(true));
+
+  private TemplateMinifier() {
+  }
+
+  /**
+   * JSON templates are reformatted without any whitespace. YAML templates only get their line separators
+   * and trailing line breaks normalized: comments and indentation may be meaningful inside block scalars.
+   * Templates which can't be parsed are returned as they are, CloudFormation reports the syntax errors.
+   */
+  @NotNull
+  static String minify(@NotNull String template) {
+    final String trimmed = stripBom(template).trim();
+    if (trimmed.startsWith("{")) {
+      try {
+        return MAPPER.writeValueAsString(MAPPER.readTree(trimmed));
+      } catch (IOException e) {
+        return template;
+      }
+    }
+    return stripBom(template).replace("\r\n", "\n").replaceAll("\n+$", "\n");
+  }
+
+  static boolean fitsTemplateBody(@NotNull String template) {
+    // a char takes at least one byte, so long strings needn't be encoded
+    return template.length() <= MAX_TEMPLATE_BODY_BYTES && getSize(template) <= MAX_TEMPLATE_BODY_BYTES;
+  }
+
+  static int getSize(@NotNull String template) {
+    return template.getBytes(UTF_8).length;
+  }
+
+  @NotNull
+  private static String stripBom(@NotNull String template) {
+    return template.startsWith("\uFEFF") ? template.substring(1) : template;
+  }
+}
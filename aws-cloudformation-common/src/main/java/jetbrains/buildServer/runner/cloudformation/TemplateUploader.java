@@ -0,0 +1,98 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.cloudformation;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Uploads templates to S3 under content-addressed keys: the key contains the SHA-256 of the template,
+ * so an object which already exists under the key is the same template and needn't be uploaded again.
+ */
+final class TemplateUploader {
+  private static final int NOT_FOUND = 404;
+
+  @NotNull
+  private final AmazonS3 myS3Client;
+
+  TemplateUploader(@NotNull AmazonS3 s3Client) {
+    myS3Client = s3Client;
+  }
+
+  /**
+   * @param keyPrefix folder inside the bucket, may be empty
+   */
+  @NotNull
+  TemplateLocation upload(@NotNull File template, @NotNull String bucketName, @Nullable String keyPrefix) throws IOException {
+    final String digest = CloudFormationUtil.sha256(template);
+    final String key = getKey(digest, template, keyPrefix);
+
+    final ObjectMetadata existing = getMetadata(bucketName, key);
+    if (existing != null) {
+      return new TemplateLocation(bucketName, key, existing.getVersionId(), digest, false);
+    }
+    return new TemplateLocation(bucketName, key, myS3Client.putObject(bucketName, key, template).getVersionId(), digest, true);
+  }
+
+  @NotNull
+  private static String getKey(@NotNull String digest, @NotNull File template, @Nullable String keyPrefix) {
+    String prefix = StringUtil.removeLeadingSlash(FileUtil.toSystemIndependentName(StringUtil.emptyIfNull(keyPrefix)));
+    if (!prefix.isEmpty() && !prefix.endsWith("/")) prefix += "/";
+    return prefix + digest + "/" + template.getName();
+  }
+
+  @Nullable
+  private ObjectMetadata getMetadata(@NotNull String bucketName, @NotNull String key) {
+    try {
+      return myS3Client.getObjectMetadata(bucketName, key);
+    } catch (AmazonS3Exception e) {
+      if (e.getStatusCode() == NOT_FOUND) return null;
+      throw e;
+    }
+  }
+
+  static final class TemplateLocation {
+    @NotNull
+    final String myBucketName;
+    @NotNull
+    final String myKey;
+    @Nullable
+    final String myVersionId;
+    /**
+     * SHA-256 of the template, hex-encoded
+     */
+    @NotNull
+    final String myDigest;
+    final boolean myUploaded;
+
+    private TemplateLocation(@NotNull String bucketName, @NotNull String key, @Nullable String versionId, @NotNull String digest, boolean uploaded) {
+      myBucketName = bucketName;
+      myKey = key;
+      myVersionId = versionId;
+      myDigest = digest;
+      myUploaded = uploaded;
+    }
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.cloudformation;
+
+import com.amazonaws.services.cloudformation.model.TemplateParameter;
+import com.amazonaws.services.cloudformation.model.ValidateTemplateResult;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Results of successful template validations, persisted in a file so that they survive agent restarts.
+ * <p>
+ * Entries are keyed by the template SHA-256 and the region, templates with the same digest are the
+ * same templates and need no second validation. Least recently used entries are evicted once there
+ * are more than capacity entries.
+ */
+public class ValidationCache {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(ValidationCache.class.getName());
+
+  public static final int DEFAULT_CAPACITY = 500;
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  @NotNull
+  private final File myFile;
+  private final int myCapacity;
+  @Nullable
+  private Map<String, Entry> myEntries;
+
+  public ValidationCache(@NotNull File file, int capacity) {
+    myFile = file;
+    myCapacity = capacity;
+  }
+
+  @Nullable
+  public synchronized ValidateTemplateResult get(@NotNull String templateDigest, @NotNull String region) {
+    final Entry entry = getEntries().get(getKey(templateDigest, region));
+    return entry == null ? null : entry.toResult();
+  }
+
+  public synchronized void put(@NotNull String templateDigest, @NotNull String region, @NotNull ValidateTemplateResult result) {
+    final String key = getKey(templateDigest, region);
+    getEntries().put(key, Entry.fromResult(key, result));
+    save();
+  }
+
+  @NotNull
+  private static String getKey(@NotNull String templateDigest, @NotNull String region) {
+    return templateDigest + "@" + region;
+  }
+
+  @NotNull
+  private Map<String, Entry> getEntries() {
+    if (myEntries == null) {
+      myEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+          return size() > myCapacity;
+        }
+      };
+      for (Entry entry : load()) {
+        myEntries.put(entry.key, entry);
+      }
+    }
+    return myEntries;
+  }
+
+  @NotNull
+  private List<Entry> load() {
+    if (!myFile.isFile()) return Collections.emptyList();
+    try {
+      return Arrays.asList(MAPPER.readValue(myFile, Entry[].class));
+    } catch (IOException e) {
+      LOG.warn("Failed to read template validation cache from " + myFile + ", starting with an empty cache: " + e.getMessage());
+      return Collections.emptyList();
+    }
+  }
+
+  private void save() {
+    final File tmp = new File(myFile.getPath() + ".tmp");
+    try {
+      FileUtil.createParentDirs(myFile);
+      // least recently used entries go first, so the order survives reloading
+      MAPPER.writeValue(tmp, new ArrayList<Entry>(getEntries().values()));
+      if (!tmp.renameTo(myFile)) {
+        FileUtil.delete(myFile);
+        if (!tmp.renameTo(myFile)) throw new IOException("Failed to rename " + tmp + " to " + myFile);
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to save template validation cache to " + myFile + ": " + e.getMessage());
+    }
+  }
+
+  static final class Entry {
+    public String key;
+    public List<Parameter> parameters;
+    public List<String> capabilities;
+    public String capabilitiesReason;
+    public String description;
+
+    @NotNull
+    static Entry fromResult(@NotNull String key, @NotNull ValidateTemplateResult result) {
+      final Entry entry = new Entry();
+      entry.key = key;
+      entry.parameters = new ArrayList<Parameter>();
+      for (TemplateParameter parameter : result.getParameters()) {
+        entry.parameters.add(Parameter.fromTemplateParameter(parameter));
+      }
+      entry.capabilities = new ArrayList<String>(result.getCapabilities());
+      entry.capabilitiesReason = result.getCapabilitiesReason();
+      entry.description = result.getDescription();
+      return entry;
+    }
+
+    @NotNull
+    ValidateTemplateResult toResult() {
+      final List<TemplateParameter> templateParameters = new ArrayList<TemplateParameter>();
+      if (parameters != null) {
+        for (Parameter parameter : parameters) {
+          templateParameters.add(parameter.toTemplateParameter());
+        }
+      }
+      return new ValidateTemplateResult()
+          .withParameters(templateParameters)
+          .withCapabilities(capabilities == null ? Collections.<String>emptyList() : capabilities)
+          .withCapabilitiesReason(capabilitiesReason)
+          .withDescription(description);
+    }
+  }
+
+  static final class Parameter {
+    public String key;
+    public String defaultValue;
+    public Boolean noEcho;
+    public String description;
+
+    @NotNull
+    static Parameter fromTemplateParameter(@NotNull TemplateParameter templateParameter) {
+      final Parameter parameter = new Parameter();
+      parameter.key = templateParameter.getParameterKey();
+      parameter.defaultValue = templateParameter.getDefaultValue();
+      parameter.noEcho = templateParameter.getNoEcho();
+      parameter.description = templateParameter.getDescription();
+      return parameter;
+    }
+
+    @NotNull
+    TemplateParameter toTemplateParameter() {
+      return new TemplateParameter().withParameterKey(key).withDefaultValue(defaultValue).withNoEcho(noEcho).withDescription(description);
+    }
+  }
+}
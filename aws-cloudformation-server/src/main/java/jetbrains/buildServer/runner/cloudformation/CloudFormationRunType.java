@@ -94,6 +94,9 @@ public class CloudFormationRunType extends RunType {
   public Map<String, String> getDefaultRunnerProperties() {
     final Map<String, String> defaults = new HashMap<String, String>();
     defaults.putAll(myAWSCommonParams.getDefaults());
+    defaults.put(WAIT_TIMEOUT_SEC_PARAM, String.valueOf(WAIT_TIMEOUT_SEC_DEFAULT));
+    defaults.put(UPDATE_MODE_PARAM, UPDATE_MODE_CHANGE_SET);
+    defaults.put(MANIFEST_CONCURRENCY_PARAM, String.valueOf(MANIFEST_CONCURRENCY_DEFAULT));
     return defaults;
   }
 
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.cloudformation;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.messages.BuildMessage1;
+import jetbrains.buildServer.messages.serviceMessages.ServiceMessage;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.serverSide.ServiceMessageTranslator;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hands the stack operations submitted by detached build steps over to {@link DetachedStackTracker}
+ */
+public class DetachedOperationTranslator implements ServiceMessageTranslator {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(DetachedOperationTranslator.class.getName());
+
+  @NotNull
+  private final DetachedStackTracker myTracker;
+
+  public DetachedOperationTranslator(@NotNull DetachedStackTracker tracker) {
+    myTracker = tracker;
+  }
+
+  @NotNull
+  @Override
+  public String getServiceMessageName() {
+    return CloudFormationConstants.DETACHED_OPERATION_SERVICE_MESSAGE;
+  }
+
+  @NotNull
+  @Override
+  public List<BuildMessage1> translate(@NotNull SRunningBuild runningBuild, @NotNull BuildMessage1 originalMessage, @NotNull ServiceMessage serviceMessage) {
+    final Map<String, String> attributes = serviceMessage.getAttributes();
+    try {
+      myTracker.track(runningBuild, attributes.get("stepId"), attributes.get("stackName"), attributes.get("stackId"), attributes.get("region"),
+          StackOperation.valueOf(attributes.get("operation")), StringUtil.nullIfEmpty(attributes.get("lastEventId")));
+    } catch (RuntimeException e) {
+      LOG.warn("Failed to track stack operation " + attributes + " of build " + runningBuild.getBuildId() + ": " + e.getMessage());
+    }
+    // the step has already logged the operation
+    return Collections.emptyList();
+  }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.cloudformation;
+
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.model.DescribeStacksRequest;
+import com.amazonaws.services.cloudformation.model.Stack;
+import com.amazonaws.services.cloudformation.model.StackEvent;
+import com.amazonaws.services.cloudformation.model.StackStatus;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.parameters.ValueResolver;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.serverSide.executors.ExecutorServices;
+import jetbrains.buildServer.serverSide.problems.BuildProblemData;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.util.amazon.AWSCommonParams;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static jetbrains.buildServer.runner.cloudformation.CloudFormationConstants.*;
+
+/**
+ * Follows stack operations submitted by detached build steps, so that agents don't sleep through long operations.
+ * <p>
+ * The operations are polled on the server executor. When one finishes, its events are stored as a hidden artifact
+ * of the build, a failure or timeout is reported as a build problem, and a successful operation queues the
+ * follow-up build configuration of the step, if any. Operations aren't persisted, a server restart drops them.
+ * <p>
+ * The service message may be printed by any build script, so only the stacks the step itself could have deployed
+ * are followed: the step must be a detached CloudFormation step, and the stack name and region must be the ones
+ * it's configured with. Steps using the server's default credentials are refused unless
+ * {@link #DEFAULT_CREDENTIALS_ENABLED_PROPERTY} is set.
+ */
+public class DetachedStackTracker {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(DetachedStackTracker.class.getName());
+
+  static final String EVENTS_ARTIFACT_DIR = ".teamcity/cloudformation";
+  static final String DEFAULT_CREDENTIALS_ENABLED_PROPERTY = "teamcity.cloudformation.detached.defaultCredentials.enabled";
+
+  @NotNull
+  private final SBuildServer myServer;
+  @NotNull
+  private final ProjectManager myProjectManager;
+  @NotNull
+  private final ScheduledExecutorService myExecutor;
+  @NotNull
+  private final List<Operation> myOperations = new ArrayList<Operation>();
+  @Nullable
+  private ScheduledFuture<?> myFuture;
+
+  public DetachedStackTracker(@NotNull SBuildServer server, @NotNull ProjectManager projectManager, @NotNull ExecutorServices executorServices) {
+    myServer = server;
+    myProjectManager = projectManager;
+    myExecutor = executorServices.getNormalExecutorService();
+  }
+
+  /**
+   * Starts following the stack operation submitted by the build step
+   *
+   * @param lastEventId the newest stack event preceding the operation, null if there's none
+   */
+  void track(@NotNull SRunningBuild build, @NotNull String stepId, @NotNull String stackName, @NotNull String stackId,
+             @NotNull String region, @NotNull StackOperation operation, @Nullable String lastEventId) {
+    final SBuildRunnerDescriptor runner = build.getBuildType().findBuildRunnerById(stepId);
+    if (runner == null) {
+      LOG.warn("Build step " + stepId + " of build " + build.getBuildId() + " not found, stack " + stackName + " won't be tracked");
+      return;
+    }
+    final Map<String, String> params = resolve(build.getValueResolver(), runner.getParameters());
+    final String refusal = getRefusal(runner, params, stackName, stackId, region);
+    if (refusal != null) {
+      LOG.warn("Stack " + stackName + " (" + stackId + ") reported by build step " + stepId + " of build " + build.getBuildId() + " won't be tracked: " + refusal);
+      return;
+    }
+    // the step may run in several regions
+    params.put(AWSCommonParams.REGION_NAME_PARAM, region);
+    params.put(AWSCommonParams.TEMP_CREDENTIALS_SESSION_NAME_PARAM, build.getBuildType().getExternalId());
+
+    final StackEventStreamer events = new StackEventStreamer(stackId);
+    events.skipUntil(lastEventId);
+    final Operation tracked = new Operation(build.getBuildId(), stackName, stackId, operation, params,
+        AWSCommonParams.createAWSClients(params, true).createCloudFormationClient(), events);
+
+    synchronized (myOperations) {
+      myOperations.add(tracked);
+      if (myFuture == null) {
+        final long interval = TeamCityProperties.getInteger(DETACHED_POLL_INTERVAL_SEC_PROPERTY, DETACHED_POLL_INTERVAL_SEC_DEFAULT);
+        myFuture = myExecutor.scheduleWithFixedDelay(new Runnable() {
+          @Override
+          public void run() {
+            poll();
+          }
+        }, interval, interval, TimeUnit.SECONDS);
+      }
+    }
+  }
+
+  /**
+   * @return why the build step can't have submitted the operation on the stack, null if it can
+   */
+  @Nullable
+  static String getRefusal(@NotNull SBuildRunnerDescriptor runner, @NotNull Map<String, String> params,
+                           @NotNull String stackName, @NotNull String stackId, @NotNull String region) {
+    if (!RUNNER_TYPE.equals(runner.getRunType().getType())) return "not a CloudFormation step";
+    if (!Boolean.parseBoolean(params.get(DETACHED_PARAM))) return "the step isn't detached";
+    if (StringUtil.isNotEmpty(params.get(MANIFEST_FILE_PARAM)) || !stackName.equals(params.get(STACK_NAME_PARAM))) {
+      return "the step isn't configured with this stack";
+    }
+    final List<String> regions = CloudFormationUtil.splitList(params.get(ADDITIONAL_REGIONS_PARAM));
+    regions.add(params.get(AWSCommonParams.REGION_NAME_PARAM));
+    if (!regions.contains(region)) return "the step doesn't deploy to region " + region;
+    // arn:<partition>:cloudformation:<region>:<account>:stack/<name>/<uuid>
+    final String[] arn = stackId.split(":", 6);
+    if (arn.length != 6 || !"cloudformation".equals(arn[2]) || !region.equals(arn[3]) || !arn[5].startsWith("stack/" + stackName + "/")) {
+      return "stack ID doesn't match the stack name and region";
+    }
+    if (Boolean.parseBoolean(params.get(AWSCommonParams.USE_DEFAULT_CREDENTIAL_PROVIDER_CHAIN_PARAM)) &&
+        !TeamCityProperties.getBoolean(DEFAULT_CREDENTIALS_ENABLED_PROPERTY)) {
+      return "the step uses the default credential provider chain, set the " + DEFAULT_CREDENTIALS_ENABLED_PROPERTY + " internal property to enable it";
+    }
+    return null;
+  }
+
+  public void dispose() {
+    synchronized (myOperations) {
+      if (myFuture != null) myFuture.cancel(false);
+      myFuture = null;
+      myOperations.clear();
+    }
+  }
+
+  private void poll() {
+    final List<Operation> operations;
+    synchronized (myOperations) {
+      operations = new ArrayList<Operation>(myOperations);
+    }
+    for (Operation operation : operations) {
+      boolean finished;
+      try {
+        finished = operation.poll();
+      } catch (RuntimeException e) {
+        LOG.warn("Failed to describe stack " + operation.myStackName + " of build " + operation.myBuildId + ": " + e.getMessage());
+        finished = operation.isTimedOut();
+        if (finished) finish(operation, StackOperation.Outcome.FAILURE, "status is unknown", e.getMessage());
+      }
+      if (finished) {
+        synchronized (myOperations) {
+          myOperations.remove(operation);
+          if (myOperations.isEmpty() && myFuture != null) {
+            myFuture.cancel(false);
+            myFuture = null;
+          }
+        }
+      }
+    }
+  }
+
+  private void finish(@NotNull Operation operation, @NotNull StackOperation.Outcome outcome, @NotNull String stackStatus, @Nullable String reason) {
+    final SBuild build = myServer.findBuildInstanceById(operation.myBuildId);
+    if (build == null) return;
+
+    saveEvents(build, operation, stackStatus);
+
+    if (outcome == StackOperation.Outcome.SUCCESS) {
+      final String followUp = operation.myParams.get(FOLLOW_UP_BUILD_TYPE_PARAM);
+      if (StringUtil.isEmpty(followUp)) return;
+      final SBuildType buildType = myProjectManager.findBuildTypeByExternalId(followUp);
+      if (buildType == null) {
+        LOG.warn("Follow-up build configuration " + followUp + " of build " + build.getBuildId() + " not found");
+        return;
+      }
+      buildType.addToQueue("CloudFormation stack " + operation.myStackName + " " + stackStatus);
+      return;
+    }
+
+    final boolean timeout = outcome == StackOperation.Outcome.IN_PROGRESS;
+    final String description = timeout
+        ? "Timeout exceeded, stack " + operation.myStackName + " is still " + stackStatus
+        : "Stack " + operation.myStackName + " failed with status " + stackStatus + (reason == null ? "" : ": " + reason);
+    build.addBuildProblem(BuildProblemData.createBuildProblem(
+        String.valueOf(AWSCommonParams.calculateIdentity("", operation.myParams, operation.myStackId, stackStatus)),
+        timeout ? TIMEOUT_BUILD_PROBLEM_TYPE : FAILURE_BUILD_PROBLEM_TYPE, description));
+  }
+
+  private static void saveEvents(@NotNull SBuild build, @NotNull Operation operation, @NotNull String stackStatus) {
+    final StringBuilder log = new StringBuilder();
+    for (StackEvent event : operation.myEvents) {
+      final String reason = event.getResourceStatusReason();
+      log.append(event.getTimestamp()).append(' ').append(event.getLogicalResourceId()).append(" (").append(event.getResourceType()).append(") ")
+          .append(event.getResourceStatus()).append(StringUtil.isEmpty(reason) ? "" : ": " + reason).append('\n');
+    }
+    log.append("Stack ").append(operation.myStackName).append(" finished ").append(operation.myOperation).append(" with status ").append(stackStatus).append('\n');
+
+    final File file = new File(build.getArtifactsDirectory(), EVENTS_ARTIFACT_DIR + "/" + operation.myStackName + ".log");
+    try {
+      FileUtil.createParentDirs(file);
+      FileUtil.writeFile(file, log.toString(), "UTF-8");
+    } catch (IOException e) {
+      LOG.warn("Failed to save events of stack " + operation.myStackName + " to build " + build.getBuildId() + ": " + e.getMessage());
+    }
+  }
+
+  @NotNull
+  private static Map<String, String> resolve(@NotNull ValueResolver resolver, @NotNull Map<String, String> params) {
+    final Map<String, String> resolved = new HashMap<String, String>();
+    for (Map.Entry<String, String> param : params.entrySet()) {
+      resolved.put(param.getKey(), resolver.resolve(param.getValue()).getResult());
+    }
+    return resolved;
+  }
+
+  private final class Operation {
+    private final long myBuildId;
+    @NotNull
+    private final String myStackName;
+    @NotNull
+    private final String myStackId;
+    @NotNull
+    private final StackOperation myOperation;
+    @NotNull
+    private final Map<String, String> myParams;
+    @NotNull
+    private final AmazonCloudFormation myClient;
+    @NotNull
+    private final StackEventStreamer myEventStreamer;
+    @NotNull
+    private final List<StackEvent> myEvents = new ArrayList<StackEvent>();
+    private final long myDeadline;
+
+    private Operation(long buildId, @NotNull String stackName, @NotNull String stackId, @NotNull StackOperation operation,
+                      @NotNull Map<String, String> params, @NotNull AmazonCloudFormation client, @NotNull StackEventStreamer events) {
+      myBuildId = buildId;
+      myStackName = stackName;
+      myStackId = stackId;
+      myOperation = operation;
+      myParams = params;
+      myClient = client;
+      myEventStreamer = events;
+      myDeadline = System.currentTimeMillis() +
+          AWSCommonParams.getIntegerOrDefault(params.get(WAIT_TIMEOUT_SEC_PARAM), WAIT_TIMEOUT_SEC_DEFAULT) * 1000L;
+    }
+
+    /**
+     * @return true if the operation is over and needn't be polled anymore
+     */
+    private boolean poll() {
+      final List<Stack> stacks = myClient.describeStacks(new DescribeStacksRequest().withStackName(myStackId)).getStacks();
+      final Stack stack = stacks.isEmpty() ? null : stacks.get(0);
+      final String stackStatus = stack == null ? StackStatus.DELETE_COMPLETE.toString() : stack.getStackStatus();
+      myEvents.addAll(myEventStreamer.readNewEvents(myClient));
+
+      final StackOperation.Outcome outcome = myOperation.classify(stackStatus);
+      if (outcome == StackOperation.Outcome.IN_PROGRESS && !isTimedOut()) return false;
+      finish(this, outcome, stackStatus, stack == null ? null : stack.getStackStatusReason());
+      return true;
+    }
+
+    private boolean isTimedOut() {
+      return System.currentTimeMillis() > myDeadline;
+    }
+  }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.cloudformation;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.model.DescribeStacksRequest;
+import com.amazonaws.services.cloudformation.model.ListStacksRequest;
+import com.amazonaws.services.cloudformation.model.ListStacksResult;
+import com.amazonaws.services.cloudformation.model.Stack;
+import com.amazonaws.services.cloudformation.model.StackStatus;
+import com.amazonaws.services.cloudformation.model.StackSummary;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.executors.ExecutorServices;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.util.amazon.AWSCommonParams;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Server-wide cache of stack summaries per credentials and region, backs the stack status shown in the runner UI.
+ * <p>
+ * All the stacks are listed at most once per {@link #FULL_REFRESH_SEC_PROPERTY}. In between, at most once per
+ * {@link #REFRESH_SEC_PROPERTY}, only the stacks in progress are listed, as these are the ones which change, and
+ * the stacks which were in progress before are described to get their final status. The stacks whose status was
+ * viewed recently are described as well, so that an operation which started and finished between two refreshes
+ * shows up on the view page. Other such operations show up with the next full refresh. Concurrent requests for the same
+ * credentials and region wait for a single refresh, so page views don't multiply AWS API calls. Page views don't
+ * wait at all, see {@link #getCachedStack}.
+ */
+public class StackStatusCache {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(StackStatusCache.class.getName());
+
+  static final String REFRESH_SEC_PROPERTY = "teamcity.cloudformation.stackCache.refresh.sec";
+  static final String FULL_REFRESH_SEC_PROPERTY = "teamcity.cloudformation.stackCache.fullRefresh.sec";
+  private static final int REFRESH_SEC_DEFAULT = 30;
+  private static final int FULL_REFRESH_SEC_DEFAULT = 300;
+  private static final long IDLE_TIMEOUT_MS = 60 * 60 * 1000;
+
+  private static final List<String> IN_PROGRESS_STATUSES = new ArrayList<String>();
+  private static final List<String> EXISTING_STATUSES = new ArrayList<String>();
+
+  static {
+    for (StackStatus status : StackStatus.values()) {
+      if (status.toString().endsWith("_IN_PROGRESS")) IN_PROGRESS_STATUSES.add(status.toString());
+      if (status != StackStatus.DELETE_COMPLETE) EXISTING_STATUSES.add(status.toString());
+    }
+  }
+
+  @NotNull
+  private final ExecutorService myExecutor;
+  @NotNull
+  private final Map<String, Entry> myEntries = new HashMap<String, Entry>();
+
+  public StackStatusCache(@NotNull ExecutorServices executorServices) {
+    myExecutor = executorServices.getNormalExecutorService();
+  }
+
+  /**
+   * Waits for the refresh if the cached stacks are stale
+   *
+   * @param params runner parameters with credentials and region
+   * @return stacks sorted by name, deleted stacks are not included
+   */
+  @NotNull
+  public List<StackSummary> getStacks(@NotNull Map<String, String> params) {
+    return getEntry(params).get(params);
+  }
+
+  /**
+   * Never waits for AWS, stale stacks are refreshed in background
+   *
+   * @return the stack with the name, null if there's no such stack or the stacks haven't been loaded yet, see {@link #isLoaded}
+   * @throws AmazonClientException if the stacks haven't been loaded because the last attempt failed
+   */
+  @Nullable
+  public StackSummary getCachedStack(@NotNull Map<String, String> params, @NotNull String stackName) {
+    final Entry entry = getEntry(params);
+    entry.myViewed.put(stackName, System.currentTimeMillis());
+    final List<StackSummary> stacks = entry.peek(params, myExecutor);
+    return stacks == null ? null : find(stacks, stackName);
+  }
+
+  public boolean isLoaded(@NotNull Map<String, String> params) {
+    return getEntry(params).mySnapshot != null;
+  }
+
+  /**
+   * @return the stack with the name or null if there's no such stack
+   */
+  @Nullable
+  public StackSummary getStack(@NotNull Map<String, String> params, @NotNull String stackName) {
+    return find(getStacks(params), stackName);
+  }
+
+  @Nullable
+  private static StackSummary find(@NotNull List<StackSummary> stacks, @NotNull String stackName) {
+    for (StackSummary stack : stacks) {
+      if (stack.getStackName().equals(stackName)) return stack;
+    }
+    return null;
+  }
+
+  @NotNull
+  private Entry getEntry(@NotNull Map<String, String> params) {
+    final String key = getKey(params);
+    final long now = System.currentTimeMillis();
+    synchronized (myEntries) {
+      for (Iterator<Entry> it = myEntries.values().iterator(); it.hasNext(); ) {
+        if (now - it.next().myLastUsed > IDLE_TIMEOUT_MS) it.remove();
+      }
+      Entry existing = myEntries.get(key);
+      if (existing == null) {
+        existing = new Entry();
+        myEntries.put(key, existing);
+      }
+      existing.myLastUsed = now;
+      return existing;
+    }
+  }
+
+  /**
+   * The identity names the access key only, the secret is added so that knowing an access key ID isn't enough to read the cache
+   */
+  @NotNull
+  private static String getKey(@NotNull Map<String, String> params) {
+    final String secret = StringUtil.emptyIfNull(AWSCommonParams.getSecretAccessKey(params));
+    return AWSCommonParams.getCredentialsIdentity(params) + "@" + AWSCommonParams.getRegionName(params) + "#" + CloudFormationUtil.sha256(secret);
+  }
+
+  private static final class Entry {
+    /**
+     * stack name -> summary
+     */
+    @NotNull
+    private final Map<String, StackSummary> myStacks = new TreeMap<String, StackSummary>();
+    /**
+     * name -> time the stack status was last viewed
+     */
+    @NotNull
+    private final Map<String, Long> myViewed = new ConcurrentHashMap<String, Long>();
+    @NotNull
+    private final AtomicBoolean myLoading = new AtomicBoolean();
+    private volatile long myRefreshed;
+    private volatile long myFullyRefreshed;
+    private volatile long myLastUsed;
+    @Nullable
+    private volatile List<StackSummary> mySnapshot;
+    @Nullable
+    private volatile AmazonClientException myLoadFailure;
+
+    @NotNull
+    private synchronized List<StackSummary> get(@NotNull Map<String, String> params) {
+      final long now = System.currentTimeMillis();
+      if (now - myFullyRefreshed > getFullRefreshMs()) {
+        final AmazonCloudFormation client = AWSCommonParams.createAWSClients(params).createCloudFormationClient();
+        myStacks.clear();
+        myStacks.putAll(list(client, EXISTING_STATUSES));
+        myFullyRefreshed = myRefreshed = now;
+      } else if (now - myRefreshed > getRefreshMs()) {
+        refreshInProgress(AWSCommonParams.createAWSClients(params).createCloudFormationClient());
+        myRefreshed = now;
+      }
+      final List<StackSummary> stacks = Collections.unmodifiableList(new ArrayList<StackSummary>(myStacks.values()));
+      mySnapshot = stacks;
+      myLoadFailure = null;
+      return stacks;
+    }
+
+    /**
+     * @return the last loaded stacks, null if there are none yet
+     */
+    @Nullable
+    private List<StackSummary> peek(@NotNull final Map<String, String> params, @NotNull ExecutorService executor) {
+      final long now = System.currentTimeMillis();
+      if ((now - myFullyRefreshed > getFullRefreshMs() || now - myRefreshed > getRefreshMs()) && myLoading.compareAndSet(false, true)) {
+        try {
+          executor.submit(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                get(params);
+              } catch (AmazonClientException e) {
+                LOG.debug("Failed to load CloudFormation stacks: " + e.getMessage());
+                myLoadFailure = e;
+              } finally {
+                myLoading.set(false);
+              }
+            }
+          });
+        } catch (RejectedExecutionException e) {
+          myLoading.set(false);
+        }
+      }
+      final List<StackSummary> stacks = mySnapshot;
+      final AmazonClientException failure = myLoadFailure;
+      if (stacks == null && failure != null) throw failure;
+      return stacks;
+    }
+
+    private static long getRefreshMs() {
+      return TeamCityProperties.getInteger(REFRESH_SEC_PROPERTY, REFRESH_SEC_DEFAULT) * 1000L;
+    }
+
+    private static long getFullRefreshMs() {
+      return TeamCityProperties.getInteger(FULL_REFRESH_SEC_PROPERTY, FULL_REFRESH_SEC_DEFAULT) * 1000L;
+    }
+
+    private void refreshInProgress(@NotNull AmazonCloudFormation client) {
+      final Map<String, StackSummary> inProgress = list(client, IN_PROGRESS_STATUSES);
+      final Set<String> described = new HashSet<String>();
+      for (StackSummary known : new ArrayList<StackSummary>(myStacks.values())) {
+        if (!IN_PROGRESS_STATUSES.contains(known.getStackStatus()) || inProgress.containsKey(known.getStackName())) continue;
+
+        // finished since the previous refresh
+        describe(client, known.getStackName(), known.getStackId());
+        described.add(known.getStackName());
+      }
+
+      final long viewedSince = System.currentTimeMillis() - getFullRefreshMs();
+      for (Iterator<Map.Entry<String, Long>> it = myViewed.entrySet().iterator(); it.hasNext(); ) {
+        final Map.Entry<String, Long> viewed = it.next();
+        if (viewed.getValue() < viewedSince) {
+          it.remove();
+        } else if (!inProgress.containsKey(viewed.getKey()) && !described.contains(viewed.getKey())) {
+          // may have been created, updated or deleted entirely since the previous refresh
+          describe(client, viewed.getKey(), viewed.getKey());
+        }
+      }
+      myStacks.putAll(inProgress);
+    }
+
+    private void describe(@NotNull AmazonCloudFormation client, @NotNull String stackName, @NotNull String stackNameOrId) {
+      Stack stack;
+      try {
+        final List<Stack> stacks = client.describeStacks(new DescribeStacksRequest().withStackName(stackNameOrId)).getStacks();
+        stack = stacks.isEmpty() ? null : stacks.get(0);
+      } catch (AmazonServiceException e) {
+        if (!AWSClient.isNoSuchStack(e)) throw e;
+        stack = null;
+      }
+      if (stack == null || StackStatus.DELETE_COMPLETE.toString().equals(stack.getStackStatus())) {
+        myStacks.remove(stackName);
+        return;
+      }
+      myStacks.put(stackName, new StackSummary()
+          .withStackName(stack.getStackName())
+          .withStackId(stack.getStackId())
+          .withStackStatus(stack.getStackStatus())
+          .withStackStatusReason(stack.getStackStatusReason())
+          .withCreationTime(stack.getCreationTime())
+          .withLastUpdatedTime(stack.getLastUpdatedTime()));
+    }
+
+    @NotNull
+    private static Map<String, StackSummary> list(@NotNull AmazonCloudFormation client, @NotNull List<String> statuses) {
+      final Map<String, StackSummary> stacks = new HashMap<String, StackSummary>();
+      String nextToken = null;
+      do {
+        final ListStacksResult page = client.listStacks(new ListStacksRequest().withStackStatusFilters(statuses).withNextToken(nextToken));
+        for (StackSummary stack : page.getStackSummaries()) {
+          stacks.put(stack.getStackName(), stack);
+        }
+        nextToken = page.getNextToken();
+      } while (nextToken != null);
+      return stacks;
+    }
+  }
+}
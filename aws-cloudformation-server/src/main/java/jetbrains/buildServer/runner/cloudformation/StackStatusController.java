@@ -0,0 +1,173 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.cloudformation;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.cloudformation.model.StackSummary;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.controllers.BasePropertiesBean;
+import jetbrains.buildServer.controllers.admin.projects.PluginPropertiesUtil;
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.util.amazon.AWSCommonParams;
+import jetbrains.buildServer.util.amazon.AWSException;
+import jetbrains.buildServer.web.openapi.PluginDescriptor;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import jetbrains.buildServer.web.util.SessionUser;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.HashMap;
+import java.util.Map;
+
+import static jetbrains.buildServer.runner.cloudformation.CloudFormationConstants.*;
+
+/**
+ * Serves stack statuses from {@link StackStatusCache}.
+ * <p>
+ * The edit page posts the runner settings form and gets the stacks whose names start with the term parameter as JSON,
+ * for the stack name autocomplete. Only users who can edit the project the form belongs to may post it. The view page
+ * includes the controller, which then renders the status of the configured stack using the runner settings of the page,
+ * so that secure values never leave the server. The status is taken from the cache only, the view never waits for AWS.
+ * <p>
+ * The credentials of the server itself (the default credential provider chain) aren't used unless
+ * {@link #DEFAULT_CREDENTIALS_ENABLED_PROPERTY} is set, otherwise settings could reveal the stacks of the server account.
+ */
+public class StackStatusController extends BaseController {
+  static final String DEFAULT_CREDENTIALS_ENABLED_PROPERTY = "teamcity.cloudformation.stackStatus.defaultCredentials.enabled";
+  static final String PROJECT_ID_PARAM = "projectId";
+  private static final int MAX_SUGGESTIONS = 50;
+
+  @NotNull
+  private final PluginDescriptor myDescriptor;
+  @NotNull
+  private final StackStatusCache myCache;
+  @NotNull
+  private final ProjectManager myProjectManager;
+  @NotNull
+  private final ObjectMapper myMapper = new ObjectMapper();
+
+  public StackStatusController(@NotNull PluginDescriptor descriptor, @NotNull WebControllerManager controllerManager, @NotNull StackStatusCache cache,
+                               @NotNull ProjectManager projectManager) {
+    myDescriptor = descriptor;
+    myCache = cache;
+    myProjectManager = projectManager;
+    controllerManager.registerController(descriptor.getPluginResourcesPath(STACK_STATUS_HTML), this);
+  }
+
+  @Nullable
+  @Override
+  protected ModelAndView doHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
+    final Object included = request.getAttribute("propertiesBean");
+    if (included instanceof BasePropertiesBean) {
+      return showStatus(((BasePropertiesBean) included).getProperties());
+    }
+
+    if (!"POST".equals(request.getMethod())) {
+      response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+      return null;
+    }
+    if (!canEditProject(request)) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return null;
+    }
+
+    final BasePropertiesBean form = new BasePropertiesBean(null);
+    PluginPropertiesUtil.bindPropertiesFromRequest(request, form);
+    final ObjectNode result = myMapper.createObjectNode();
+    try {
+      final Map<String, String> params = getValidParams(form.getProperties());
+      final String term = StringUtil.emptyIfNull(request.getParameter("term"));
+      final ArrayNode stacks = result.putArray("stacks");
+      for (StackSummary stack : myCache.getStacks(params)) {
+        if (!stack.getStackName().startsWith(term)) continue;
+        stacks.addObject()
+            .put("name", stack.getStackName())
+            .put("status", stack.getStackStatus())
+            .put("reason", stack.getStackStatusReason());
+        if (stacks.size() == MAX_SUGGESTIONS) break;
+      }
+    } catch (IllegalArgumentException e) {
+      result.put("error", e.getMessage());
+    } catch (AmazonClientException e) {
+      result.put("error", AWSException.getMessage(e));
+    }
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    myMapper.writeValue(response.getWriter(), result);
+    return null;
+  }
+
+  @NotNull
+  private ModelAndView showStatus(@NotNull Map<String, String> properties) {
+    final ModelAndView view = new ModelAndView(myDescriptor.getPluginResourcesPath(STACK_STATUS_JSP));
+    final String stackName = properties.get(STACK_NAME_PARAM);
+    if (StringUtil.isEmpty(stackName) || stackName.contains("%") || StringUtil.isNotEmpty(properties.get(MANIFEST_FILE_PARAM))) {
+      return view;
+    }
+    try {
+      final Map<String, String> params = getValidParams(properties);
+      final StackSummary stack = myCache.getCachedStack(params, stackName);
+      if (stack == null && !myCache.isLoaded(params)) {
+        view.addObject("stackStatusLoading", true);
+        return view;
+      }
+      view.addObject("stackStatus", stack == null ? "doesn't exist" : stack.getStackStatus());
+      view.addObject("stackStatusReason", stack == null ? null : stack.getStackStatusReason());
+    } catch (IllegalArgumentException e) {
+      // references or incomplete settings, nothing to show
+    } catch (AmazonClientException e) {
+      view.addObject("stackStatusError", AWSException.getMessage(e));
+    }
+    return view;
+  }
+
+  private boolean canEditProject(@NotNull HttpServletRequest request) {
+    final SUser user = SessionUser.getUser(request);
+    final String projectId = request.getParameter(PROJECT_ID_PARAM);
+    if (user == null || StringUtil.isEmpty(projectId)) return false;
+    final SProject project = myProjectManager.findProjectByExternalId(projectId);
+    return project != null && user.isPermissionGrantedForProject(project.getProjectId(), Permission.EDIT_PROJECT);
+  }
+
+  /**
+   * @throws IllegalArgumentException if the credentials or the region aren't fully specified, or the server credentials are requested
+   */
+  @NotNull
+  private static Map<String, String> getValidParams(@NotNull Map<String, String> properties) {
+    final Map<String, String> invalids = AWSCommonParams.validate(properties, false);
+    if (!invalids.isEmpty()) throw new IllegalArgumentException(CloudFormationUtil.printStrings(invalids.values()));
+    if (Boolean.parseBoolean(properties.get(AWSCommonParams.USE_DEFAULT_CREDENTIAL_PROVIDER_CHAIN_PARAM)) &&
+        !TeamCityProperties.getBoolean(DEFAULT_CREDENTIALS_ENABLED_PROPERTY)) {
+      throw new IllegalArgumentException("Stack statuses aren't available for the default credential provider chain, set the " +
+                                         DEFAULT_CREDENTIALS_ENABLED_PROPERTY + " internal property to enable them");
+    }
+    final Map<String, String> params = new HashMap<String, String>(properties);
+    params.put(AWSCommonParams.TEMP_CREDENTIALS_SESSION_NAME_PARAM, AWSCommonParams.TEMP_CREDENTIALS_SESSION_NAME_DEFAULT_PREFIX + "status");
+    return params;
+  }
+}
@@ -34,7 +34,29 @@
 <tr>
     <th><label for="${stack_name_param}">${stack_name_label}: <l:star/></label></th>
     <td><props:textProperty name="${stack_name_param}" className="longField" maxlength="256"/><a href="http://console.aws.amazon.com/cloudformation" target="_blank">Open CloudFormation Console</a>
-        <span class="smallNote">CloudFormation stack name</span><span class="error" id="error_${stack_name_param}"></span>
+        <datalist id="${stack_name_param}_stacks"></datalist>
+        <span class="smallNote">CloudFormation stack name</span><span class="smallNote" id="${stack_name_param}_status"></span><span class="error" id="error_${stack_name_param}"></span>
+    </td>
+</tr>
+<tr>
+    <th><label for="${additional_regions_param}">${additional_regions_label}: </label></th>
+    <td><props:textProperty name="${additional_regions_param}" className="longField" maxlength="1024"/>
+        <span class="smallNote">Comma-separated region codes, e.g. eu-west-1,ap-southeast-2. The stack is deployed to all of them concurrently in addition to the main region</span>
+        <span class="error" id="error_${additional_regions_param}"></span>
+    </td>
+</tr>
+<tr>
+    <th><label for="${manifest_file_param}">${manifest_file_label}: </label></th>
+    <td><props:textProperty name="${manifest_file_param}" className="longField" maxlength="256"/>
+        <span class="smallNote">Path to a JSON manifest of several stacks relative to the checkout directory. Stacks are processed in the order of their dependencies, ${stack_name_label} is ignored</span>
+        <span class="error" id="error_${manifest_file_param}"></span>
+    </td>
+</tr>
+<tr>
+    <th><label for="${manifest_concurrency_param}">${manifest_concurrency_label}: </label></th>
+    <td><props:textProperty name="${manifest_concurrency_param}" className="longField" maxlength="256"/>
+        <span class="smallNote">Maximum number of manifest stacks processed at the same time</span>
+        <span class="error" id="error_${manifest_concurrency_param}"></span>
     </td>
 </tr>
 <tr>
@@ -48,8 +70,40 @@
 			</props:selectProperty> <span class="smallNote">Select desired action on stack creation failure</span><span class="error" id="error_${wait_onfailure}"></span>
     </td>
 </tr>
+<tr>
+    <th><label for="${wait_timeout_param}">${wait_timeout_label}: </label></th>
+    <td><props:textProperty name="${wait_timeout_param}" className="longField" maxlength="256"/>
+        <span class="smallNote">Build will fail if the stack operation doesn't finish within the specified time</span><span class="error" id="error_${wait_timeout_param}"></span>
+    </td>
+</tr>
+<tr>
+    <th><label for="${detached_param}">${detached_label}: </label></th>
+    <td><props:checkboxProperty name="${detached_param}"/>
+        <span class="smallNote">Only submit the stack operation, the server tracks its completion and reports failures to the build without keeping the agent busy</span>
+        <span class="error" id="error_${detached_param}"></span>
+    </td>
+</tr>
+<tr>
+    <th><label for="${follow_up_build_type_param}">${follow_up_build_type_label}: </label></th>
+    <td><props:textProperty name="${follow_up_build_type_param}" className="longField" maxlength="256"/>
+        <span class="smallNote">ID of the build configuration to trigger when a detached stack operation succeeds</span>
+    </td>
+</tr>
+<tr>
+    <th><label for="${cancel_on_interrupt_param}">${cancel_on_interrupt_label}: </label></th>
+    <td><props:checkboxProperty name="${cancel_on_interrupt_param}"/>
+        <span class="smallNote">When the build is stopped, cancel the stack update or delete the stack being created</span>
+    </td>
+</tr>
 
 <l:settingsGroup title="Version Location">
+    <tr>
+        <th><label for="${template_file_param}">${template_file_label}: </label></th>
+        <td><props:textProperty name="${template_file_param}" className="longField" maxlength="256"/>
+            <span class="smallNote">Path to the template relative to the checkout directory. Templates up to 51,200 bytes are passed inline, larger ones are uploaded to the bucket unless they're already there, ${s3_object_key_label} is then used as a key prefix</span>
+            <span class="error" id="error_${template_file_param}"></span>
+        </td>
+    </tr>
     <tr>
         <th><label for="${bucket_name_param}">${bucket_name_label}: <l:star/></label></th>
         <td><props:textProperty name="${bucket_name_param}" className="longField" maxlength="256"/><a href="http://console.aws.amazon.com/s3" target="_blank">Open S3 Console</a>
@@ -72,9 +126,96 @@
 				<props:option value="Update">Update</props:option>
 				<props:option value="Validate">Validate</props:option>
 				<props:option value="Delete">Delete</props:option>
+				<props:option value="StackSet">Stack set</props:option>
 			</props:selectProperty> <span class="smallNote">Select desired action</span><span class="error"
 			id="error_cfn_action_param}"></span></td>
 	</tr>
+    <tr>
+        <th><label for="${update_mode_param}">${update_mode_label}:</label></th>
+        <td><props:selectProperty name="${update_mode_param}" className="longField">
+                <props:option value="${update_mode_change_set}">Change set</props:option>
+                <props:option value="${update_mode_direct}">Direct update</props:option>
+            </props:selectProperty>
+            <span class="smallNote">With change set the changes are logged before they are applied and the update is skipped if nothing changed</span>
+        </td>
+    </tr>
+</l:settingsGroup>
+
+<l:settingsGroup title="Stack Set">
+    <tr>
+        <th><label for="${stack_set_accounts_param}">${stack_set_accounts_label}: </label></th>
+        <td><props:textProperty name="${stack_set_accounts_param}" className="longField" maxlength="1024"/>
+            <span class="smallNote">Comma-separated AWS account IDs to deploy the stack set to, used by the Stack set action</span>
+            <span class="error" id="error_${stack_set_accounts_param}"></span>
+        </td>
+    </tr>
+    <tr>
+        <th><label for="${stack_set_regions_param}">${stack_set_regions_label}: </label></th>
+        <td><props:textProperty name="${stack_set_regions_param}" className="longField" maxlength="1024"/>
+            <span class="smallNote">Comma-separated regions to deploy the stack set to, instances are deployed in this order</span>
+            <span class="error" id="error_${stack_set_regions_param}"></span>
+        </td>
+    </tr>
+    <tr>
+        <th><label for="${stack_set_max_concurrent_count_param}">${stack_set_max_concurrent_count_label}: </label></th>
+        <td><props:textProperty name="${stack_set_max_concurrent_count_param}" className="longField" maxlength="1024"/>
+            <span class="smallNote">Maximum number of accounts deployed at the same time in each region</span>
+            <span class="error" id="error_${stack_set_max_concurrent_count_param}"></span>
+        </td>
+    </tr>
+    <tr>
+        <th><label for="${stack_set_max_concurrent_percentage_param}">${stack_set_max_concurrent_percentage_label}: </label></th>
+        <td><props:textProperty name="${stack_set_max_concurrent_percentage_param}" className="longField" maxlength="1024"/>
+            <span class="smallNote">The same as a percentage of the target accounts, mustn't be used together with the count</span>
+            <span class="error" id="error_${stack_set_max_concurrent_percentage_param}"></span>
+        </td>
+    </tr>
+    <tr>
+        <th><label for="${stack_set_failure_tolerance_count_param}">${stack_set_failure_tolerance_count_label}: </label></th>
+        <td><props:textProperty name="${stack_set_failure_tolerance_count_param}" className="longField" maxlength="1024"/>
+            <span class="smallNote">Number of accounts which may fail in a region before the operation stops</span>
+            <span class="error" id="error_${stack_set_failure_tolerance_count_param}"></span>
+        </td>
+    </tr>
+    <tr>
+        <th><label for="${stack_set_failure_tolerance_percentage_param}">${stack_set_failure_tolerance_percentage_label}: </label></th>
+        <td><props:textProperty name="${stack_set_failure_tolerance_percentage_param}" className="longField" maxlength="1024"/>
+            <span class="smallNote">The same as a percentage of the target accounts, mustn't be used together with the count</span>
+            <span class="error" id="error_${stack_set_failure_tolerance_percentage_param}"></span>
+        </td>
+    </tr>
 </l:settingsGroup>
 
 <jsp:include page="editAWSCommonParams.jsp"/>
+
+<script type="application/javascript">
+    (function () {
+        var field = $j(BS.Util.escapeId('${stack_name_param}'));
+        var stacks = $j(BS.Util.escapeId('${stack_name_param}_stacks'));
+        var status = $j(BS.Util.escapeId('${stack_name_param}_status'));
+        var pending = null;
+        field.attr('list', '${stack_name_param}_stacks');
+
+        function showStatus(result) {
+            stacks.empty();
+            status.text('');
+            if (result.error) return;
+            $j.each(result.stacks, function (i, stack) {
+                stacks.append($j('<option/>').attr('value', stack.name).text(stack.status));
+                if (stack.name == field.val()) {
+                    status.text('Status: ' + stack.status + (stack.reason ? ' (' + stack.reason + ')' : ''));
+                }
+            });
+        }
+
+        // stacks are cached on the server, the delay only keeps typing from flooding it
+        field.on('focus input', function () {
+            if (pending) clearTimeout(pending);
+            pending = setTimeout(function () {
+                var form = field.closest('form');
+                $j.post('${teamcityPluginResourcesPath}${stack_status_html}?projectId=<c:out value="${buildForm.project.externalId}"/>&term=' + encodeURIComponent(field.val()),
+                        form.serialize(), showStatus, 'json');
+            }, 300);
+        });
+    })();
+</script>
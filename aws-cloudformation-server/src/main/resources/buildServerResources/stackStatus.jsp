@@ -0,0 +1,30 @@
+<%--
+  ~ Copyright 2000-2016 JetBrains s.r.o.
+  ~
+  ~ Licensed under the Apache License, Version 2.0 (the "License");
+  ~ you may not use this file except in compliance with the License.
+  ~ You may obtain a copy of the License at
+  ~
+  ~ http://www.apache.org/licenses/LICENSE-2.0
+  ~
+  ~ Unless required by applicable law or agreed to in writing, software
+  ~ distributed under the License is distributed on an "AS IS" BASIS,
+  ~ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  ~ See the License for the specific language governing permissions and
+  ~ limitations under the License.
+  --%>
+
+<%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core" %>
+
+<c:choose>
+    <c:when test="${not empty stackStatusError}">
+        <span class="smallNote">Status is unknown: <c:out value="${stackStatusError}"/></span>
+    </c:when>
+    <c:when test="${stackStatusLoading}">
+        <span class="smallNote">Status is being loaded</span>
+    </c:when>
+    <c:when test="${not empty stackStatus}">
+        <strong><c:out value="${stackStatus}"/></strong>
+        <c:if test="${not empty stackStatusReason}"><span class="smallNote"><c:out value="${stackStatusReason}"/></span></c:if>
+    </c:when>
+</c:choose>
@@ -18,6 +18,20 @@
 
 <jsp:include page="viewAWSCommonParams.jsp"/>
 
+<c:if test="${not empty propertiesBean.properties[stack_name_param]}">
+    <div class="parameter">
+        ${stack_name_label}: <props:displayValue name="${stack_name_param}"/>
+        <jsp:include page="${teamcityPluginResourcesPath}${stack_status_html}"/>
+    </div>
+</c:if>
+
+<c:set var="template_file" value="${propertiesBean.properties[template_file_param]}"/>
+<c:if test="${not empty template_file}">
+    <div class="parameter">
+        ${template_file_label}: <props:displayValue name="${template_file_param}" emptyValue="empty"/>
+    </div>
+</c:if>
+
 <div class="parameter">
     ${bucket_name_label}: <props:displayValue name="${bucket_name_param}" emptyValue="empty"/>
 </div>
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.runner.cloudformation;
+
+import jetbrains.buildServer.util.amazon.AWSApiMetrics;
+import jetbrains.buildServer.util.amazon.AWSClients;
+import jetbrains.buildServer.util.amazon.AWSCommonParams;
+import jetbrains.buildServer.util.amazon.AWSException;
+import jetbrains.buildServer.util.amazon.simulator.AWSSimulator;
+import jetbrains.buildServer.util.amazon.simulator.LatencyDistribution;
+import jetbrains.buildServer.util.amazon.simulator.SimulatorScenario;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many concurrent stack creations against {@link AWSSimulator} and prints how long they took
+ * and how many API calls they needed, e.g.
+ * <pre>./gradlew :aws-cloudformation-simulator:loadTest -Dsimulator.deploys=200 -Dsimulator.sharedPoller=true</pre>
+ */
+public class SimulatedDeployLoadTest {
+  private static final String REGION = "us-east-1";
+
+  public static void main(String[] args) throws Exception {
+    final int deploys = Integer.getInteger("simulator.deploys", 100);
+    final int resources = Integer.getInteger("simulator.resources", 10);
+    final long operationMs = Long.getLong("simulator.operationMs", 10000);
+    final long latencyMs = Long.getLong("simulator.latencyMs", 50);
+    final double throttleRate = Double.parseDouble(System.getProperty("simulator.throttleRate", "0.02"));
+    final double failureRate = Double.parseDouble(System.getProperty("simulator.failureRate", "0"));
+    final boolean sharedPoller = Boolean.getBoolean("simulator.sharedPoller");
+
+    final AWSSimulator simulator = new AWSSimulator(new SimulatorScenario()
+        .withResourcesPerStack(resources)
+        .withOperationDuration(LatencyDistribution.uniform(operationMs / 2, operationMs * 3 / 2))
+        .withRequestLatency(LatencyDistribution.logNormal(latencyMs, 0.5))
+        .withThrottleRate(throttleRate)
+        .withFailureRate(failureRate));
+    simulator.start();
+
+    final Map<String, String> params = new HashMap<String, String>(simulator.getEndpointProperties());
+    params.put(AWSCommonParams.REGION_NAME_PARAM, REGION);
+    params.put(AWSCommonParams.CREDENTIALS_TYPE_PARAM, AWSCommonParams.ACCESS_KEYS_OPTION);
+    params.put(AWSCommonParams.ACCESS_KEY_ID_PARAM, "AKIASIMULATOR");
+    params.put(AWSCommonParams.SECRET_ACCESS_KEY_PARAM, "simulator");
+    final AWSClients clients = AWSCommonParams.createAWSClients(params, true);
+
+    final SharedStackPoller poller = sharedPoller ? new SharedStackPoller() : null;
+    final CountingListener listener = new CountingListener();
+    final ExecutorService executor = Executors.newFixedThreadPool(deploys);
+    final CountDownLatch done = new CountDownLatch(deploys);
+    final AWSApiMetrics.Snapshot before = AWSApiMetrics.getInstance().snapshot();
+
+    System.out.println("Deploying " + deploys + " stacks of " + resources + " resources to " + simulator.getEndpoint() +
+                       (sharedPoller ? " with the shared poller" : " with per-build polling"));
+    final long start = System.currentTimeMillis();
+    for (int i = 0; i < deploys; i++) {
+      final String stackName = "load-test-" + i;
+      executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            final AWSClient client = new AWSClient(clients)
+                .withListener(listener)
+                .withPollStrategy(new ExponentialBackoffPollStrategy(10))
+                .withWaitTimeout(3600);
+            if (poller != null) client.withStackPoller(poller, "simulator@" + REGION);
+            client.initiateCFN(stackName, REGION, "{\"Resources\":{}}", null, "bucket", "key", null, "Create", "ROLLBACK");
+          } finally {
+            done.countDown();
+          }
+        }
+      });
+    }
+    done.await();
+    final long wallMs = System.currentTimeMillis() - start;
+
+    executor.shutdown();
+    executor.awaitTermination(10, TimeUnit.SECONDS);
+    if (poller != null) poller.shutdown();
+    simulator.stop();
+
+    System.out.println("Wall time: " + wallMs + " ms");
+    System.out.println("Succeeded: " + listener.mySucceeded + ", failed: " + listener.myFailed +
+                       ", timed out: " + listener.myTimedOut + ", errors: " + listener.myErrors);
+    System.out.println("Simulator requests: " + simulator.getRequestCounts() + ", throttled: " + simulator.getThrottledCount());
+    for (AWSApiMetrics.CallStats stats : AWSApiMetrics.getInstance().snapshot().since(before).getStats()) {
+      System.out.println("  " + stats.getOperation() + " " + stats.getOutcome() + ": " + stats.getCount() + " calls, " +
+                         stats.getRetries() + " retries, p95 " + stats.getPercentileLatencyMs(0.95) + " ms");
+    }
+  }
+
+  private static class CountingListener extends AWSClient.Listener {
+    private final AtomicInteger mySucceeded = new AtomicInteger();
+    private final AtomicInteger myFailed = new AtomicInteger();
+    private final AtomicInteger myTimedOut = new AtomicInteger();
+    private final AtomicInteger myErrors = new AtomicInteger();
+
+    @Override
+    void createStackFinished(@NotNull String stackName, @NotNull String stackStatus) {
+      mySucceeded.incrementAndGet();
+    }
+
+    @Override
+    void createStackFailed(@NotNull String stackName, @NotNull String stackStatus, @NotNull String stackReason) {
+      myFailed.incrementAndGet();
+    }
+
+    @Override
+    void stackWaitTimedOut(@NotNull String stackName, @NotNull String stackStatus, int timeoutSec) {
+      myTimedOut.incrementAndGet();
+    }
+
+    @Override
+    void exception(@NotNull AWSException e) {
+      myErrors.incrementAndGet();
+      System.err.println(e.getMessage());
+    }
+  }
+}
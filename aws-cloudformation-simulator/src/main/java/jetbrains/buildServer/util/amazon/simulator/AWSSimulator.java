@@ -0,0 +1,471 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.util.amazon.simulator;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import jetbrains.buildServer.util.amazon.AWSTransportProfile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process HTTP stand-in for the AWS APIs the plugin uses, for load and latency testing without real AWS.
+ * <p>
+ * Speaks the CloudFormation Query API (CreateStack, UpdateStack, DeleteStack, DescribeStacks, DescribeStackEvents,
+ * ValidateTemplate), STS AssumeRole and S3 PutObject and HeadObject with path-style addressing. Requests aren't
+ * authenticated. Point the clients at it with {@link #getEndpointProperties()}.
+ */
+public class AWSSimulator {
+  private static final String CLOUDFORMATION_NS = "http://cloudformation.amazonaws.com/doc/2010-05-15/";
+  private static final String STS_NS = "https://sts.amazonaws.com/doc/2011-06-15/";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int MAX_EVENTS_PAGE = 100;
+  private static final String ACCOUNT = "123456789012";
+
+  @NotNull
+  private final SimulatorScenario myScenario;
+  @NotNull
+  private final Random myRandom;
+  @NotNull
+  private final Map<String, SimulatedStack> myStacksById = new LinkedHashMap<String, SimulatedStack>();
+  @NotNull
+  private final Map<String, SimulatedStack> myStacksByName = new HashMap<String, SimulatedStack>();
+  @NotNull
+  private final Map<String, byte[]> myObjects = new ConcurrentHashMap<String, byte[]>();
+  @NotNull
+  private final ConcurrentHashMap<String, AtomicLong> myRequests = new ConcurrentHashMap<String, AtomicLong>();
+  @NotNull
+  private final AtomicLong myThrottled = new AtomicLong();
+  @Nullable
+  private HttpServer myServer;
+  @Nullable
+  private ExecutorService myExecutor;
+
+  public AWSSimulator(@NotNull SimulatorScenario scenario) {
+    myScenario = scenario;
+    myRandom = new Random(scenario.getSeed());
+  }
+
+  /**
+   * Starts listening on a free local port
+   */
+  public synchronized void start() throws IOException {
+    final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          AWSSimulator.this.handle(exchange);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    myExecutor = Executors.newFixedThreadPool(myScenario.getThreads());
+    server.setExecutor(myExecutor);
+    server.start();
+    myServer = server;
+  }
+
+  public synchronized void stop() {
+    if (myServer != null) myServer.stop(0);
+    if (myExecutor != null) myExecutor.shutdownNow();
+    myServer = null;
+    myExecutor = null;
+  }
+
+  @NotNull
+  public synchronized String getEndpoint() {
+    if (myServer == null) throw new IllegalStateException("Simulator isn't started");
+    return "http://127.0.0.1:" + myServer.getAddress().getPort();
+  }
+
+  /**
+   * @return parameters to add to the AWS connection parameters, so that the clients talk to the simulator
+   */
+  @NotNull
+  public Map<String, String> getEndpointProperties() {
+    final Map<String, String> properties = new HashMap<String, String>();
+    properties.put(AWSTransportProfile.CLOUDFORMATION_ENDPOINT, getEndpoint());
+    properties.put(AWSTransportProfile.STS_ENDPOINT, getEndpoint());
+    properties.put(AWSTransportProfile.S3_ENDPOINT, getEndpoint());
+    return properties;
+  }
+
+  /**
+   * @return number of requests per action, S3 requests are counted as e.g. S3:PUT
+   */
+  @NotNull
+  public Map<String, Long> getRequestCounts() {
+    final Map<String, Long> counts = new TreeMap<String, Long>();
+    for (Map.Entry<String, AtomicLong> entry : myRequests.entrySet()) {
+      counts.put(entry.getKey(), entry.getValue().get());
+    }
+    return counts;
+  }
+
+  public long getThrottledCount() {
+    return myThrottled.get();
+  }
+
+  private void handle(@NotNull HttpExchange exchange) throws IOException {
+    final byte[] body = readFully(exchange.getRequestBody());
+    final long latencyMs = sample(myScenario.getRequestLatency());
+    if (latencyMs > 0) {
+      try {
+        Thread.sleep(latencyMs);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+
+    final boolean query = "POST".equals(exchange.getRequestMethod()) && "/".equals(exchange.getRequestURI().getPath());
+    final Map<String, String> params = query ? parseForm(new String(body, UTF_8)) : Collections.<String, String>emptyMap();
+    final String action = query ? String.valueOf(params.get("Action")) : "S3:" + exchange.getRequestMethod();
+    count(action);
+
+    if (chance(myScenario.getThrottleRate())) {
+      myThrottled.incrementAndGet();
+      if (query) {
+        error(exchange, 400, "Throttling", "Rate exceeded", "AssumeRole".equals(action) ? STS_NS : CLOUDFORMATION_NS);
+      } else {
+        respond(exchange, 503, "<Error><Code>SlowDown</Code><Message>Please reduce your request rate.</Message></Error>");
+      }
+      return;
+    }
+
+    if (!query) {
+      handleS3(exchange, body);
+      return;
+    }
+    try {
+      if ("AssumeRole".equals(action)) {
+        respond(exchange, 200, assumeRole(params));
+      } else {
+        respond(exchange, 200, handleCloudFormation(action, params));
+      }
+    } catch (ValidationError e) {
+      error(exchange, 400, "ValidationError", e.getMessage(), CLOUDFORMATION_NS);
+    }
+  }
+
+  @NotNull
+  private String handleCloudFormation(@NotNull String action, @NotNull Map<String, String> params) throws ValidationError {
+    final StringBuilder result = new StringBuilder();
+    final long now = System.currentTimeMillis();
+    synchronized (myStacksById) {
+      if ("CreateStack".equals(action)) {
+        final String name = params.get("StackName");
+        final SimulatedStack existing = myStacksByName.get(name);
+        if (existing != null && !existing.isDeleted()) throw new ValidationError("Stack [" + name + "] already exists");
+        final String id = "arn:aws:cloudformation:us-east-1:" + ACCOUNT + ":stack/" + name + "/" + UUID.randomUUID();
+        final SimulatedStack stack = new SimulatedStack(id, name, now);
+        myStacksById.put(id, stack);
+        myStacksByName.put(name, stack);
+        updateTags(stack, params);
+        startOperation(stack, "CREATE", now);
+        element(result, "StackId", id);
+
+      } else if ("UpdateStack".equals(action)) {
+        final SimulatedStack stack = getStack(params.get("StackName"), now);
+        if (stack.isInProgress()) {
+          throw new ValidationError("Stack:" + stack.myId + " is in " + stack.getStatus() + " state and can not be updated.");
+        }
+        updateTags(stack, params);
+        startOperation(stack, "UPDATE", now);
+        element(result, "StackId", stack.myId);
+
+      } else if ("DeleteStack".equals(action)) {
+        final SimulatedStack stack = findStack(params.get("StackName"), now);
+        if (stack != null && !stack.isDeleted() && !stack.getStatus().startsWith("DELETE_")) startOperation(stack, "DELETE", now);
+
+      } else if ("DescribeStacks".equals(action)) {
+        final String name = params.get("StackName");
+        result.append("<Stacks>");
+        if (name != null) {
+          describeStack(result, getStack(name, now));
+        } else {
+          for (SimulatedStack stack : myStacksById.values()) {
+            stack.advance(now);
+            if (!stack.isDeleted()) describeStack(result, stack);
+          }
+        }
+        result.append("</Stacks>");
+
+      } else if ("DescribeStackEvents".equals(action)) {
+        describeEvents(result, getStack(params.get("StackName"), now), params.get("NextToken"));
+
+      } else if ("ValidateTemplate".equals(action)) {
+        result.append("<Parameters/><Capabilities/>");
+        element(result, "Description", "Validated by the simulator");
+
+      } else {
+        throw new ValidationError("Action " + action + " isn't supported by the simulator");
+      }
+    }
+    return wrap(action, CLOUDFORMATION_NS, result);
+  }
+
+  private void startOperation(@NotNull SimulatedStack stack, @NotNull String operation, long now) {
+    final int resources = myScenario.getResourcesPerStack();
+    final int failAt = chance(myScenario.getFailureRate()) ? resources / 2 : -1;
+    stack.start(operation, now, sample(myScenario.getOperationDuration()), resources, failAt);
+    stack.advance(now);
+  }
+
+  private static void updateTags(@NotNull SimulatedStack stack, @NotNull Map<String, String> params) {
+    if (!params.containsKey("Tags") && !params.containsKey("Tags.member.1.Key")) return;
+    stack.myTags.clear();
+    for (int i = 1; params.containsKey("Tags.member." + i + ".Key"); i++) {
+      stack.myTags.put(params.get("Tags.member." + i + ".Key"), params.get("Tags.member." + i + ".Value"));
+    }
+  }
+
+  /**
+   * Deleted stacks are found by ID only, like in CloudFormation
+   */
+  @Nullable
+  private SimulatedStack findStack(@Nullable String nameOrId, long now) {
+    if (nameOrId == null) return null;
+    SimulatedStack stack = myStacksById.get(nameOrId);
+    if (stack == null) {
+      stack = myStacksByName.get(nameOrId);
+      if (stack != null) {
+        stack.advance(now);
+        if (stack.isDeleted()) return null;
+      }
+    }
+    if (stack != null) stack.advance(now);
+    return stack;
+  }
+
+  @NotNull
+  private SimulatedStack getStack(@Nullable String nameOrId, long now) throws ValidationError {
+    final SimulatedStack stack = findStack(nameOrId, now);
+    if (stack == null) throw new ValidationError("Stack with id " + nameOrId + " does not exist");
+    return stack;
+  }
+
+  private static void describeStack(@NotNull StringBuilder result, @NotNull SimulatedStack stack) {
+    result.append("<member>");
+    element(result, "StackId", stack.myId);
+    element(result, "StackName", stack.myName);
+    element(result, "CreationTime", formatTime(stack.myCreatedAt));
+    element(result, "StackStatus", stack.getStatus());
+    element(result, "StackStatusReason", stack.getStatusReason());
+    result.append("<Tags>");
+    for (Map.Entry<String, String> tag : stack.myTags.entrySet()) {
+      result.append("<member>");
+      element(result, "Key", tag.getKey());
+      element(result, "Value", tag.getValue());
+      result.append("</member>");
+    }
+    result.append("</Tags></member>");
+  }
+
+  /**
+   * Newest first, the token is the position of the next event counting from the oldest one, so pages stay stable while events are added
+   */
+  private static void describeEvents(@NotNull StringBuilder result, @NotNull SimulatedStack stack, @Nullable String nextToken) {
+    final List<SimulatedStack.Event> events = stack.getEvents();
+    final int from = nextToken == null ? events.size() - 1 : Integer.parseInt(nextToken);
+    final int to = Math.max(-1, from - MAX_EVENTS_PAGE);
+    result.append("<StackEvents>");
+    for (int i = from; i > to; i--) {
+      final SimulatedStack.Event event = events.get(i);
+      result.append("<member>");
+      element(result, "EventId", event.myId);
+      element(result, "StackId", stack.myId);
+      element(result, "StackName", stack.myName);
+      element(result, "LogicalResourceId", event.myLogicalId);
+      element(result, "PhysicalResourceId", event.myPhysicalId);
+      element(result, "ResourceType", event.myType);
+      element(result, "Timestamp", formatTime(event.myTimestamp));
+      element(result, "ResourceStatus", event.myStatus);
+      element(result, "ResourceStatusReason", event.myReason);
+      result.append("</member>");
+    }
+    result.append("</StackEvents>");
+    if (to >= 0) element(result, "NextToken", String.valueOf(to));
+  }
+
+  @NotNull
+  private String assumeRole(@NotNull Map<String, String> params) {
+    final StringBuilder result = new StringBuilder();
+    final int durationSec = params.containsKey("DurationSeconds") ? Integer.parseInt(params.get("DurationSeconds")) : 3600;
+    result.append("<Credentials>");
+    element(result, "AccessKeyId", "ASIASIMULATOR" + Math.abs(myRandom.nextInt()));
+    element(result, "SecretAccessKey", UUID.randomUUID().toString());
+    element(result, "SessionToken", UUID.randomUUID().toString());
+    element(result, "Expiration", formatTime(System.currentTimeMillis() + durationSec * 1000L));
+    result.append("</Credentials><AssumedRoleUser>");
+    element(result, "Arn", params.get("RoleArn") + "/" + params.get("RoleSessionName"));
+    element(result, "AssumedRoleId", "AROASIMULATOR:" + params.get("RoleSessionName"));
+    result.append("</AssumedRoleUser>");
+    return wrap("AssumeRole", STS_NS, result);
+  }
+
+  private void handleS3(@NotNull HttpExchange exchange, @NotNull byte[] body) throws IOException {
+    final String path = exchange.getRequestURI().getPath();
+    final String method = exchange.getRequestMethod();
+    if ("PUT".equals(method)) {
+      myObjects.put(path, body);
+      exchange.getResponseHeaders().add("ETag", "\"" + Integer.toHexString(Arrays.hashCode(body)) + "\"");
+      exchange.sendResponseHeaders(200, -1);
+      return;
+    }
+    final byte[] object = myObjects.get(path);
+    if (object == null) {
+      if ("HEAD".equals(method)) {
+        exchange.sendResponseHeaders(404, -1);
+      } else {
+        respond(exchange, 404, "<Error><Code>NoSuchKey</Code><Message>The specified key does not exist.</Message></Error>");
+      }
+      return;
+    }
+    exchange.getResponseHeaders().add("ETag", "\"" + Integer.toHexString(Arrays.hashCode(object)) + "\"");
+    exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+    if ("HEAD".equals(method)) {
+      exchange.getResponseHeaders().add("Content-Length", String.valueOf(object.length));
+      exchange.sendResponseHeaders(200, -1);
+      return;
+    }
+    exchange.sendResponseHeaders(200, object.length);
+    final OutputStream out = exchange.getResponseBody();
+    out.write(object);
+    out.close();
+  }
+
+  @NotNull
+  private static String wrap(@NotNull String action, @NotNull String namespace, @NotNull CharSequence result) {
+    return "<" + action + "Response xmlns=\"" + namespace + "\"><" + action + "Result>" + result + "</" + action + "Result>" +
+           "<ResponseMetadata><RequestId>" + UUID.randomUUID() + "</RequestId></ResponseMetadata></" + action + "Response>";
+  }
+
+  private static void error(@NotNull HttpExchange exchange, int code, @NotNull String errorCode, @NotNull String message, @NotNull String namespace) throws IOException {
+    final StringBuilder error = new StringBuilder();
+    error.append("<ErrorResponse xmlns=\"").append(namespace).append("\"><Error><Type>Sender</Type>");
+    element(error, "Code", errorCode);
+    element(error, "Message", message);
+    error.append("</Error><RequestId>").append(UUID.randomUUID()).append("</RequestId></ErrorResponse>");
+    respond(exchange, code, error.toString());
+  }
+
+  private static void respond(@NotNull HttpExchange exchange, int code, @NotNull String xml) throws IOException {
+    final byte[] bytes = xml.getBytes(UTF_8);
+    exchange.getResponseHeaders().add("Content-Type", "text/xml");
+    exchange.sendResponseHeaders(code, bytes.length);
+    final OutputStream out = exchange.getResponseBody();
+    out.write(bytes);
+    out.close();
+  }
+
+  private static void element(@NotNull StringBuilder sb, @NotNull String name, @Nullable String value) {
+    if (value == null) return;
+    sb.append('<').append(name).append('>');
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      switch (c) {
+        case '<':
+          sb.append("&lt;");
+          break;
+        case '>':
+          sb.append("&gt;");
+          break;
+        case '&':
+          sb.append("&amp;");
+          break;
+        default:
+          sb.append(c);
+      }
+    }
+    sb.append("</").append(name).append('>');
+  }
+
+  @NotNull
+  private static String formatTime(long millis) {
+    final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format.format(new Date(millis));
+  }
+
+  @NotNull
+  private static Map<String, String> parseForm(@NotNull String body) throws IOException {
+    final Map<String, String> params = new HashMap<String, String>();
+    for (String pair : body.split("&")) {
+      if (pair.isEmpty()) continue;
+      final int eq = pair.indexOf('=');
+      params.put(URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8"), eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+    }
+    return params;
+  }
+
+  @NotNull
+  private static byte[] readFully(@NotNull InputStream in) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) >= 0) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  private void count(@NotNull String action) {
+    AtomicLong counter = myRequests.get(action);
+    if (counter == null) {
+      final AtomicLong created = new AtomicLong();
+      counter = myRequests.putIfAbsent(action, created);
+      if (counter == null) counter = created;
+    }
+    counter.incrementAndGet();
+  }
+
+  private boolean chance(double rate) {
+    if (rate <= 0) return false;
+    synchronized (myRandom) {
+      return myRandom.nextDouble() < rate;
+    }
+  }
+
+  private long sample(@NotNull LatencyDistribution distribution) {
+    synchronized (myRandom) {
+      return Math.max(0, distribution.sampleMs(myRandom));
+    }
+  }
+
+  private static final class ValidationError extends Exception {
+    private ValidationError(@NotNull String message) {
+      super(message);
+    }
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.util.amazon.simulator;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Random;
+
+/**
+ * Source of simulated durations, e.g. request latencies or stack operation times
+ */
+public abstract class LatencyDistribution {
+  abstract long sampleMs(@NotNull Random random);
+
+  @NotNull
+  public static LatencyDistribution fixed(final long ms) {
+    return new LatencyDistribution() {
+      @Override
+      long sampleMs(@NotNull Random random) {
+        return ms;
+      }
+    };
+  }
+
+  @NotNull
+  public static LatencyDistribution uniform(final long minMs, final long maxMs) {
+    return new LatencyDistribution() {
+      @Override
+      long sampleMs(@NotNull Random random) {
+        return minMs + (long) (random.nextDouble() * (maxMs - minMs));
+      }
+    };
+  }
+
+  /**
+   * Long-tailed distribution typical of network latencies
+   *
+   * @param sigma spread, e.g. 0.5 gives p95 of about 2.3 medians
+   */
+  @NotNull
+  public static LatencyDistribution logNormal(final long medianMs, final double sigma) {
+    return new LatencyDistribution() {
+      @Override
+      long sampleMs(@NotNull Random random) {
+        return Math.round(medianMs * Math.exp(sigma * random.nextGaussian()));
+      }
+    };
+  }
+}
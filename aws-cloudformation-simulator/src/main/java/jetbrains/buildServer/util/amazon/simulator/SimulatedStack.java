@@ -0,0 +1,163 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.util.amazon.simulator;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stack whose operation is scheduled up front: resources are processed one by one over the operation duration,
+ * the events are revealed as the clock passes their timestamps. Not thread-safe, the simulator synchronizes.
+ */
+final class SimulatedStack {
+  @NotNull
+  final String myId;
+  @NotNull
+  final String myName;
+  final long myCreatedAt;
+  // replaced as a whole by the operations which pass tags
+  @NotNull
+  final Map<String, String> myTags = new LinkedHashMap<String, String>();
+  @NotNull
+  private final List<Event> myEvents = new ArrayList<Event>();
+  @NotNull
+  private final List<Event> mySchedule = new ArrayList<Event>();
+  private int myNextScheduled;
+  private int myResources;
+  @NotNull
+  private String myStatus = "";
+  @Nullable
+  private String myStatusReason;
+  private long myEventSequence;
+
+  SimulatedStack(@NotNull String id, @NotNull String name, long now) {
+    myId = id;
+    myName = name;
+    myCreatedAt = now;
+  }
+
+  /**
+   * @param operation CREATE, UPDATE or DELETE
+   * @param failAt    index of the resource which fails, -1 if the operation succeeds
+   */
+  void start(@NotNull String operation, long now, long durationMs, int resources, int failAt) {
+    advance(Long.MAX_VALUE);
+    mySchedule.clear();
+    myNextScheduled = 0;
+    if (!"DELETE".equals(operation)) myResources = resources;
+
+    schedule(now, myName, "AWS::CloudFormation::Stack", operation + "_IN_PROGRESS", "User Initiated");
+    final long step = durationMs / Math.max(1, myResources + 1);
+    for (int i = 0; i < myResources; i++) {
+      final String logicalId = "Resource" + ("DELETE".equals(operation) ? myResources - 1 - i : i);
+      final String type = i % 3 == 0 ? "AWS::EC2::SecurityGroup" : i % 3 == 1 ? "AWS::IAM::Role" : "AWS::Lambda::Function";
+      final long startedAt = now + step * i;
+      schedule(startedAt, logicalId, type, operation + "_IN_PROGRESS", null);
+      if (i == failAt) {
+        schedule(startedAt + step, logicalId, type, operation + "_FAILED", "Simulated failure");
+        final String reason = "The following resource(s) failed to " + operation.toLowerCase() + ": [" + logicalId + "]. ";
+        if ("DELETE".equals(operation)) {
+          schedule(startedAt + step, myName, "AWS::CloudFormation::Stack", "DELETE_FAILED", reason);
+          return;
+        }
+        final String rollback = "CREATE".equals(operation) ? "ROLLBACK" : "UPDATE_ROLLBACK";
+        schedule(startedAt + step, myName, "AWS::CloudFormation::Stack", rollback + "_IN_PROGRESS", reason);
+        schedule(now + durationMs, myName, "AWS::CloudFormation::Stack", rollback + "_COMPLETE", null);
+        return;
+      }
+      schedule(startedAt + step, logicalId, type, operation + "_COMPLETE", null);
+    }
+    schedule(now + durationMs, myName, "AWS::CloudFormation::Stack", operation + "_COMPLETE", null);
+  }
+
+  private void schedule(long timestamp, @NotNull String logicalId, @NotNull String type, @NotNull String status, @Nullable String reason) {
+    final boolean stack = myName.equals(logicalId);
+    mySchedule.add(new Event(myName + "-" + (++myEventSequence), timestamp, logicalId, stack ? myId : myName + "-" + logicalId, type, status, reason));
+  }
+
+  /**
+   * Reveals the events whose time has come
+   */
+  void advance(long now) {
+    while (myNextScheduled < mySchedule.size() && mySchedule.get(myNextScheduled).myTimestamp <= now) {
+      final Event event = mySchedule.get(myNextScheduled++);
+      myEvents.add(event);
+      if (myId.equals(event.myPhysicalId)) {
+        myStatus = event.myStatus;
+        myStatusReason = event.myReason;
+      }
+    }
+  }
+
+  @NotNull
+  String getStatus() {
+    return myStatus;
+  }
+
+  @Nullable
+  String getStatusReason() {
+    return myStatusReason;
+  }
+
+  boolean isInProgress() {
+    return myStatus.endsWith("_IN_PROGRESS");
+  }
+
+  boolean isDeleted() {
+    return "DELETE_COMPLETE".equals(myStatus);
+  }
+
+  /**
+   * @return revealed events, oldest first
+   */
+  @NotNull
+  List<Event> getEvents() {
+    return myEvents;
+  }
+
+  static final class Event {
+    @NotNull
+    final String myId;
+    final long myTimestamp;
+    @NotNull
+    final String myLogicalId;
+    @NotNull
+    final String myPhysicalId;
+    @NotNull
+    final String myType;
+    @NotNull
+    final String myStatus;
+    @Nullable
+    final String myReason;
+
+    private Event(@NotNull String id, long timestamp, @NotNull String logicalId, @NotNull String physicalId, @NotNull String type,
+                  @NotNull String status, @Nullable String reason) {
+      myId = id;
+      myTimestamp = timestamp;
+      myLogicalId = logicalId;
+      myPhysicalId = physicalId;
+      myType = type;
+      myStatus = status;
+      myReason = reason;
+    }
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.util.amazon.simulator;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Behaviour of the {@link AWSSimulator}: stack lifecycles, event volume, latencies and throttling
+ */
+public class SimulatorScenario {
+  private int myResourcesPerStack = 10;
+  @NotNull
+  private LatencyDistribution myOperationDuration = LatencyDistribution.fixed(10000);
+  @NotNull
+  private LatencyDistribution myRequestLatency = LatencyDistribution.fixed(0);
+  private double myThrottleRate;
+  private double myFailureRate;
+  private int myThreads = 32;
+  private long mySeed = 42;
+
+  /**
+   * Each resource produces two events per stack operation
+   */
+  @NotNull
+  public SimulatorScenario withResourcesPerStack(int resourcesPerStack) {
+    myResourcesPerStack = resourcesPerStack;
+    return this;
+  }
+
+  /**
+   * How long a stack create, update or delete takes
+   */
+  @NotNull
+  public SimulatorScenario withOperationDuration(@NotNull LatencyDistribution operationDuration) {
+    myOperationDuration = operationDuration;
+    return this;
+  }
+
+  /**
+   * Delay before each response
+   */
+  @NotNull
+  public SimulatorScenario withRequestLatency(@NotNull LatencyDistribution requestLatency) {
+    myRequestLatency = requestLatency;
+    return this;
+  }
+
+  /**
+   * Share of the requests rejected with a Throttling error, from 0 to 1
+   */
+  @NotNull
+  public SimulatorScenario withThrottleRate(double throttleRate) {
+    myThrottleRate = throttleRate;
+    return this;
+  }
+
+  /**
+   * Share of the stack operations which fail on one of the resources and roll back, from 0 to 1
+   */
+  @NotNull
+  public SimulatorScenario withFailureRate(double failureRate) {
+    myFailureRate = failureRate;
+    return this;
+  }
+
+  /**
+   * Number of requests served concurrently
+   */
+  @NotNull
+  public SimulatorScenario withThreads(int threads) {
+    myThreads = threads;
+    return this;
+  }
+
+  @NotNull
+  public SimulatorScenario withSeed(long seed) {
+    mySeed = seed;
+    return this;
+  }
+
+  int getResourcesPerStack() {
+    return myResourcesPerStack;
+  }
+
+  @NotNull
+  LatencyDistribution getOperationDuration() {
+    return myOperationDuration;
+  }
+
+  @NotNull
+  LatencyDistribution getRequestLatency() {
+    return myRequestLatency;
+  }
+
+  double getThrottleRate() {
+    return myThrottleRate;
+  }
+
+  double getFailureRate() {
+    return myFailureRate;
+  }
+
+  int getThreads() {
+    return myThreads;
+  }
+
+  long getSeed() {
+    return mySeed;
+  }
+}